@@ -0,0 +1,40 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.List;
+
+/**
+ * The handler of a <code>BatchingStage</code>. Instead of one task per queued
+ * item, a stage thread drains as many items as are available (up to the max.
+ * batch size of the stage) and hands them over in a single call. This lets a
+ * handler do things like write many responses or group calls to a remote
+ * endpoint in one go. <br />
+ *
+ * The same instance is called concurrently from all threads of the stage and
+ * the list passed in is reused after the call returns.
+ *
+ * @see BatchingStage
+ * @author Thejo
+ */
+public abstract class BatchStageTask<T> {
+    protected IStage nextStage;
+
+    /**
+     * Process a batch of items. The list is never empty
+     *
+     * @param batch
+     */
+    public abstract void run(List<T> batch);
+
+    public IStage getNextStage() {
+        return nextStage;
+    }
+
+    public void setNextStage(IStage nextStage) {
+        this.nextStage = nextStage;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class is an implementation of the <i>IStage</i> interface for stages
+ * which consume items in batches. Items are queued with <code>enqueue()</code>
+ * and every worker thread drains up to <code>maxBatchSize</code> of them at a
+ * time and passes them to the <code>BatchStageTask</code> of the stage. Under
+ * load this amortizes queue operations and wake ups over the whole batch. <br />
+ *
+ * Runnables and callables submitted through the <i>IStage</i> methods share
+ * the queue and threads with the items. They are run on their own, in the
+ * order they were queued relative to the items around them. Since items are
+ * not wrapped, their queueing delay is not metered and the service time is
+ * recorded once per batch.
+ *
+ * @see BatchStageTask
+ * @author Thejo
+ */
+public class BatchingStage<T> implements IMeteredStage {
+
+    private String name_;
+    private final int maxBatchSize_;
+    private final BatchStageTask<T> task_;
+    private final BlockingQueue<Object> queue_;
+    private final BatchingExecutor executorService_;
+    private final StageMetrics metrics_;
+    private final Thread[] workers_;
+    private final AtomicLong taskCount_ = new AtomicLong();
+    private final AtomicLong completedTaskCount_ = new AtomicLong();
+    private volatile boolean shutdown_;
+
+    public BatchingStage(String name, int numThreads, int maxBatchSize,
+            BatchStageTask<T> task) {
+        this(name, numThreads, maxBatchSize, task,
+                new LinkedBlockingQueue<Object>());
+    }
+
+    public BatchingStage(String name, int numThreads, int maxBatchSize,
+            BatchStageTask<T> task, BlockingQueue<Object> queue) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads "
+                    + numThreads);
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Invalid max. batch size "
+                    + maxBatchSize);
+        }
+
+        name_ = name;
+        maxBatchSize_ = maxBatchSize;
+        task_ = task;
+        queue_ = queue;
+        metrics_ = new StageMetrics(name);
+        executorService_ = new BatchingExecutor();
+
+        ThreadFactoryImpl threadFactory = new ThreadFactoryImpl(name);
+        workers_ = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            workers_[i] = threadFactory.newThread(new Worker());
+            workers_[i].start();
+        }
+    }
+
+    /**
+     * Queue an item to be processed by the batch task of this stage
+     *
+     * @param item
+     */
+    public void enqueue(T item) {
+        offer(item);
+        metrics_.recordSubmitted(1);
+    }
+
+    /**
+     * Queue a number of items to be processed by the batch task of this stage
+     *
+     * @param items
+     */
+    public void enqueueAll(Collection<? extends T> items) {
+        for (T item : items) {
+            offer(item);
+            metrics_.recordSubmitted(1);
+        }
+    }
+
+    private void offer(Object item) {
+        if (shutdown_) {
+            throw new RejectedExecutionException("Stage " + name_
+                    + " has been shutdown");
+        }
+
+        taskCount_.incrementAndGet();
+        if (!queue_.offer(item)) {
+            taskCount_.decrementAndGet();
+            throw new RejectedExecutionException("Queue of stage " + name_
+                    + " is full");
+        }
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize_;
+    }
+
+    public String getName() {
+        return name_;
+    }
+
+    public <V> Future<V> execute(Callable<V> callable) {
+        return executorService_.submit(callable);
+    }
+
+    public <V> StageFuture<V> executeAsync(Callable<V> callable) {
+        return StageFuture.supplyOn(this, callable);
+    }
+
+    public void execute(Runnable runnable) {
+        executorService_.execute(runnable);
+    }
+
+    public void executeBatch(Collection<? extends Runnable> runnables) {
+        for (Runnable runnable : runnables) {
+            executorService_.execute(runnable);
+        }
+    }
+
+    public <V> List<Future<V>> invokeAll(Collection<? extends Callable<V>> callable)
+            throws InterruptedException {
+        return executorService_.invokeAll(callable);
+    }
+
+    public <V> List<Future<V>> invokeAll(Collection<? extends Callable<V>> callable,
+            long timeout, TimeUnit unit) throws InterruptedException {
+        return executorService_.invokeAll(callable, timeout, unit);
+    }
+
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
+    {
+        return HashedTimingWheel.getDefault().schedule(this, command, delay, unit);
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+            long initialDelay, long period, TimeUnit unit) {
+        return HashedTimingWheel.getDefault().scheduleAtFixedRate(this, command,
+                initialDelay, period, unit);
+    }
+
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+            long initialDelay, long delay, TimeUnit unit) {
+        return HashedTimingWheel.getDefault().scheduleWithFixedDelay(this, command,
+                initialDelay, delay, unit);
+    }
+
+    public void shutdown() {
+        executorService_.shutdownNow();
+    }
+
+    public boolean isShutdown()
+    {
+        return shutdown_;
+    }
+
+    public long getTaskCount(){
+        return (taskCount_.get() - completedTaskCount_.get());
+    }
+
+    public StageMetrics getMetrics() {
+        return metrics_;
+    }
+
+    /**
+     * Wraps runnables submitted through the <i>IStage</i> methods so they can
+     * be told apart from items, which may be runnables themselves
+     */
+    private static final class Command {
+        final Runnable runnable;
+
+        Command(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * The loop run by every thread of the stage
+     */
+    private class Worker implements Runnable {
+        private final List<Object> drained = new ArrayList<Object>(maxBatchSize_);
+        private final List<T> batch = new ArrayList<T>(maxBatchSize_);
+
+        @SuppressWarnings("unchecked")
+        public void run() {
+            while (!shutdown_) {
+                try {
+                    drained.add( queue_.take() );
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                queue_.drainTo(drained, maxBatchSize_ - 1);
+
+                for (Object item : drained) {
+                    if (item instanceof Command) {
+                        //Keep the order between items and commands
+                        runBatch();
+                        runCommand( ((Command) item).runnable );
+                    } else {
+                        batch.add( (T) item );
+                    }
+                }
+                runBatch();
+
+                completedTaskCount_.addAndGet( drained.size() );
+                drained.clear();
+            }
+        }
+
+        private void runBatch() {
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            try {
+                task_.run(batch);
+            } catch (Throwable t) {
+                //Keep the worker, the stage has no other to replace it
+                log.error(t.toString(), t);
+            } finally {
+                metrics_.recordCompleted(batch.size(), System.nanoTime() - start);
+                batch.clear();
+            }
+        }
+
+        private void runCommand(Runnable runnable) {
+            try {
+                runnable.run();
+            } catch (Throwable t) {
+                log.error(t.toString(), t);
+            }
+        }
+    }
+
+    /**
+     * Adapts the stage to an <code>ExecutorService</code> so that callables
+     * and <code>invokeAll</code> work as on the other stages
+     */
+    private final class BatchingExecutor extends AbstractExecutorService {
+
+        public void execute(Runnable command) {
+            offer( new Command(metrics_.wrap(command)) );
+        }
+
+        public void shutdown() {
+            shutdown_ = true;
+        }
+
+        public List<Runnable> shutdownNow() {
+            shutdown();
+            for (Thread worker : workers_) {
+                worker.interrupt();
+            }
+            return Collections.emptyList();
+        }
+
+        public boolean isShutdown() {
+            return shutdown_;
+        }
+
+        public boolean isTerminated() {
+            if (!shutdown_) {
+                return false;
+            }
+
+            for (Thread worker : workers_) {
+                if (worker.isAlive()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            for (Thread worker : workers_) {
+                long millis = TimeUnit.NANOSECONDS.toMillis(
+                        deadline - System.nanoTime());
+                if (millis <= 0) {
+                    return isTerminated();
+                }
+                worker.join(millis);
+            }
+            return isTerminated();
+        }
+    }
+
+    private static final Logger log = Logger.getLogger(BatchingStage.class);
+}
@@ -0,0 +1,116 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Parks waiting threads on a lock condition. Uses no CPU while the queue is
+ * idle, at the cost of a wake up on hand off. The lock is only taken by a
+ * signalling thread when there are waiters. <br />
+ *
+ * Threads waiting for different predicates, e.g, consumers waiting for an
+ * element and producers waiting for a free slot, park on conditions of their
+ * own, and a single element or slot wakes a single waiter instead of all of
+ * them.
+ *
+ * @author Thejo
+ */
+public class BlockingWaitStrategy implements WaitStrategy {
+    private final Lock lock = new ReentrantLock();
+    /* Copy on write, a queue only ever waits for a couple of predicates */
+    private volatile Waiters[] waiters = new Waiters[0];
+
+    /**
+     * The threads waiting for one predicate
+     */
+    private static final class Waiters {
+        final Predicate predicate;
+        final Condition condition;
+        final AtomicInteger count = new AtomicInteger();
+
+        Waiters(Predicate predicate, Condition condition) {
+            this.predicate = predicate;
+            this.condition = condition;
+        }
+    }
+
+    public void await(Predicate predicate, int attempt, long nanos)
+            throws InterruptedException {
+        Waiters w = getWaiters(predicate);
+        lock.lock();
+        try {
+            w.count.incrementAndGet();
+            try {
+                //Re-check after registering as a waiter so a signal can't be lost
+                if (!predicate.canProceed()) {
+                    w.condition.awaitNanos(nanos);
+                }
+            } finally {
+                w.count.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void signal(Predicate predicate) {
+        for (Waiters w : waiters) {
+            if (w.predicate == predicate) {
+                if (w.count.get() > 0) {
+                    lock.lock();
+                    try {
+                        w.condition.signal();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    public void signalAll() {
+        for (Waiters w : waiters) {
+            if (w.count.get() > 0) {
+                lock.lock();
+                try {
+                    w.condition.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private Waiters getWaiters(Predicate predicate) {
+        for (Waiters w : waiters) {
+            if (w.predicate == predicate) {
+                return w;
+            }
+        }
+
+        lock.lock();
+        try {
+            Waiters[] current = waiters;
+            for (Waiters w : current) {
+                if (w.predicate == predicate) {
+                    return w;
+                }
+            }
+
+            Waiters w = new Waiters(predicate, lock.newCondition());
+            Waiters[] newWaiters = Arrays.copyOf(current, current.length + 1);
+            newWaiters[current.length] = w;
+            waiters = newWaiters;
+            return w;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
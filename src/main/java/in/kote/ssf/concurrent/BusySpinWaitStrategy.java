@@ -0,0 +1,31 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+/**
+ * Spins continuously. Gives the lowest hand off latency but every idle
+ * consumer thread keeps a core busy, so it should only be used when stage
+ * threads are fewer than the available cores.
+ *
+ * @author Thejo
+ */
+public class BusySpinWaitStrategy implements WaitStrategy {
+
+    public void await(Predicate predicate, int attempt, long nanos)
+            throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    public void signal(Predicate predicate) {
+        //Waiters spin, nothing to do
+    }
+
+    public void signalAll() {
+        //Waiters spin, nothing to do
+    }
+}
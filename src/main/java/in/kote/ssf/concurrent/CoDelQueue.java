@@ -0,0 +1,505 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A stage queue with controlled delay (CoDel) queue management and adaptive
+ * LIFO. <br />
+ *
+ * Every time a thread takes a task, the time the oldest queued task has
+ * spent in the queue is sampled. If the smallest sample of an interval is
+ * above the target delay, the queue has had a standing backlog for the whole
+ * interval, i.e, it is overloaded rather than absorbing a short burst. While
+ * overloaded, tasks which have waited longer than twice the target are shed
+ * from the head of the queue instead of being run, since their clients have
+ * most likely given up, and threads take the newest task first (LIFO) so
+ * that fresh requests are served within their timeouts. Once an interval
+ * passes with a sample below the target the queue goes back to plain FIFO.
+ * <br />
+ *
+ * Shed tasks are counted as dropped in the stage metrics, cancelled if they
+ * are futures and passed to the <code>OverloadHandler</code> of the stage if
+ * it has one. The handler is called on the thread taking tasks and should be
+ * quick.
+ *
+ * @author Thejo
+ */
+public class CoDelQueue extends AbstractQueue<Runnable>
+        implements BlockingQueue<Runnable> {
+
+    public static final long DEFAULT_TARGET_MILLIS = 5;
+    public static final long DEFAULT_INTERVAL_MILLIS = 100;
+
+    private final int capacity;
+    private final long targetNanos;
+    private final long intervalNanos;
+    private volatile boolean adaptiveLifo = true;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    /* Tasks and the times they were queued, in a circular array */
+    private Runnable[] tasks = new Runnable[16];
+    private long[] queuedAt = new long[16];
+    private int head;
+    private int count;
+
+    private long intervalEnd;
+    private long minDelay;
+    private volatile boolean overloaded;
+    private long shedCount;
+    private final List<Runnable> shedTasks = new ArrayList<Runnable>();
+
+    private volatile IStage stage;
+    private volatile OverloadHandler handler;
+
+    public CoDelQueue() {
+        this(Queue.UNBOUNDED);
+    }
+
+    public CoDelQueue(int capacity) {
+        this(capacity, DEFAULT_TARGET_MILLIS, DEFAULT_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param capacity - Max. number of queued tasks or
+     * <code>Queue.UNBOUNDED</code>
+     * @param target - Acceptable standing queue delay
+     * @param interval - Time the delay must stay above the target before the
+     * queue is considered overloaded. Should be about the time a client
+     * waits for a response
+     * @param unit
+     */
+    public CoDelQueue(int capacity, long target, long interval, TimeUnit unit) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid queue capacity " + capacity);
+        }
+        this.capacity = capacity;
+        this.targetNanos = unit.toNanos(target);
+        this.intervalNanos = unit.toNanos(interval);
+        this.intervalEnd = System.nanoTime() + intervalNanos;
+    }
+
+    /**
+     * Set the callback for shed tasks
+     *
+     * @param stage - Stage passed to the handler
+     * @param handler
+     */
+    public void setOverloadHandler(IStage stage, OverloadHandler handler) {
+        this.stage = stage;
+        this.handler = handler;
+    }
+
+    /**
+     * Serve the newest task first while overloaded. Enabled by default
+     *
+     * @param adaptiveLifo
+     */
+    public void setAdaptiveLifo(boolean adaptiveLifo) {
+        this.adaptiveLifo = adaptiveLifo;
+    }
+
+    public boolean isAdaptiveLifo() {
+        return adaptiveLifo;
+    }
+
+    /**
+     * @return true if the queue delay stayed above the target for the last
+     * interval
+     */
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    /**
+     * @return Number of tasks shed because they waited too long while the
+     * queue was overloaded
+     */
+    public long getShedCount() {
+        lock.lock();
+        try {
+            return shedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getTargetNanos() {
+        return targetNanos;
+    }
+
+    public long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean offer(Runnable task) {
+        if (null == task) {
+            throw new NullPointerException();
+        }
+
+        lock.lock();
+        try {
+            if (count >= capacity) {
+                return false;
+            }
+            enqueue(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean offer(Runnable task, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (null == task) {
+            throw new NullPointerException();
+        }
+
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count >= capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(task);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(Runnable task) throws InterruptedException {
+        if (null == task) {
+            throw new NullPointerException();
+        }
+
+        lock.lockInterruptibly();
+        try {
+            while (count >= capacity) {
+                notFull.await();
+            }
+            enqueue(task);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable poll() {
+        Runnable[] shed = null;
+        Runnable task;
+        lock.lock();
+        try {
+            task = (count == 0) ? null : dequeue();
+        } finally {
+            shed = takeShedTasks();
+            lock.unlock();
+        }
+        shed(shed);
+        return task;
+    }
+
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        Runnable[] shed = null;
+        Runnable task = null;
+        lock.lockInterruptibly();
+        try {
+            while (null == task) {
+                while (count == 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                task = dequeue();
+            }
+        } finally {
+            shed = takeShedTasks();
+            lock.unlock();
+            shed(shed);
+        }
+        return task;
+    }
+
+    public Runnable take() throws InterruptedException {
+        Runnable[] shed = null;
+        Runnable task = null;
+        lock.lockInterruptibly();
+        try {
+            while (null == task) {
+                while (count == 0) {
+                    notEmpty.await();
+                }
+                task = dequeue();
+            }
+        } finally {
+            shed = takeShedTasks();
+            lock.unlock();
+            shed(shed);
+        }
+        return task;
+    }
+
+    /**
+     * @return The oldest task, which is not necessarily the one taken next
+     */
+    public Runnable peek() {
+        lock.lock();
+        try {
+            return (count == 0) ? null : tasks[head];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (null == o) {
+            return false;
+        }
+
+        lock.lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                if (o.equals(tasks[index(i)])) {
+                    removeAt(i);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            while (count > 0) {
+                removeFirst();
+            }
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Drains the queue in FIFO order, without shedding any task
+     */
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && count > 0) {
+                c.add( removeFirst() );
+                n++;
+            }
+            if (n > 0) {
+                notFull.signalAll();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return A snapshot of the queued tasks in FIFO order. The iterator
+     * doesn't support <code>remove()</code>
+     */
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<Runnable>(count);
+            for (int i = 0; i < count; i++) {
+                snapshot.add( tasks[index(i)] );
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Runnable task) {
+        if (count == tasks.length) {
+            grow();
+        }
+        int tail = index(count);
+        tasks[tail] = task;
+        queuedAt[tail] = System.nanoTime();
+        count++;
+        notEmpty.signal();
+    }
+
+    /**
+     * Updates the overload state and takes the next task. Called with the
+     * lock held and a non empty queue
+     *
+     * @return The next task to run or null if all tasks were shed
+     */
+    private Runnable dequeue() {
+        long now = System.nanoTime();
+        long delay = now - queuedAt[head];
+
+        if (now - intervalEnd >= 0) {
+            overloaded = (minDelay > targetNanos);
+            minDelay = delay;
+            intervalEnd = now + intervalNanos;
+        } else if (delay < minDelay) {
+            minDelay = delay;
+        }
+
+        if (overloaded) {
+            long sloughNanos = 2 * targetNanos;
+            while (count > 0 && now - queuedAt[head] > sloughNanos) {
+                shedTasks.add( removeFirst() );
+                shedCount++;
+            }
+            if (count == 0) {
+                minDelay = 0;
+                notFull.signalAll();
+                return null;
+            }
+        }
+
+        Runnable task = (overloaded && adaptiveLifo) ? removeLast() : removeFirst();
+        if (count == 0) {
+            //No standing queue
+            minDelay = 0;
+        }
+        notFull.signal();
+        return task;
+    }
+
+    /**
+     * @return The tasks shed while the lock was held, or null. Called with
+     * the lock held
+     */
+    private Runnable[] takeShedTasks() {
+        if (shedTasks.isEmpty()) {
+            return null;
+        }
+        Runnable[] shed = shedTasks.toArray(new Runnable[shedTasks.size()]);
+        shedTasks.clear();
+        return shed;
+    }
+
+    private Runnable removeFirst() {
+        Runnable task = tasks[head];
+        tasks[head] = null;
+        head = (head + 1) % tasks.length;
+        count--;
+        return task;
+    }
+
+    private Runnable removeLast() {
+        int tail = index(count - 1);
+        Runnable task = tasks[tail];
+        tasks[tail] = null;
+        count--;
+        return task;
+    }
+
+    private void removeAt(int i) {
+        for (int j = i; j < count - 1; j++) {
+            tasks[index(j)] = tasks[index(j + 1)];
+            queuedAt[index(j)] = queuedAt[index(j + 1)];
+        }
+        tasks[index(count - 1)] = null;
+        count--;
+        notFull.signal();
+    }
+
+    private int index(int i) {
+        return (head + i) % tasks.length;
+    }
+
+    private void grow() {
+        Runnable[] newTasks = new Runnable[tasks.length * 2];
+        long[] newQueuedAt = new long[tasks.length * 2];
+        for (int i = 0; i < count; i++) {
+            newTasks[i] = tasks[index(i)];
+            newQueuedAt[i] = queuedAt[index(i)];
+        }
+        tasks = newTasks;
+        queuedAt = newQueuedAt;
+        head = 0;
+    }
+
+    /**
+     * Accounts for shed tasks, outside the lock
+     */
+    private void shed(Runnable[] shed) {
+        if (null == shed) {
+            return;
+        }
+
+        for (Runnable task : shed) {
+            StageMetrics.discard(task);
+            Runnable original = StageMetrics.unwrap(task);
+
+            //Don't leave anyone waiting on a task which will never run
+            if (original instanceof Future) {
+                ((Future<?>) original).cancel(false);
+            }
+
+            OverloadHandler current = handler;
+            if (current != null) {
+                try {
+                    current.overloaded(stage, original);
+                } catch (RuntimeException ex) {
+                    log.error(ex.toString(), ex);
+                }
+            }
+        }
+    }
+
+    private static final Logger log = Logger.getLogger(CoDelQueue.class);
+}
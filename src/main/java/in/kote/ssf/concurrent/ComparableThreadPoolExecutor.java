@@ -14,6 +14,7 @@ import java.util.concurrent.*;
  */
 
 public final class ComparableThreadPoolExecutor extends ThreadPoolExecutor {
+    private volatile StageMetrics metrics_;
 
     public ComparableThreadPoolExecutor(int corePoolSize,
                                         int maximumPoolSize,
@@ -26,6 +27,21 @@ public final class ComparableThreadPoolExecutor extends ThreadPoolExecutor {
         super.prestartAllCoreThreads();
     }
 
+    /**
+     * Record latency statistics of every task executed by this executor
+     *
+     * @param metrics
+     */
+    public void setMetrics(StageMetrics metrics) {
+        metrics_ = metrics;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        StageMetrics metrics = metrics_;
+        super.execute( (null == metrics) ? command : metrics.wrap(command) );
+    }
+
     @Override
     protected <T> RunnableFuture<T> newTaskFor (Runnable runnable, T value) {
         return new ComparableFutureTask<T> (runnable, value);
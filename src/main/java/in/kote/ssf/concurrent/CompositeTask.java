@@ -0,0 +1,75 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs a list of tasks one after the other on a single stage thread. Used to
+ * implement <code>IStage.executeBatch()</code>, so that a batch costs one queue
+ * operation and one wake up per worker instead of one per task.
+ *
+ * @author Thejo
+ */
+final class CompositeTask implements Runnable {
+    private final List<Runnable> tasks;
+
+    CompositeTask(List<Runnable> tasks) {
+        this.tasks = tasks;
+    }
+
+    /**
+     * @return The tasks of the batch, e.g, to cancel them when the stage drops
+     * this task
+     */
+    List<Runnable> getTasks() {
+        return tasks;
+    }
+
+    public void run() {
+        for (Runnable task : tasks) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                //Don't let one task take the rest of the batch down with it
+                log.error(ex.toString(), ex);
+            }
+        }
+    }
+
+    /**
+     * Split a batch of tasks into at most <code>parts</code> composite tasks
+     * of roughly equal size, so a batch still spreads across the threads of a
+     * stage.
+     *
+     * @param tasks
+     * @param parts - Usually the number of threads of the stage
+     * @return List of tasks to be executed, empty if there are no tasks
+     */
+    static List<Runnable> split(Collection<? extends Runnable> tasks, int parts) {
+        if (tasks.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        int count = Math.max(1, Math.min(parts, tasks.size()));
+        List<Runnable> composites = new ArrayList<Runnable>(count);
+
+        List<Runnable> all = new ArrayList<Runnable>(tasks);
+        int size = all.size();
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            int end = start + (size - start) / (count - i);
+            composites.add( new CompositeTask(all.subList(start, end)) );
+            start = end;
+        }
+
+        return composites;
+    }
+
+    private static final Logger log = Logger.getLogger(CompositeTask.class);
+}
@@ -0,0 +1,112 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Bounds the number of requests in flight by a limit which a
+ * <code>LimitAlgorithm</code> adjusts from the latencies observed. Requests
+ * beyond the limit are turned away at once instead of being queued, which
+ * keeps latency close to what it is without load, while the limit follows
+ * the capacity of whatever is behind it as that changes. <br />
+ *
+ * Every successful <code>tryAcquire()</code> must be followed by exactly one
+ * call to <code>release()</code>.
+ *
+ * @see LimitedStage
+ * @author Thejo
+ */
+public class ConcurrencyLimiter {
+
+    private final LimitAlgorithm algorithm;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public ConcurrencyLimiter() {
+        this(new GradientLimit());
+    }
+
+    public ConcurrencyLimiter(LimitAlgorithm algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Take a slot for a request if fewer than the limit are in flight
+     *
+     * @return The number of requests in flight, including this one, or 0 if
+     * the request should be rejected
+     */
+    public int tryAcquire() {
+        int limit = algorithm.getLimit();
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                rejectedCount.incrementAndGet();
+                return 0;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return current + 1;
+            }
+        }
+    }
+
+    /**
+     * Give back the slot of a request and feed its outcome to the algorithm
+     *
+     * @param startNanos - <code>System.nanoTime()</code> when the request was
+     * admitted
+     * @param inFlightAtStart - Value returned by <code>tryAcquire()</code>
+     * @param outcome - How the request ended
+     */
+    public void release(long startNanos, int inFlightAtStart, Outcome outcome) {
+        inFlight.decrementAndGet();
+
+        switch (outcome) {
+            case SUCCESS:
+                algorithm.onSample(System.nanoTime() - startNanos,
+                        inFlightAtStart, false);
+                break;
+            case DROPPED:
+                algorithm.onSample(0, inFlightAtStart, true);
+                break;
+            case IGNORE:
+            default:
+                break;
+        }
+    }
+
+    public int getLimit() {
+        return algorithm.getLimit();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return Number of requests turned away because the limit was reached
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public LimitAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * How a request ended, as far as the limit is concerned
+     */
+    public static enum Outcome {
+        /* Completed, its latency is a valid sample */
+        SUCCESS,
+        /* Dropped or rejected downstream because of overload */
+        DROPPED,
+        /* Failed for other reasons, its latency says nothing about load */
+        IGNORE
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queue of a stage which schedules tasks earliest deadline first. It
+ * holds the parameters of the schedule, the ordering itself is done by
+ * <code>DeadlineThreadPoolExecutor</code>. <br />
+ *
+ * A task is ordered by its deadline plus a fixed delay for each priority
+ * class below 0. Tasks without a deadline are given one, for ordering only,
+ * a default slack after they were queued. Since the offsets are bounded, a
+ * task of any class eventually moves ahead of newer tasks, so low priority
+ * tasks age instead of starving.
+ *
+ * @see DeadlineTask
+ * @author Thejo
+ */
+public class DeadlineQueue extends PriorityBlockingQueue<Runnable> {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final long DEFAULT_SLACK_MILLIS = 1000;
+    public static final long DEFAULT_CLASS_SPACING_MILLIS = 100;
+
+    private final long slackNanos;
+    private final long classSpacingNanos;
+
+    public DeadlineQueue() {
+        this(DEFAULT_SLACK_MILLIS, DEFAULT_CLASS_SPACING_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param slack - Ordering deadline of tasks without a deadline, relative
+     * to the time they were queued
+     * @param classSpacing - Delay added to the deadline of a task for each
+     * priority class
+     * @param unit
+     */
+    public DeadlineQueue(long slack, long classSpacing, TimeUnit unit) {
+        this.slackNanos = unit.toNanos(slack);
+        this.classSpacingNanos = unit.toNanos(classSpacing);
+    }
+
+    public long getSlackNanos() {
+        return slackNanos;
+    }
+
+    public long getClassSpacingNanos() {
+        return classSpacingNanos;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code>StageTask</code> with a deadline relative to the time it was
+ * created, e.g, when the request it serves was read.
+ *
+ * @see DeadlineTask
+ * @author Thejo
+ */
+public abstract class DeadlineStageTask extends StageTask implements DeadlineTask {
+    private final long deadline;
+    private final int priorityClass;
+
+    /**
+     * @param timeout - Time from now after which the task is worthless
+     * @param unit
+     * @param priorityClass - 0 for the most urgent tasks
+     */
+    public DeadlineStageTask(long timeout, TimeUnit unit, int priorityClass) {
+        this.deadline = System.nanoTime() + unit.toNanos(timeout);
+        this.priorityClass = priorityClass;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public int getPriorityClass() {
+        return priorityClass;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+/**
+ * A task (runnable or callable) which is worthless after a point in time.
+ * Stages with a <code>DEADLINE</code> queue run such tasks earliest deadline
+ * first and drop them, without running them, once the deadline has passed.
+ *
+ * @see DeadlineThreadPoolExecutor
+ * @author Thejo
+ */
+public interface DeadlineTask
+{
+    /**
+     * The deadline in terms of <code>System.nanoTime()</code>
+     * @return
+     */
+    public long getDeadline();
+
+    /**
+     * The priority class of the task, 0 being the most urgent. Each class
+     * delays the task by a fixed amount relative to tasks of class 0 with the
+     * same deadline
+     * @return
+     */
+    public int getPriorityClass();
+}
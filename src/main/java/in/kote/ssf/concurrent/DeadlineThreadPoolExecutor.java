@@ -0,0 +1,189 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <i>ThreadPoolExecutor</i> which runs tasks earliest deadline first. <br />
+ *
+ * Every task is queued with an ordering key computed once, when it is
+ * submitted, from its <code>DeadlineTask</code> deadline and priority class
+ * (see <code>DeadlineQueue</code>). Tasks with equal keys run in the order
+ * they were submitted. A task whose deadline has passed by the time a thread
+ * takes it from the queue is not run but handed to the
+ * <code>ExpiredTaskHandler</code>, or cancelled if there is none. Since
+ * expired tasks have the earliest deadlines, they are at the head of the
+ * queue and are cleared out before any live task runs.
+ *
+ * @see DeadlineTask
+ * @author Thejo
+ */
+public final class DeadlineThreadPoolExecutor extends ThreadPoolExecutor {
+    private final long slackNanos_;
+    private final long classSpacingNanos_;
+    private final AtomicLong sequence_ = new AtomicLong();
+    private final AtomicLong expiredCount_ = new AtomicLong();
+    private volatile StageMetrics metrics_;
+    private volatile IStage stage_;
+    private volatile ExpiredTaskHandler expiredHandler_;
+
+    public DeadlineThreadPoolExecutor(int corePoolSize,
+                                      int maximumPoolSize,
+                                      long keepAliveTime,
+                                      TimeUnit unit,
+                                      DeadlineQueue workQueue,
+                                      ThreadFactory threadFactory)
+    {
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory);
+        slackNanos_ = workQueue.getSlackNanos();
+        classSpacingNanos_ = workQueue.getClassSpacingNanos();
+        super.prestartAllCoreThreads();
+    }
+
+    /**
+     * Record latency statistics of every task executed by this executor
+     *
+     * @param metrics
+     */
+    public void setMetrics(StageMetrics metrics) {
+        metrics_ = metrics;
+    }
+
+    /**
+     * Set the callback for tasks which expire in the queue
+     *
+     * @param stage - Stage passed to the handler
+     * @param handler
+     */
+    public void setExpiredTaskHandler(IStage stage, ExpiredTaskHandler handler) {
+        stage_ = stage;
+        expiredHandler_ = handler;
+    }
+
+    /**
+     * @return Number of tasks dropped because their deadline had passed
+     */
+    public long getExpiredCount() {
+        return expiredCount_.get();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        StageMetrics metrics = metrics_;
+        Runnable task = (null == metrics) ? command : metrics.wrap(command);
+
+        long now = System.nanoTime();
+        long deadline;
+        long key;
+        if (command instanceof DeadlineTask) {
+            DeadlineTask deadlineTask = (DeadlineTask) command;
+            deadline = deadlineTask.getDeadline();
+            key = deadline + deadlineTask.getPriorityClass() * classSpacingNanos_;
+        } else {
+            //No deadline, it is only used to order the task
+            deadline = 0;
+            key = now + slackNanos_;
+        }
+
+        super.execute( new DeadlineEntry(task, command instanceof DeadlineTask,
+                deadline, key, sequence_.getAndIncrement()) );
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        if (runnable instanceof DeadlineTask) {
+            return new DeadlineFutureTask<T>(runnable, value, (DeadlineTask) runnable);
+        }
+        return super.newTaskFor(runnable, value);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        if (callable instanceof DeadlineTask) {
+            return new DeadlineFutureTask<T>(callable, (DeadlineTask) callable);
+        }
+        return super.newTaskFor(callable);
+    }
+
+    private void expired(Runnable task) {
+        expiredCount_.incrementAndGet();
+        StageMetrics.discard(task);
+        Runnable original = StageMetrics.unwrap(task);
+
+        ExpiredTaskHandler handler = expiredHandler_;
+        if (handler != null) {
+            handler.expired(stage_, original);
+        } else if (original instanceof Future) {
+            //Don't leave anyone waiting on a task which will never run
+            ((Future<?>) original).cancel(false);
+        }
+    }
+
+    /**
+     * A task in the queue along with its ordering key
+     */
+    private final class DeadlineEntry implements Runnable, Comparable<DeadlineEntry> {
+        private final Runnable task;
+        private final boolean hasDeadline;
+        private final long deadline;
+        private final long key;
+        private final long sequence;
+
+        DeadlineEntry(Runnable task, boolean hasDeadline, long deadline,
+                long key, long sequence) {
+            this.task = task;
+            this.hasDeadline = hasDeadline;
+            this.deadline = deadline;
+            this.key = key;
+            this.sequence = sequence;
+        }
+
+        public void run() {
+            if (hasDeadline && System.nanoTime() - deadline > 0) {
+                expired(task);
+            } else {
+                task.run();
+            }
+        }
+
+        public int compareTo(DeadlineEntry other) {
+            //nanoTime values may wrap, compare the difference
+            long diff = key - other.key;
+            if (diff == 0) {
+                diff = sequence - other.sequence;
+            }
+            return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+        }
+    }
+
+    /**
+     * Keeps the deadline of a callable or runnable submitted for a result
+     */
+    private static final class DeadlineFutureTask<V> extends FutureTask<V>
+            implements DeadlineTask {
+        private final DeadlineTask deadlineTask;
+
+        DeadlineFutureTask(Callable<V> callable, DeadlineTask deadlineTask) {
+            super(callable);
+            this.deadlineTask = deadlineTask;
+        }
+
+        DeadlineFutureTask(Runnable runnable, V result, DeadlineTask deadlineTask) {
+            super(runnable, result);
+            this.deadlineTask = deadlineTask;
+        }
+
+        public long getDeadline() {
+            return deadlineTask.getDeadline();
+        }
+
+        public int getPriorityClass() {
+            return deadlineTask.getPriorityClass();
+        }
+    }
+}
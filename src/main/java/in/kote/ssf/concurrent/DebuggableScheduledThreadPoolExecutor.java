@@ -15,10 +15,44 @@ import java.util.concurrent.*;
  * open sourced by Facebook
  */
 public class DebuggableScheduledThreadPoolExecutor extends ScheduledThreadPoolExecutor {
-    
+    private volatile StageMetrics metrics_;
+
     public DebuggableScheduledThreadPoolExecutor(int threads,
             ThreadFactory threadFactory)
     {
         super(threads, threadFactory);        
     }
+
+    /**
+     * Record latency statistics of every task executed by this executor
+     *
+     * @param metrics
+     */
+    public void setMetrics(StageMetrics metrics) {
+        metrics_ = metrics;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        StageMetrics metrics = metrics_;
+        super.execute( (null == metrics) ? command : metrics.wrap(command) );
+    }
+
+    /**
+     * <i>ScheduledThreadPoolExecutor</i> doesn't route submitted tasks through
+     * <code>execute()</code>. Do that so they are metered as well
+     */
+    @Override
+    public Future<?> submit(Runnable task) {
+        FutureTask<Object> future = new FutureTask<Object>(task, null);
+        execute(future);
+        return future;
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        FutureTask<T> future = new FutureTask<T>(task);
+        execute(future);
+        return future;
+    }
 }
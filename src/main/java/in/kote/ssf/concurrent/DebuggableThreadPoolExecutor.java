@@ -17,6 +17,7 @@ import java.util.concurrent.*;
 
 public final class DebuggableThreadPoolExecutor extends ThreadPoolExecutor
 {
+    private volatile StageMetrics metrics_;
 
     public DebuggableThreadPoolExecutor(int corePoolSize,
             int maximumPoolSize,
@@ -28,4 +29,19 @@ public final class DebuggableThreadPoolExecutor extends ThreadPoolExecutor
         super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory);
         super.prestartAllCoreThreads();
     }
-}
\ No newline at end of file
+
+    /**
+     * Record latency statistics of every task executed by this executor
+     *
+     * @param metrics
+     */
+    public void setMetrics(StageMetrics metrics) {
+        metrics_ = metrics;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        StageMetrics metrics = metrics_;
+        super.execute( (null == metrics) ? command : metrics.wrap(command) );
+    }
+}
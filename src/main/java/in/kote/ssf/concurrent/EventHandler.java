@@ -0,0 +1,26 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+/**
+ * One hop of a <code>Pipeline</code>. The handler consumes an event on the
+ * stage it is attached to and emits the event for the next hop. The same
+ * instance is called concurrently from all threads of the stage.
+ *
+ * @see Pipeline
+ * @author Thejo
+ */
+public interface EventHandler<I, O>
+{
+    /**
+     * Process an event
+     * @param event
+     * @return The event for the next hop, or null to end the flow here, e.g,
+     * because the response has already been written
+     * @throws Exception
+     */
+    public O handle(I event) throws Exception;
+}
@@ -0,0 +1,28 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+/**
+ * Callback for tasks whose deadline passed while they were queued on a stage.
+ * It can reroute the task, e.g, to a stage which answers with a fallback
+ * response, or just release the resources held by the task. <br />
+ *
+ * The callback runs on a thread of the stage instead of the task and should
+ * be quick.
+ *
+ * @see DeadlineTask
+ * @author Thejo
+ */
+public interface ExpiredTaskHandler {
+
+    /**
+     * @param stage - The stage on which the task expired
+     * @param task - The expired task. Tasks submitted as callables are
+     * wrapped in a <code>Future</code>, which the handler should either run
+     * elsewhere or cancel
+     */
+    public void expired(IStage stage, Runnable task);
+}
@@ -0,0 +1,339 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class is an implementation of the <i>IStage</i> interface backed by a
+ * <code>ForkJoinPool</code>. Every thread of the stage has a deque of its own
+ * and idle threads steal work from busy ones, so the threads don't all
+ * contend on one shared queue the way they do in a
+ * <code>MultiThreadedStage</code>. <br />
+ *
+ * Tasks running on the stage can split their work, e.g, scoring many
+ * candidates for a request, with <code>invokeAll()</code> or by forking
+ * <code>ForkJoinTask</code>s of their own. The sub-tasks are pushed onto the
+ * deque of the current thread and taken by idle threads. The stage is meant
+ * for CPU bound tasks, tasks which block on I/O should go to another stage.
+ * <br />
+ *
+ * In async mode the deques are processed in FIFO order, which suits stages
+ * whose tasks are events that are never joined. For details please refer to
+ * the <i>IStage</i> documentation.
+ *
+ * @author Thejo
+ */
+public class ForkJoinStage implements IMeteredStage {
+
+    private String name_;
+    private ForkJoinPool executorService_;
+    private StageMetrics metrics_;
+
+    public ForkJoinStage(String name) {
+        this(name, Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    public ForkJoinStage(String name, int parallelism) {
+        this(name, parallelism, false);
+    }
+
+    /**
+     * @param name - Name of the stage
+     * @param parallelism - Number of threads the stage keeps busy
+     * @param asyncMode - true for FIFO processing of tasks which are not
+     * joined, e.g, event style tasks
+     */
+    public ForkJoinStage(final String name, int parallelism, boolean asyncMode) {
+        name_ = name;
+        metrics_ = new StageMetrics(name);
+
+        ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory =
+                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool
+                        .defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName(name + ":" + (thread.getPoolIndex() + 1));
+                return thread;
+            }
+        };
+
+        executorService_ = new ForkJoinPool(parallelism, threadFactory,
+                null, asyncMode);
+    }
+
+    public String getName() {
+        return name_;
+    }
+
+    public <T> Future<T> execute(Callable<T> callable) {
+        StageAction<T> action = new StageAction<T>(callable, false);
+        executorService_.execute(action);
+        return action;
+    }
+
+    public <T> StageFuture<T> executeAsync(Callable<T> callable) {
+        return StageFuture.supplyOn(this, callable);
+    }
+
+    public void execute(Runnable runnable) {
+        executorService_.execute( new StageAction<Object>(
+                Executors.callable(runnable), true) );
+    }
+
+    public void executeBatch(Collection<? extends Runnable> runnables) {
+        for (Runnable task : CompositeTask.split(runnables,
+                executorService_.getParallelism())) {
+            execute(task);
+        }
+    }
+
+    /**
+     * Run the callables in parallel and wait for all of them to complete. If
+     * called from a task running on this stage, the callables are forked onto
+     * the deque of the calling thread, which runs some of them itself while
+     * the others are stolen by idle threads. Otherwise they are submitted to
+     * the stage.
+     */
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> callable)
+            throws InterruptedException {
+        List<StageAction<T>> actions = newActions(callable);
+
+        if (isStageThread()) {
+            //Fork all but the first, which is run by the calling thread
+            for (int i = actions.size() - 1; i > 0; i--) {
+                actions.get(i).fork();
+            }
+            for (int i = 0; i < actions.size(); i++) {
+                if (i == 0) {
+                    actions.get(i).quietlyInvoke();
+                } else {
+                    actions.get(i).quietlyJoin();
+                }
+            }
+        } else {
+            for (StageAction<T> action : actions) {
+                executorService_.execute(action);
+            }
+            for (StageAction<T> action : actions) {
+                try {
+                    action.get();
+                } catch (ExecutionException ee) {
+                    //Reported through the future
+                } catch (CancellationException ce) {
+                    //Reported through the future
+                }
+            }
+        }
+
+        return new ArrayList<Future<T>>(actions);
+    }
+
+    /**
+     * Run the callables in parallel and wait for all of them to complete or
+     * the timeout to expire, whichever comes first. Callables which haven't
+     * completed by then are cancelled.
+     */
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> callable,
+            long timeout, TimeUnit unit) throws InterruptedException {
+        List<StageAction<T>> actions = newActions(callable);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        if (isStageThread()) {
+            for (StageAction<T> action : actions) {
+                action.fork();
+            }
+        } else {
+            for (StageAction<T> action : actions) {
+                executorService_.execute(action);
+            }
+        }
+
+        try {
+            for (StageAction<T> action : actions) {
+                try {
+                    action.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (ExecutionException ee) {
+                    //Reported through the future
+                } catch (CancellationException ce) {
+                    //Reported through the future
+                }
+            }
+        } catch (TimeoutException te) {
+            for (StageAction<T> action : actions) {
+                action.cancel(false);
+            }
+        }
+
+        return new ArrayList<Future<T>>(actions);
+    }
+
+    /**
+     * Run a fork/join computation on this stage and wait for its result
+     *
+     * @param task
+     * @return The result of the task
+     */
+    public <T> T invoke(ForkJoinTask<T> task) {
+        return executorService_.invoke(task);
+    }
+
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
+    {
+        return HashedTimingWheel.getDefault().schedule(this, command, delay, unit);
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+            long initialDelay, long period, TimeUnit unit) {
+        return HashedTimingWheel.getDefault().scheduleAtFixedRate(this, command,
+                initialDelay, period, unit);
+    }
+
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+            long initialDelay, long delay, TimeUnit unit) {
+        return HashedTimingWheel.getDefault().scheduleWithFixedDelay(this, command,
+                initialDelay, delay, unit);
+    }
+
+    public void shutdown() {
+        executorService_.shutdownNow();
+    }
+
+    public boolean isShutdown()
+    {
+        return executorService_.isShutdown();
+    }
+
+    /**
+     * The number of tasks queued on the stage plus the number of threads
+     * running tasks. This is an estimate, the pool doesn't keep exact counts.
+     */
+    public long getTaskCount(){
+        return executorService_.getQueuedSubmissionCount()
+                + executorService_.getQueuedTaskCount()
+                + executorService_.getActiveThreadCount();
+    }
+
+    public StageMetrics getMetrics() {
+        return metrics_;
+    }
+
+    public int getParallelism() {
+        return executorService_.getParallelism();
+    }
+
+    public boolean isAsyncMode() {
+        return executorService_.getAsyncMode();
+    }
+
+    /**
+     * @return Approximate number of threads running or stealing tasks
+     */
+    public int getActiveCount() {
+        return executorService_.getActiveThreadCount();
+    }
+
+    /**
+     * @return Approximate number of tasks waiting in the deques and the
+     * submission queues of this stage
+     */
+    public int getQueueSize() {
+        return (int) Math.min(Integer.MAX_VALUE,
+                executorService_.getQueuedSubmissionCount()
+                + executorService_.getQueuedTaskCount());
+    }
+
+    /**
+     * @return Number of tasks taken by a thread from the deque of another
+     */
+    public long getStealCount() {
+        return executorService_.getStealCount();
+    }
+
+    private boolean isStageThread() {
+        Thread current = Thread.currentThread();
+        return (current instanceof ForkJoinWorkerThread)
+                && ((ForkJoinWorkerThread) current).getPool() == executorService_;
+    }
+
+    private <T> List<StageAction<T>> newActions(
+            Collection<? extends Callable<T>> callables) {
+        List<StageAction<T>> actions = new ArrayList<StageAction<T>>(callables.size());
+        for (Callable<T> callable : callables) {
+            actions.add( new StageAction<T>(callable, false) );
+        }
+        return actions;
+    }
+
+    /**
+     * Adapts a task submitted through the <i>IStage</i> methods to the pool.
+     * The task is metered like on the other stages. Exceptions thrown by
+     * runnables, whose futures nobody looks at, are logged.
+     */
+    private final class StageAction<T> extends ForkJoinTask<T> {
+        private static final long serialVersionUID = 1L;
+
+        private final Callable<T> callable;
+        private final boolean logFailure;
+        private final Runnable metered;
+        private T result;
+        private volatile boolean started;
+
+        StageAction(Callable<T> callable, boolean logFailure) {
+            this.callable = callable;
+            this.logFailure = logFailure;
+            this.metered = metrics_.wrap(new Runnable() {
+                public void run() {
+                    call();
+                }
+            });
+        }
+
+        public T getRawResult() {
+            return result;
+        }
+
+        protected void setRawResult(T value) {
+            result = value;
+        }
+
+        protected boolean exec() {
+            started = true;
+            metered.run();
+            return true;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && !started) {
+                //Will never run
+                StageMetrics.discard(metered);
+            }
+            return cancelled;
+        }
+
+        private void call() {
+            try {
+                result = callable.call();
+            } catch (RuntimeException ex) {
+                if (!logFailure) {
+                    throw ex;
+                }
+                log.error(ex.toString(), ex);
+            } catch (Exception ex) {
+                //Fails the task rather than throwing through the worker.
+                //exec() returning true afterwards doesn't complete it again
+                completeExceptionally(ex);
+            }
+        }
+    }
+
+    private static final Logger log = Logger.getLogger(ForkJoinStage.class);
+}
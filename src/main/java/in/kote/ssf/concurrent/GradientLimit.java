@@ -0,0 +1,135 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+/**
+ * A limit algorithm driven by the gradient of the latency. <br />
+ *
+ * The latency without load is tracked as the smallest latency seen over the
+ * last few hundred requests and compared with a short term average of the
+ * latency. While the two are within the tolerance, the limit grows by a
+ * small allowance for queueing. Beyond it, the limit is scaled down by their
+ * ratio, at most by half at a time, so that unlike <code>VegasLimit</code>
+ * the limit backs off in proportion to how far latency has risen. Since the
+ * smallest latency is taken over a moving window, it follows latencies which
+ * drift through the day. <br />
+ *
+ * Changes are smoothed so that a single slow request doesn't move the limit
+ * much.
+ *
+ * @author Thejo
+ */
+public class GradientLimit implements LimitAlgorithm {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+    public static final int DEFAULT_MAX_LIMIT = 1000;
+
+    /**
+     * Ratio of the latencies tolerated before the limit is reduced
+     */
+    public static final double DEFAULT_TOLERANCE = 1.5;
+
+    public static final double DEFAULT_SMOOTHING = 0.2;
+
+    private static final int SHORT_WINDOW = 10;
+
+    /**
+     * Number of samples over which the smallest latency is taken
+     */
+    private static final int MIN_WINDOW = 500;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double smoothing;
+    private double limit;
+    private double shortRtt;
+    private long minRtt = Long.MAX_VALUE;
+    private long previousMinRtt = Long.MAX_VALUE;
+    private long samples;
+
+    public GradientLimit() {
+        this(DEFAULT_INITIAL_LIMIT, 1, DEFAULT_MAX_LIMIT);
+    }
+
+    public GradientLimit(int initialLimit, int minLimit, int maxLimit) {
+        this(initialLimit, minLimit, maxLimit, DEFAULT_TOLERANCE,
+                DEFAULT_SMOOTHING);
+    }
+
+    /**
+     * @param initialLimit
+     * @param minLimit
+     * @param maxLimit
+     * @param tolerance - How much higher than the latency without load the
+     * short term latency may go before the limit is reduced, e.g, 1.5
+     * @param smoothing - Weight of a new limit against the current one,
+     * between 0 and 1
+     */
+    public GradientLimit(int initialLimit, int minLimit, int maxLimit,
+            double tolerance, double smoothing) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit
+                || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid limits " + initialLimit
+                    + ", " + minLimit + ", " + maxLimit);
+        }
+        if (tolerance < 1 || smoothing <= 0 || smoothing > 1) {
+            throw new IllegalArgumentException("Invalid tolerance or smoothing");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.smoothing = smoothing;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return The latency taken as the latency without load, in nanoseconds
+     */
+    public synchronized long getNoLoadRttNanos() {
+        long noLoadRtt = Math.min(minRtt, previousMinRtt);
+        return (Long.MAX_VALUE == noLoadRtt) ? 0 : noLoadRtt;
+    }
+
+    public synchronized void onSample(long rttNanos, int inFlight, boolean dropped) {
+        if (dropped) {
+            limit = Math.max(minLimit, limit * (1 - smoothing / 2));
+            return;
+        }
+        if (rttNanos <= 0) {
+            return;
+        }
+
+        samples++;
+        shortRtt = (samples <= SHORT_WINDOW) ?
+                shortRtt + (rttNanos - shortRtt) / samples :
+                shortRtt + (rttNanos - shortRtt) * 2 / (SHORT_WINDOW + 1);
+
+        //The smallest latency of the current and the previous window
+        if (samples % MIN_WINDOW == 0) {
+            previousMinRtt = minRtt;
+            minRtt = Long.MAX_VALUE;
+        }
+        minRtt = Math.min(minRtt, rttNanos);
+        long noLoadRtt = Math.min(minRtt, previousMinRtt);
+
+        if (inFlight * 2 < limit) {
+            //Too few requests to say anything about the limit
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0,
+                tolerance * noLoadRtt / shortRtt));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        newLimit = limit * (1 - smoothing) + newLimit * smoothing;
+
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+}
@@ -0,0 +1,532 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.Comparator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import in.kote.ssf.util.Shutdownable;
+
+/**
+ * A hashed timing wheel as described by Varghese and Lauck, for large numbers
+ * of timers such as per request read timeouts, keep alive expiry and
+ * deadlines. <br />
+ *
+ * Time is divided into ticks and the wheel into a power of two number of
+ * buckets, each holding a doubly linked list of timers. A timer goes into
+ * the bucket of the tick it expires on, along with the number of turns of the
+ * wheel left before then. Adding and cancelling a timer are O(1) and a timer
+ * costs one object. A single thread advances the wheel every tick and expires
+ * the timers of the current bucket. Timers fire up to one tick late. <br />
+ *
+ * Timers are added and cancelled from any thread through lock-free queues,
+ * which the wheel thread drains at every tick, so the buckets themselves are
+ * only ever touched by the wheel thread. <br />
+ *
+ * A timer either runs on the wheel thread, in which case it should be quick
+ * (e.g, close a connection or hand over to a stage), or is handed over to a
+ * stage when it expires. The <code>schedule</code> methods of stages use the
+ * default wheel returned by <code>getDefault()</code>. <br />
+ *
+ * An expired timer is handed over to its stage like any other task, so it is
+ * metered by the stage and carries the <code>Trace</code> which was current
+ * when it was scheduled. If the stage drops or rejects the run, a one shot
+ * timer is cancelled, while a periodic timer skips the run and stays
+ * scheduled till it is cancelled or its stage is shutdown.
+ *
+ * @author Thejo
+ */
+public class HashedTimingWheel implements Shutdownable {
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * Max. number of new timers moved into the wheel in one tick, so a burst
+     * of timers doesn't delay the expiry of others
+     */
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    private final java.util.Queue<WheelTimer<?>> pendingTimers =
+            new ConcurrentLinkedQueue<WheelTimer<?>>();
+    private final java.util.Queue<WheelTimer<?>> cancelledTimers =
+            new ConcurrentLinkedQueue<WheelTimer<?>>();
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final Thread thread;
+    private volatile boolean shutdown;
+    private long tick;
+
+    public HashedTimingWheel(String name) {
+        this(name, DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param name - Name of the wheel thread
+     * @param tickDuration - Resolution of the timers
+     * @param unit
+     * @param wheelSize - Number of buckets, rounded up to a power of two. A
+     * wheel covers <code>tickDuration * wheelSize</code> in one turn, timers
+     * further out stay in their bucket for several turns
+     */
+    public HashedTimingWheel(String name, long tickDuration, TimeUnit unit,
+            int wheelSize) {
+        if (tickDuration <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Invalid tick duration or wheel size");
+        }
+
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+
+        tickNanos = unit.toNanos(tickDuration);
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+
+        startTime = System.nanoTime();
+        thread = new ThreadFactoryImpl(name).newThread(new Worker());
+        //Timers shouldn't keep the process alive
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the wheel shared by all stages
+     *
+     * @return HashedTimingWheel
+     */
+    public static HashedTimingWheel getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    private static final class DefaultHolder {
+        static final HashedTimingWheel INSTANCE = new HashedTimingWheel("TIMING-WHEEL");
+    }
+
+    /**
+     * Run a task on the wheel thread after the given delay
+     *
+     * @param task - Should be quick, it delays all other timers
+     * @param delay
+     * @param unit
+     * @return Future which can be used to cancel the timer
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return schedule(null, task, delay, unit);
+    }
+
+    /**
+     * Execute a task on a stage after the given delay
+     *
+     * @param stage - Stage the task is handed over to when the timer expires
+     * @param task
+     * @param delay
+     * @param unit
+     * @return ScheduledFuture
+     */
+    public ScheduledFuture<?> schedule(IStage stage, Runnable task, long delay,
+            TimeUnit unit) {
+        return add( new WheelTimer<Object>(stage, Executors.callable(task),
+                deadline(delay, unit), 0) );
+    }
+
+    public <V> ScheduledFuture<V> schedule(IStage stage, Callable<V> callable,
+            long delay, TimeUnit unit) {
+        return add( new WheelTimer<V>(stage, callable, deadline(delay, unit), 0) );
+    }
+
+    /**
+     * Execute a task on a stage periodically. Runs which are late don't
+     * shift the following ones
+     */
+    public ScheduledFuture<?> scheduleAtFixedRate(IStage stage, Runnable task,
+            long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Invalid period " + period);
+        }
+
+        return add( new WheelTimer<Object>(stage, Executors.callable(task),
+                deadline(initialDelay, unit), unit.toNanos(period)) );
+    }
+
+    /**
+     * Execute a task on a stage periodically, with the given delay between
+     * the end of a run and the start of the next
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(IStage stage, Runnable task,
+            long initialDelay, long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("Invalid delay " + delay);
+        }
+
+        return add( new WheelTimer<Object>(stage, Executors.callable(task),
+                deadline(initialDelay, unit), -unit.toNanos(delay)) );
+    }
+
+    /**
+     * @return Number of timers which have neither expired nor been cancelled
+     */
+    public long getPendingCount() {
+        return pendingCount.get();
+    }
+
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        thread.interrupt();
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Deadline relative to the start of the wheel
+     */
+    private long deadline(long delay, TimeUnit unit) {
+        return System.nanoTime() + Math.max(0, unit.toNanos(delay)) - startTime;
+    }
+
+    /**
+     * Orders the tasks of a priority queue, with expired timers ahead of the
+     * other tasks, which keep their natural order. A timer can't be compared
+     * with the tasks of the application, or they with it.
+     */
+    static final Comparator<Runnable> TIMERS_FIRST = new Comparator<Runnable>() {
+        @SuppressWarnings("unchecked")
+        public int compare(Runnable r1, Runnable r2) {
+            boolean timer1 = StageMetrics.unwrap(r1) instanceof HashedTimingWheel.Expiry;
+            boolean timer2 = StageMetrics.unwrap(r2) instanceof HashedTimingWheel.Expiry;
+
+            if (timer1 && timer2) {
+                return ((Delayed) StageMetrics.unwrap(r1)).compareTo(
+                        (Delayed) StageMetrics.unwrap(r2));
+            } else if (timer1 || timer2) {
+                return timer1 ? -1 : 1;
+            }
+            return ((Comparable<Object>) r1).compareTo(r2);
+        }
+    };
+
+    private <V> WheelTimer<V> add(WheelTimer<V> timer) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Timing wheel has been shutdown");
+        }
+
+        pendingCount.incrementAndGet();
+        pendingTimers.offer(timer);
+        return timer;
+    }
+
+    /**
+     * The loop run by the wheel thread
+     */
+    private final class Worker implements Runnable {
+
+        public void run() {
+            while (!shutdown) {
+                if (waitForNextTick() < 0) {
+                    break;
+                }
+
+                removeCancelled();
+                transferPending();
+                wheel[(int) (tick & mask)].expire();
+                tick++;
+            }
+
+            //Nothing will fire anymore
+            for (Bucket bucket : wheel) {
+                bucket.cancelAll();
+            }
+            WheelTimer<?> timer;
+            while ((timer = pendingTimers.poll()) != null) {
+                pendingCount.decrementAndGet();
+                timer.cancel(false);
+            }
+        }
+
+        /**
+         * Sleeps until the end of the current tick
+         *
+         * @return Time at the end of the tick relative to the start of the
+         * wheel, or -1 if the wheel has been shutdown
+         */
+        private long waitForNextTick() {
+            long deadline = tickNanos * (tick + 1);
+
+            while (true) {
+                long current = System.nanoTime() - startTime;
+                long sleepMillis = TimeUnit.NANOSECONDS.toMillis(
+                        deadline - current + 999999);
+                if (sleepMillis <= 0) {
+                    return current;
+                }
+
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException ie) {
+                    if (shutdown) {
+                        return -1;
+                    }
+                }
+            }
+        }
+
+        private void transferPending() {
+            for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+                WheelTimer<?> timer = pendingTimers.poll();
+                if (null == timer) {
+                    break;
+                }
+
+                if (timer.isCancelled()) {
+                    pendingCount.decrementAndGet();
+                    continue;
+                }
+
+                long expiryTick = timer.deadline / tickNanos;
+                timer.remainingRounds = (expiryTick - tick) / wheel.length;
+
+                //Timers already due go into the current bucket
+                long ticks = Math.max(expiryTick, tick);
+                wheel[(int) (ticks & mask)].add(timer);
+            }
+        }
+
+        private void removeCancelled() {
+            WheelTimer<?> timer;
+            while ((timer = cancelledTimers.poll()) != null) {
+                if (timer.bucket != null) {
+                    timer.bucket.remove(timer);
+                    pendingCount.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * The list of timers of a bucket. Only used by the wheel thread
+     */
+    private final class Bucket {
+        private WheelTimer<?> head;
+        private WheelTimer<?> tail;
+
+        void add(WheelTimer<?> timer) {
+            timer.bucket = this;
+            if (null == head) {
+                head = tail = timer;
+            } else {
+                tail.next = timer;
+                timer.prev = tail;
+                tail = timer;
+            }
+        }
+
+        void remove(WheelTimer<?> timer) {
+            if (timer.prev != null) {
+                timer.prev.next = timer.next;
+            } else {
+                head = timer.next;
+            }
+
+            if (timer.next != null) {
+                timer.next.prev = timer.prev;
+            } else {
+                tail = timer.prev;
+            }
+
+            timer.prev = timer.next = null;
+            timer.bucket = null;
+        }
+
+        void expire() {
+            WheelTimer<?> timer = head;
+            while (timer != null) {
+                WheelTimer<?> next = timer.next;
+
+                if (timer.isCancelled()) {
+                    remove(timer);
+                    pendingCount.decrementAndGet();
+                } else if (timer.remainingRounds <= 0) {
+                    remove(timer);
+                    pendingCount.decrementAndGet();
+                    timer.expire();
+                } else {
+                    timer.remainingRounds--;
+                }
+
+                timer = next;
+            }
+        }
+
+        void cancelAll() {
+            WheelTimer<?> timer;
+            while ((timer = head) != null) {
+                remove(timer);
+                pendingCount.decrementAndGet();
+                timer.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * A timer along with the task it runs. It is also the future returned to
+     * the caller.
+     */
+    private final class WheelTimer<V> extends FutureTask<V>
+            implements RunnableScheduledFuture<V> {
+        private final IStage stage;
+
+        /**
+         * Positive for fixed rate, negative for fixed delay, 0 for one shot
+         */
+        private final long period;
+        private final Trace trace;
+        volatile long deadline;
+        long remainingRounds;
+        Bucket bucket;
+        WheelTimer<?> prev;
+        WheelTimer<?> next;
+
+        WheelTimer(IStage stage, Callable<V> callable, long deadline, long period) {
+            super(callable);
+            this.stage = stage;
+            this.deadline = deadline;
+            this.period = period;
+            this.trace = Trace.current();
+        }
+
+        /**
+         * Called on the wheel thread when the timer is due
+         */
+        void expire() {
+            Trace previous = Trace.attach(trace);
+            try {
+                if (null == stage) {
+                    run();
+                } else {
+                    handOver();
+                }
+            } finally {
+                Trace.attach(previous);
+            }
+        }
+
+        private void handOver() {
+            Expiry expiry = new Expiry(this);
+            try {
+                stage.execute(expiry);
+            } catch (RejectedExecutionException ree) {
+                log.warn("Stage " + stage.getName() + " rejected a timer", ree);
+                //Tells the timer, unless the stage cancelled it already
+                expiry.cancel(false);
+            }
+        }
+
+        /**
+         * The stage didn't run the timer
+         */
+        void dropped() {
+            if (isPeriodic() && !stage.isShutdown() && !isDone()) {
+                //Skip this run only
+                reschedule();
+            } else {
+                cancel(false);
+            }
+        }
+
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (super.runAndReset()) {
+                reschedule();
+            }
+        }
+
+        private void reschedule() {
+            long now = System.nanoTime() - startTime;
+            deadline = (period > 0) ? deadline + period : now - period;
+            if (!shutdown) {
+                pendingCount.incrementAndGet();
+                pendingTimers.offer(this);
+            } else {
+                cancel(false);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                //Unlinked from its bucket by the wheel thread
+                cancelledTimers.offer(this);
+            }
+            return cancelled;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - (System.nanoTime() - startTime),
+                    TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            long diff = getDelay(TimeUnit.NANOSECONDS)
+                    - other.getDelay(TimeUnit.NANOSECONDS);
+            return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+        }
+    }
+
+    /**
+     * The task handed over to the stage of an expired timer. Unlike the timer
+     * it is cancelled when the stage drops it, which the timer is told about.
+     * It is <i>Delayed</i>, with the delay of its timer, so it can be queued
+     * on stages with a delay queue.
+     */
+    private final class Expiry extends FutureTask<Void> implements Delayed {
+        private final WheelTimer<?> timer;
+
+        Expiry(WheelTimer<?> timer) {
+            super(timer, null);
+            this.timer = timer;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                timer.dropped();
+            }
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return timer.getDelay(unit);
+        }
+
+        public int compareTo(Delayed other) {
+            return timer.compareTo(other);
+        }
+    }
+
+    private static final Logger log = Logger.getLogger(HashedTimingWheel.class);
+}
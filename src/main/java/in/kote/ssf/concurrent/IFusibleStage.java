@@ -0,0 +1,24 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+/**
+ * A stage which can run a task handed over by an upstream stage on the
+ * upstream thread, instead of queueing it, when it is idle.
+ *
+ * @see StageFusion
+ * @author Thejo
+ */
+public interface IFusibleStage extends IStage
+{
+    /**
+     * Run the task on the calling thread if fusion is enabled on this stage,
+     * the stage is idle and the fusion budget of the calling thread allows it
+     * @param runnable
+     * @return true if the task was run, false if it should be queued instead
+     */
+    public boolean tryExecuteInline(Runnable runnable);
+}
@@ -0,0 +1,21 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+/**
+ * A stage which keeps latency and throughput statistics of the tasks it runs.
+ *
+ * @see StageMetrics
+ * @author Thejo
+ */
+public interface IMeteredStage extends IStage
+{
+    /**
+     * Returns the statistics of this stage
+     * @return
+     */
+    public StageMetrics getMetrics();
+}
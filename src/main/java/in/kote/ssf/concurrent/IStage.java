@@ -31,6 +31,17 @@ public interface IStage
      * @param runnable instance whose run() method needs to be invoked.
      */
     public void execute(Runnable runnable);
+
+    /**
+     * This method is used to execute a batch of tasks on this
+     * stage. Implementations try to hand over the batch with as
+     * few queue operations and thread wake ups as possible, e.g,
+     * by running several of the tasks one after the other on the
+     * same thread. No ordering is guaranteed between the tasks.
+     *
+     * @param runnables the tasks to be executed.
+     */
+    public void executeBatch(Collection<? extends Runnable> runnables);
     
     /**
      * This method is used to execute a piece of code on
@@ -43,6 +54,17 @@ public interface IStage
      * @return
      */
     public <T> Future<T> execute(Callable<T> callable);
+
+    /**
+     * This method is used to execute a piece of code on
+     * this stage without blocking a thread on its result.
+     * Continuations can be pinned to other stages with
+     * <i>thenApplyOn()</i>.
+     *
+     * @param callable instance that needs to be invoked.
+     * @return future completed with the result of the callable.
+     */
+    public <T> StageFuture<T> executeAsync(Callable<T> callable);
     
     /**
      * Executes the given tasks, returning a list of Futures holding their
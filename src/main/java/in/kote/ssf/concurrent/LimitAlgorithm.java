@@ -0,0 +1,32 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+/**
+ * Works out how many requests may be in flight at a time from the latencies
+ * of the requests which completed. Implementations are called concurrently
+ * by all threads completing requests.
+ *
+ * @see ConcurrencyLimiter
+ * @author Thejo
+ */
+public interface LimitAlgorithm {
+
+    /**
+     * @return The current limit, at least 1
+     */
+    public int getLimit();
+
+    /**
+     * Update the limit with the outcome of a request
+     *
+     * @param rttNanos - Time from the start of the request to its completion
+     * @param inFlight - Number of requests in flight when it started
+     * @param dropped - true if the request was dropped because of overload,
+     * in which case the latency is meaningless
+     */
+    public void onSample(long rttNanos, int inFlight, boolean dropped);
+}
@@ -0,0 +1,263 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Puts a <code>ConcurrencyLimiter</code> in front of a stage. Typically the
+ * stage registered as <code>Stage.HTTP_SERVER_STAGE</code> is wrapped, so
+ * that servers turn requests away with a 503 as soon as the limit is reached
+ * rather than queueing them. <br />
+ *
+ * A task holds its slot from the time it is submitted until it completes on
+ * the wrapped stage, so the latency fed to the limit algorithm includes the
+ * time spent in the queue. Tasks which the wrapped stage drops are counted
+ * as overload. Tasks which fail with an exception are left out of the
+ * latency samples. Scheduled tasks bypass the limit.
+ *
+ * @see ConcurrencyLimiter
+ * @author Thejo
+ */
+public class LimitedStage implements IMeteredStage {
+
+    private final IStage stage_;
+    private final ConcurrencyLimiter limiter_;
+    private final LimitedExecutor executorService_;
+    private final StageMetrics metrics_;
+
+    public LimitedStage(IStage stage) {
+        this(stage, new ConcurrencyLimiter());
+    }
+
+    public LimitedStage(IStage stage, ConcurrencyLimiter limiter) {
+        stage_ = stage;
+        limiter_ = limiter;
+        executorService_ = new LimitedExecutor();
+        metrics_ = (stage instanceof IMeteredStage) ?
+                ((IMeteredStage) stage).getMetrics() : new StageMetrics(stage.getName());
+    }
+
+    /**
+     * @return The stage behind the limiter
+     */
+    public IStage getStage() {
+        return stage_;
+    }
+
+    public ConcurrencyLimiter getLimiter() {
+        return limiter_;
+    }
+
+    public String getName() {
+        return stage_.getName();
+    }
+
+    public <T> Future<T> execute(Callable<T> callable) {
+        LimitedTask<T> task = new LimitedTask<T>(callable, false);
+        submit(task);
+        return task;
+    }
+
+    public <T> StageFuture<T> executeAsync(Callable<T> callable) {
+        return StageFuture.supplyOn(this, callable);
+    }
+
+    /**
+     * @throws RejectedExecutionException if the concurrency limit has been
+     * reached or the wrapped stage rejects the task
+     */
+    public void execute(Runnable runnable) {
+        submit( new LimitedTask<Object>(runnable) );
+    }
+
+    public void executeBatch(Collection<? extends Runnable> runnables) {
+        for (Runnable runnable : runnables) {
+            execute(runnable);
+        }
+    }
+
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> callable)
+            throws InterruptedException {
+        return executorService_.invokeAll(callable);
+    }
+
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> callable,
+            long timeout, TimeUnit unit) throws InterruptedException {
+        return executorService_.invokeAll(callable, timeout, unit);
+    }
+
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
+    {
+        return stage_.schedule(command, delay, unit);
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+            long initialDelay, long period, TimeUnit unit) {
+        return stage_.scheduleAtFixedRate(command, initialDelay, period, unit);
+    }
+
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+            long initialDelay, long delay, TimeUnit unit) {
+        return stage_.scheduleWithFixedDelay(command, initialDelay, delay, unit);
+    }
+
+    public void shutdown() {
+        stage_.shutdown();
+    }
+
+    public boolean isShutdown()
+    {
+        return stage_.isShutdown();
+    }
+
+    public long getTaskCount(){
+        return stage_.getTaskCount();
+    }
+
+    public StageMetrics getMetrics() {
+        return metrics_;
+    }
+
+    private void submit(LimitedTask<?> task) {
+        int inFlight = limiter_.tryAcquire();
+        if (0 == inFlight) {
+            throw new RejectedExecutionException("Stage " + getName()
+                    + " is at its concurrency limit of " + limiter_.getLimit());
+        }
+
+        task.admitted(inFlight);
+        if (task.isCancelled()) {
+            //Cancelled before it got its slot
+            task.release(ConcurrencyLimiter.Outcome.IGNORE);
+            return;
+        }
+
+        try {
+            stage_.execute(task);
+        } catch (RejectedExecutionException ree) {
+            task.release(ConcurrencyLimiter.Outcome.DROPPED);
+            throw ree;
+        }
+    }
+
+    /**
+     * A task holding a slot of the limiter. The slot is given back when the
+     * task completes, or when it is cancelled, e.g, because the wrapped stage
+     * dropped it from its queue.
+     */
+    private final class LimitedTask<T> extends FutureTask<T> {
+        private final boolean logFailure;
+        private final Runnable runnable;
+        private long startNanos;
+        private int inFlight;
+        private boolean released;
+        private volatile boolean failed;
+
+        LimitedTask(Callable<T> callable, boolean logFailure) {
+            super(callable);
+            this.logFailure = logFailure;
+            this.runnable = null;
+        }
+
+        LimitedTask(Runnable runnable) {
+            super(runnable, null);
+            this.logFailure = true;
+            this.runnable = runnable;
+        }
+
+        synchronized void admitted(int inFlight) {
+            this.startNanos = System.nanoTime();
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            failed = true;
+            if (logFailure) {
+                log.error(t.toString(), t);
+            }
+            super.setException(t);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                release(ConcurrencyLimiter.Outcome.DROPPED);
+
+                //Pass the cancellation on, e.g, to fail a StageFuture
+                if (runnable instanceof Future) {
+                    ((Future<?>) runnable).cancel(false);
+                }
+            } else {
+                release(failed ? ConcurrencyLimiter.Outcome.IGNORE
+                        : ConcurrencyLimiter.Outcome.SUCCESS);
+            }
+        }
+
+        synchronized void release(ConcurrencyLimiter.Outcome outcome) {
+            //Tasks which never got a slot have nothing to give back
+            if (inFlight > 0 && !released) {
+                released = true;
+                limiter_.release(startNanos, inFlight, outcome);
+            }
+        }
+    }
+
+    /**
+     * Adapts the stage to an <code>ExecutorService</code> for
+     * <code>invokeAll</code>
+     */
+    private final class LimitedExecutor extends AbstractExecutorService {
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            return new LimitedTask<T>(callable, false);
+        }
+
+        public void execute(Runnable command) {
+            if (command instanceof LimitedTask) {
+                submit( (LimitedTask<?>) command );
+            } else {
+                LimitedStage.this.execute(command);
+            }
+        }
+
+        public void shutdown() {
+            stage_.shutdown();
+        }
+
+        public List<Runnable> shutdownNow() {
+            stage_.shutdown();
+            return Collections.emptyList();
+        }
+
+        public boolean isShutdown() {
+            return stage_.isShutdown();
+        }
+
+        public boolean isTerminated() {
+            return stage_.isShutdown() && stage_.getTaskCount() == 0;
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!isTerminated()) {
+                if (System.nanoTime() - deadline >= 0) {
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+            return true;
+        }
+    }
+
+    private static final Logger log = Logger.getLogger(LimitedStage.class);
+}
@@ -19,16 +19,19 @@ import java.util.concurrent.*;
  * open sourced by Facebook
  */
 
-public class MultiThreadedScheduledStage implements IStage
+public class MultiThreadedScheduledStage implements IMeteredStage
 {    
     private String name_;
     private DebuggableScheduledThreadPoolExecutor executorService_;
+    private StageMetrics metrics_;
             
     public MultiThreadedScheduledStage(String name, int numThreads)
     {        
         name_ = name;        
+        metrics_ = new StageMetrics(name);
         executorService_ = new DebuggableScheduledThreadPoolExecutor( numThreads,
                 new ThreadFactoryImpl(name) );        
+        executorService_.setMetrics(metrics_);
     }
     
     public String getName() {        
@@ -38,10 +41,21 @@ public class MultiThreadedScheduledStage implements IStage
     public <T> Future<T> execute(Callable<T> callable) {
         return executorService_.submit(callable);
     }
+
+    public <T> StageFuture<T> executeAsync(Callable<T> callable) {
+        return StageFuture.supplyOn(this, callable);
+    }
     
     public void execute(Runnable runnable) {
         executorService_.execute(runnable);
     }
+
+    public void executeBatch(Collection<? extends Runnable> runnables) {
+        for (Runnable task : CompositeTask.split(runnables,
+                executorService_.getCorePoolSize())) {
+            executorService_.execute(task);
+        }
+    }
     
     public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> callable) 
             throws InterruptedException {
@@ -55,7 +69,7 @@ public class MultiThreadedScheduledStage implements IStage
     
     public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
     {
-        throw new UnsupportedOperationException("This operation is not supported");
+        return HashedTimingWheel.getDefault().schedule(this, command, delay, unit);
     }
     
     public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, 
@@ -67,7 +81,8 @@ public class MultiThreadedScheduledStage implements IStage
     
     public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, 
             long initialDelay, long delay, TimeUnit unit) {
-        throw new UnsupportedOperationException("This operation is not supported");
+        return HashedTimingWheel.getDefault().scheduleWithFixedDelay(this, command,
+                initialDelay, delay, unit);
     }
     
     public void shutdown() {  
@@ -83,4 +98,8 @@ public class MultiThreadedScheduledStage implements IStage
         return (executorService_.getTaskCount() 
                 - executorService_.getCompletedTaskCount());
     }
+
+    public StageMetrics getMetrics() {
+        return metrics_;
+    }
 }
\ No newline at end of file
@@ -7,6 +7,7 @@ package in.kote.ssf.concurrent;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class is an implementation of the <i>IStage</i> interface. In particular
@@ -18,10 +19,17 @@ import java.util.concurrent.*;
  * open sourced by Facebook
  */
 
-public class MultiThreadedStage implements IStage
+public class MultiThreadedStage implements IMeteredStage, IFusibleStage
 {    
     private String name_;
     protected ThreadPoolExecutor executorService_;
+    private OverloadRejectedExecutionHandler overloadHandler_;
+    private StageMetrics metrics_;
+    private volatile boolean fusionEnabled_;
+    private volatile int fusionMaxDepth_ = StageFusion.DEFAULT_MAX_DEPTH;
+    private volatile long fusionTimeBudgetNanos_ = TimeUnit.MICROSECONDS.toNanos(
+            StageFusion.DEFAULT_TIME_BUDGET_MICROS);
+    private final AtomicInteger inlineCount_ = new AtomicInteger();
             
     public MultiThreadedStage(String name, int numThreads)
     {
@@ -40,25 +48,71 @@ public class MultiThreadedStage implements IStage
 
     public MultiThreadedStage(String name, int corePoolSize, int maxPoolSize,
             Queue.Type queueType)
+    {
+        this(name, corePoolSize, maxPoolSize, Queue.getQueue(queueType));
+    }
+
+    /**
+     * A stage whose queue holds at most <code>queueCapacity</code> tasks.
+     * Tasks arriving when the queue is full and all <code>maxPoolSize</code>
+     * threads are busy are handled as per the overload policy.
+     */
+    public MultiThreadedStage(String name, int corePoolSize, int maxPoolSize,
+            Queue.Type queueType, int queueCapacity, OverloadPolicy policy)
+    {
+        this(name, corePoolSize, maxPoolSize,
+                Queue.getQueue(queueType, queueCapacity), policy);
+    }
+
+    /**
+     * Use a queue created by the caller, e.g, a <code>RingBufferQueue</code>
+     * with a non default capacity or wait strategy
+     */
+    public MultiThreadedStage(String name, int corePoolSize, int maxPoolSize,
+            BlockingQueue<Runnable> queue)
+    {
+        this(name, corePoolSize, maxPoolSize, queue, OverloadPolicy.REJECT);
+    }
+
+    public MultiThreadedStage(String name, int corePoolSize, int maxPoolSize,
+            BlockingQueue<Runnable> queue, OverloadPolicy policy)
     {
         name_ = name;
-        if(queueType == Queue.Type.PRIORITY_BLOCKING_QUEUE) {
-        executorService_ = new ComparableThreadPoolExecutor( corePoolSize,
+        metrics_ = new StageMetrics(name);
+        if(queue instanceof DeadlineQueue) {
+            DeadlineThreadPoolExecutor executor = new DeadlineThreadPoolExecutor( corePoolSize,
+                    maxPoolSize,
+                    Integer.MAX_VALUE,
+                    TimeUnit.SECONDS,
+                    (DeadlineQueue) queue,
+                    new ThreadFactoryImpl(name)
+            );
+            executor.setMetrics(metrics_);
+            executorService_ = executor;
+        } else if(queue instanceof PriorityBlockingQueue) {
+        ComparableThreadPoolExecutor executor = new ComparableThreadPoolExecutor( corePoolSize,
                 maxPoolSize,
                 Integer.MAX_VALUE,
                 TimeUnit.SECONDS,
-                Queue.getQueue(queueType),
+                queue,
                 new ThreadFactoryImpl(name)
                 );
+        executor.setMetrics(metrics_);
+        executorService_ = executor;
         } else {
-            executorService_ = new DebuggableThreadPoolExecutor( corePoolSize,
+            DebuggableThreadPoolExecutor executor = new DebuggableThreadPoolExecutor( corePoolSize,
                     maxPoolSize,
                     Integer.MAX_VALUE,
                     TimeUnit.SECONDS,
-                    Queue.getQueue(queueType),
+                    queue,
                     new ThreadFactoryImpl(name)
             );
+            executor.setMetrics(metrics_);
+            executorService_ = executor;
         }
+
+        overloadHandler_ = new OverloadRejectedExecutionHandler(this, policy);
+        executorService_.setRejectedExecutionHandler(overloadHandler_);
     }
     
     public String getName() {        
@@ -68,10 +122,86 @@ public class MultiThreadedStage implements IStage
     public <T> Future<T> execute(Callable<T> callable) {
         return executorService_.submit(callable);
     }
+
+    public <T> StageFuture<T> executeAsync(Callable<T> callable) {
+        return StageFuture.supplyOn(this, callable);
+    }
     
     public void execute(Runnable runnable) {
         executorService_.execute(runnable);
     }
+
+    /**
+     * Runs the task on the calling thread if fusion is enabled, the queue is
+     * empty and fewer tasks than the core pool size are running, counting
+     * those already run inline by upstream threads.
+     */
+    public boolean tryExecuteInline(Runnable runnable) {
+        if (!fusionEnabled_ || !executorService_.getQueue().isEmpty()
+                || executorService_.isShutdown()) {
+            return false;
+        }
+
+        if (inlineCount_.incrementAndGet() + executorService_.getActiveCount()
+                > executorService_.getCorePoolSize()) {
+            inlineCount_.decrementAndGet();
+            return false;
+        }
+
+        try {
+            return StageFusion.runInline(runnable, metrics_, fusionMaxDepth_,
+                    fusionTimeBudgetNanos_);
+        } finally {
+            inlineCount_.decrementAndGet();
+        }
+    }
+
+    /**
+     * Let upstream stages run tasks handed over to this stage on their own
+     * threads when this stage is idle
+     *
+     * @param enabled
+     * @see StageFusion
+     */
+    public void setFusionEnabled(boolean enabled) {
+        fusionEnabled_ = enabled;
+    }
+
+    public boolean isFusionEnabled() {
+        return fusionEnabled_;
+    }
+
+    /**
+     * Limit how far a chain of fused stages, through this one, can go on an
+     * upstream thread
+     *
+     * @param maxDepth - Max. number of nested fused hops
+     * @param timeBudget - Max. time since the first fused hop of the chain
+     * @param unit
+     */
+    public void setFusionBudget(int maxDepth, long timeBudget, TimeUnit unit) {
+        fusionMaxDepth_ = maxDepth;
+        fusionTimeBudgetNanos_ = unit.toNanos(timeBudget);
+    }
+
+    /**
+     * Coalesces the batch into a task per thread when the queue is FIFO.
+     * Other queues order or drop tasks by what they are, so each task is
+     * queued on its own there.
+     */
+    public void executeBatch(Collection<? extends Runnable> runnables) {
+        if (!Queue.isFifo(executorService_.getQueue())) {
+            for (Runnable task : runnables) {
+                executorService_.execute(task);
+            }
+            return;
+        }
+
+        for (Runnable task : CompositeTask.split(runnables,
+                executorService_.getCorePoolSize())) {
+            executorService_.execute(task);
+        }
+    }
     
     public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> callable) 
             throws InterruptedException {
@@ -85,17 +215,19 @@ public class MultiThreadedStage implements IStage
     
     public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
     {
-        throw new UnsupportedOperationException("This operation is not supported");
+        return HashedTimingWheel.getDefault().schedule(this, command, delay, unit);
     }
     
     public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, 
             long initialDelay, long period, TimeUnit unit) {
-        throw new UnsupportedOperationException("This operation is not supported");
+        return HashedTimingWheel.getDefault().scheduleAtFixedRate(this, command,
+                initialDelay, period, unit);
     }
     
     public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, 
             long initialDelay, long delay, TimeUnit unit) {
-        throw new UnsupportedOperationException("This operation is not supported");
+        return HashedTimingWheel.getDefault().scheduleWithFixedDelay(this, command,
+                initialDelay, delay, unit);
     }
     
     public void shutdown() {  
@@ -111,4 +243,133 @@ public class MultiThreadedStage implements IStage
         return (executorService_.getTaskCount() 
                 - executorService_.getCompletedTaskCount());
     }
+
+    public StageMetrics getMetrics() {
+        return metrics_;
+    }
+
+    public int getCorePoolSize() {
+        return executorService_.getCorePoolSize();
+    }
+
+    public int getMaxPoolSize() {
+        return executorService_.getMaximumPoolSize();
+    }
+
+    /**
+     * Resize the thread pool of this stage at run time. The max. pool size is
+     * raised if it is smaller than the new core pool size. When shrinking,
+     * excess threads exit once they are idle for the keep alive time.
+     *
+     * @param corePoolSize
+     */
+    public void setCorePoolSize(int corePoolSize) {
+        if (corePoolSize > executorService_.getMaximumPoolSize()) {
+            executorService_.setMaximumPoolSize(corePoolSize);
+        }
+        executorService_.setCorePoolSize(corePoolSize);
+    }
+
+    public void setMaxPoolSize(int maxPoolSize) {
+        if (maxPoolSize < executorService_.getCorePoolSize()) {
+            executorService_.setCorePoolSize(maxPoolSize);
+        }
+        executorService_.setMaximumPoolSize(maxPoolSize);
+    }
+
+    public void setKeepAliveTime(long time, TimeUnit unit) {
+        executorService_.setKeepAliveTime(time, unit);
+    }
+
+    /**
+     * @return Approximate number of threads running tasks
+     */
+    public int getActiveCount() {
+        return executorService_.getActiveCount();
+    }
+
+    /**
+     * @return Number of tasks waiting in the queue of this stage
+     */
+    public int getQueueSize() {
+        return executorService_.getQueue().size();
+    }
+
+    public long getCompletedTaskCount() {
+        return executorService_.getCompletedTaskCount();
+    }
+
+    /**
+     * @return Max. number of tasks the queue of this stage can hold
+     */
+    public int getQueueCapacity() {
+        BlockingQueue<Runnable> queue = executorService_.getQueue();
+        long capacity = (long) queue.size() + queue.remainingCapacity();
+        return (int) Math.min(capacity, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Change the bound of the queue of this stage at run time. Tasks already
+     * queued beyond a lowered bound still run.
+     *
+     * @param queueCapacity
+     * @throws UnsupportedOperationException if the stage wasn't created with
+     * a <code>LINKED_BLOCKING_QUEUE</code>
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        BlockingQueue<Runnable> queue = executorService_.getQueue();
+        if ( !(queue instanceof ResizableLinkedBlockingQueue) ) {
+            throw new UnsupportedOperationException("The queue of stage "
+                    + name_ + " can't be resized");
+        }
+
+        ((ResizableLinkedBlockingQueue<Runnable>) queue).setCapacity(queueCapacity);
+    }
+
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadHandler_.getPolicy();
+    }
+
+    /**
+     * Set the callback for tasks rejected or dropped by this stage, including
+     * those shed by a <code>CODEL</code> queue
+     *
+     * @param handler
+     */
+    public void setOverloadHandler(OverloadHandler handler) {
+        overloadHandler_.setHandler(handler);
+        if (executorService_.getQueue() instanceof CoDelQueue) {
+            ((CoDelQueue) executorService_.getQueue()).setOverloadHandler(this,
+                    handler);
+        }
+    }
+
+    /**
+     * Set the callback for tasks whose deadline passes while they are queued.
+     * Only stages with a <code>DEADLINE</code> queue drop expired tasks.
+     *
+     * @param handler
+     */
+    public void setExpiredTaskHandler(ExpiredTaskHandler handler) {
+        if (executorService_ instanceof DeadlineThreadPoolExecutor) {
+            ((DeadlineThreadPoolExecutor) executorService_)
+                    .setExpiredTaskHandler(this, handler);
+        }
+    }
+
+    /**
+     * @return Number of tasks dropped because their deadline had passed
+     */
+    public long getExpiredCount() {
+        return (executorService_ instanceof DeadlineThreadPoolExecutor) ?
+                ((DeadlineThreadPoolExecutor) executorService_).getExpiredCount() : 0;
+    }
+
+    /**
+     * @return Number of tasks this stage couldn't accept because it was
+     * overloaded
+     */
+    public long getRejectedCount() {
+        return overloadHandler_.getRejectedCount();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+/**
+ * Callback for tasks turned away by an overloaded stage. Typically used to
+ * answer the client of a dropped request right away, e.g, with a 503. <br />
+ *
+ * The callback runs on the thread which submitted the task (or, for dropped
+ * old tasks, the thread which pushed them out) and should be quick.
+ *
+ * @see OverloadPolicy
+ * @author Thejo
+ */
+public interface OverloadHandler {
+
+    /**
+     * @param stage - The overloaded stage
+     * @param task - The task which was rejected or dropped. Tasks submitted as
+     * callables are wrapped in a <code>Future</code> which has already been
+     * cancelled
+     */
+    public void overloaded(IStage stage, Runnable task);
+}
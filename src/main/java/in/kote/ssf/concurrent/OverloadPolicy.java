@@ -0,0 +1,38 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+/**
+ * What a stage with a bounded queue does with a task when the queue is full
+ * and no more threads can be added. Except for <code>CALLER_RUNS</code>, the
+ * <code>OverloadHandler</code> of the stage is told about the task which was
+ * turned away.
+ *
+ * @see OverloadHandler
+ * @author Thejo
+ */
+public enum OverloadPolicy {
+    /**
+     * Throw a <code>RejectedExecutionException</code> back at the caller
+     */
+    REJECT,
+
+    /**
+     * Drop the oldest queued task and queue the new one
+     */
+    DROP_OLDEST,
+
+    /**
+     * Silently drop the new task
+     */
+    DROP_NEWEST,
+
+    /**
+     * Run the new task on the calling thread. This slows down the upstream
+     * stage, which pushes back on its own queue
+     */
+    CALLER_RUNS
+}
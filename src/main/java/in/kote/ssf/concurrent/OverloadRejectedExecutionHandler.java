@@ -0,0 +1,103 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies the <code>OverloadPolicy</code> of a stage to tasks its executor
+ * can't accept and counts them.
+ *
+ * @author Thejo
+ */
+final class OverloadRejectedExecutionHandler implements RejectedExecutionHandler {
+    private final IStage stage;
+    private final OverloadPolicy policy;
+    private volatile OverloadHandler handler;
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    OverloadRejectedExecutionHandler(IStage stage, OverloadPolicy policy) {
+        this.stage = stage;
+        this.policy = policy;
+    }
+
+    void setHandler(OverloadHandler handler) {
+        this.handler = handler;
+    }
+
+    OverloadPolicy getPolicy() {
+        return policy;
+    }
+
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Stage " + stage.getName()
+                    + " has been shutdown");
+        }
+
+        rejectedCount.incrementAndGet();
+
+        switch (policy) {
+            case CALLER_RUNS:
+                task.run();
+                break;
+            case DROP_NEWEST:
+                dropped(task);
+                break;
+            case DROP_OLDEST:
+                Runnable oldest = executor.getQueue().poll();
+                if (null == oldest) {
+                    //Nothing queued to make room with, e.g, a synchronous
+                    //queue or another thread got there first
+                    dropped(task);
+                    break;
+                }
+
+                dropped(oldest);
+                //Going through execute() again could come back here
+                if (!executor.getQueue().offer(task)) {
+                    dropped(task);
+                }
+                break;
+            case REJECT:
+            default:
+                dropped(task);
+                throw new RejectedExecutionException("Stage " + stage.getName()
+                        + " is overloaded");
+        }
+    }
+
+    private void dropped(Runnable task) {
+        StageMetrics.discard(task);
+        Runnable original = StageMetrics.unwrap(task);
+
+        if (original instanceof CompositeTask) {
+            //Every task of a coalesced batch goes with it
+            for (Runnable each : ((CompositeTask) original).getTasks()) {
+                cancel( StageMetrics.unwrap(each) );
+            }
+        } else {
+            cancel(original);
+        }
+    }
+
+    private void cancel(Runnable original) {
+        //Don't leave anyone waiting on a task which will never run
+        if (original instanceof Future) {
+            ((Future<?>) original).cancel(false);
+        }
+
+        OverloadHandler current = handler;
+        if (current != null) {
+            current.overloaded(stage, original);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class is an implementation of the <i>IStage</i> interface made of a
+ * number of lanes, each with a single thread and a queue of its own. Tasks
+ * submitted with a key, e.g, the user id of a request, are always run on the
+ * lane the key hashes to. All the tasks of a key thus run one after the
+ * other, in the order they were submitted, on the same thread. State owned by
+ * a key can be mutated by its tasks without locks and stays in the cache of
+ * that thread. <br />
+ *
+ * Tasks submitted through the plain <i>IStage</i> methods have no key and go
+ * to the lane with the shortest queue. Since a hot key can overload its lane
+ * while the others are idle, the queue size of every lane is available
+ * through <code>getLaneQueueSizes()</code> and JMX. <br />
+ *
+ * Note that with the <code>CALLER_RUNS</code> overload policy a task can run
+ * on the submitting thread, out of order with the tasks queued for its key.
+ *
+ * @author Thejo
+ */
+public class PartitionedStage implements IMeteredStage {
+
+    private String name_;
+    private final DebuggableThreadPoolExecutor[] lanes_;
+    private final LaneExecutor executorService_;
+    private final OverloadRejectedExecutionHandler overloadHandler_;
+    private final StageMetrics metrics_;
+    private final AtomicInteger nextLane_ = new AtomicInteger();
+
+    public PartitionedStage(String name, int laneCount) {
+        this(name, laneCount, Queue.UNBOUNDED, OverloadPolicy.REJECT);
+    }
+
+    /**
+     * @param name - Name of the stage
+     * @param laneCount - Number of lanes, i.e, threads
+     * @param laneQueueCapacity - Max. number of tasks queued on every lane
+     * @param policy - What to do with tasks for a lane whose queue is full
+     */
+    public PartitionedStage(String name, int laneCount, int laneQueueCapacity,
+            OverloadPolicy policy) {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("Invalid lane count " + laneCount);
+        }
+
+        name_ = name;
+        metrics_ = new StageMetrics(name);
+        overloadHandler_ = new OverloadRejectedExecutionHandler(this, policy);
+
+        ThreadFactoryImpl threadFactory = new ThreadFactoryImpl(name);
+        lanes_ = new DebuggableThreadPoolExecutor[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes_[i] = new DebuggableThreadPoolExecutor(1, 1,
+                    Integer.MAX_VALUE, TimeUnit.SECONDS,
+                    Queue.getQueue(Queue.Type.LINKED_BLOCKING_QUEUE,
+                            laneQueueCapacity),
+                    threadFactory);
+            lanes_[i].setMetrics(metrics_);
+            lanes_[i].setRejectedExecutionHandler(overloadHandler_);
+        }
+
+        executorService_ = new LaneExecutor();
+    }
+
+    /**
+     * Returns the lane the tasks of a key run on
+     *
+     * @param key
+     * @return int between 0 and <code>getLaneCount() - 1</code>
+     */
+    public int getLane(Object key) {
+        int h = (null == key) ? 0 : key.hashCode();
+        //Spread the high bits, hash codes of similar keys often differ only there
+        h ^= (h >>> 16);
+        return (h & Integer.MAX_VALUE) % lanes_.length;
+    }
+
+    /**
+     * Run a task on the lane of the given key, after the tasks already
+     * submitted for the key
+     *
+     * @param key
+     * @param runnable
+     */
+    public void execute(Object key, Runnable runnable) {
+        lanes_[getLane(key)].execute(runnable);
+    }
+
+    public <T> Future<T> execute(Object key, Callable<T> callable) {
+        return lanes_[getLane(key)].submit(callable);
+    }
+
+    public String getName() {
+        return name_;
+    }
+
+    public <T> Future<T> execute(Callable<T> callable) {
+        return executorService_.submit(callable);
+    }
+
+    public <T> StageFuture<T> executeAsync(Callable<T> callable) {
+        return StageFuture.supplyOn(this, callable);
+    }
+
+    public void execute(Runnable runnable) {
+        executorService_.execute(runnable);
+    }
+
+    public void executeBatch(Collection<? extends Runnable> runnables) {
+        for (Runnable task : CompositeTask.split(runnables, lanes_.length)) {
+            executorService_.execute(task);
+        }
+    }
+
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> callable)
+            throws InterruptedException {
+        return executorService_.invokeAll(callable);
+    }
+
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> callable,
+            long timeout, TimeUnit unit) throws InterruptedException {
+        return executorService_.invokeAll(callable, timeout, unit);
+    }
+
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
+    {
+        return HashedTimingWheel.getDefault().schedule(this, command, delay, unit);
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+            long initialDelay, long period, TimeUnit unit) {
+        return HashedTimingWheel.getDefault().scheduleAtFixedRate(this, command,
+                initialDelay, period, unit);
+    }
+
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+            long initialDelay, long delay, TimeUnit unit) {
+        return HashedTimingWheel.getDefault().scheduleWithFixedDelay(this, command,
+                initialDelay, delay, unit);
+    }
+
+    public void shutdown() {
+        executorService_.shutdownNow();
+    }
+
+    public boolean isShutdown()
+    {
+        return executorService_.isShutdown();
+    }
+
+    public long getTaskCount(){
+        long taskCount = 0;
+        for (ThreadPoolExecutor lane : lanes_) {
+            taskCount += lane.getTaskCount() - lane.getCompletedTaskCount();
+        }
+        return taskCount;
+    }
+
+    public StageMetrics getMetrics() {
+        return metrics_;
+    }
+
+    public int getLaneCount() {
+        return lanes_.length;
+    }
+
+    /**
+     * @return Number of tasks waiting in the queue of every lane
+     */
+    public int[] getLaneQueueSizes() {
+        int[] sizes = new int[lanes_.length];
+        for (int i = 0; i < lanes_.length; i++) {
+            sizes[i] = lanes_[i].getQueue().size();
+        }
+        return sizes;
+    }
+
+    /**
+     * @return Number of tasks waiting in the queues of all lanes
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for (ThreadPoolExecutor lane : lanes_) {
+            size += lane.getQueue().size();
+        }
+        return size;
+    }
+
+    /**
+     * @return Number of lanes running a task
+     */
+    public int getActiveCount() {
+        int active = 0;
+        for (ThreadPoolExecutor lane : lanes_) {
+            active += lane.getActiveCount();
+        }
+        return active;
+    }
+
+    public long getCompletedTaskCount() {
+        long completed = 0;
+        for (ThreadPoolExecutor lane : lanes_) {
+            completed += lane.getCompletedTaskCount();
+        }
+        return completed;
+    }
+
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadHandler_.getPolicy();
+    }
+
+    /**
+     * Set the callback for tasks rejected or dropped by this stage
+     *
+     * @param handler
+     */
+    public void setOverloadHandler(OverloadHandler handler) {
+        overloadHandler_.setHandler(handler);
+    }
+
+    public long getRejectedCount() {
+        return overloadHandler_.getRejectedCount();
+    }
+
+    /**
+     * Sends tasks without a key to the lane with the shortest queue, so that
+     * callables and <code>invokeAll</code> work as on the other stages
+     */
+    private final class LaneExecutor extends AbstractExecutorService {
+
+        public void execute(Runnable command) {
+            //Start the scan at a different lane every time to break ties
+            int start = (nextLane_.getAndIncrement() & Integer.MAX_VALUE)
+                    % lanes_.length;
+            int best = start;
+            int bestSize = Integer.MAX_VALUE;
+
+            for (int i = 0; i < lanes_.length; i++) {
+                int lane = (start + i) % lanes_.length;
+                int size = lanes_[lane].getQueue().size();
+                if (size < bestSize) {
+                    best = lane;
+                    bestSize = size;
+                }
+            }
+
+            lanes_[best].execute(command);
+        }
+
+        public void shutdown() {
+            for (ThreadPoolExecutor lane : lanes_) {
+                lane.shutdown();
+            }
+        }
+
+        public List<Runnable> shutdownNow() {
+            List<Runnable> pending = new ArrayList<Runnable>();
+            for (ThreadPoolExecutor lane : lanes_) {
+                pending.addAll( lane.shutdownNow() );
+            }
+            return pending;
+        }
+
+        public boolean isShutdown() {
+            return lanes_[0].isShutdown();
+        }
+
+        public boolean isTerminated() {
+            for (ThreadPoolExecutor lane : lanes_) {
+                if (!lane.isTerminated()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            for (ThreadPoolExecutor lane : lanes_) {
+                if (!lane.awaitTermination(deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
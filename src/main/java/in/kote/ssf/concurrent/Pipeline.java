@@ -0,0 +1,190 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A typed flow of events across stages, e.g,
+ * <pre>
+ * Pipeline&lt;CommSocket, Void&gt; pipeline = Pipeline
+ *         .from(acceptStage, CommSocket.class)
+ *         .then(parseStage, parser)
+ *         .then(handleStage, handler);
+ * </pre>
+ * Every hop pairs a stage with an <code>EventHandler</code>. An event
+ * submitted to the pipeline is processed by the handler of the first hop on
+ * its stage and whatever the handler returns is handed over to the next hop,
+ * until the last hop or a handler returning null. <br />
+ *
+ * Instead of every hop creating and submitting a task for the next one, one
+ * carrier object is created per submitted event and re-submitted to each
+ * stage of the flow, so a hop costs no allocation of its own (apart from the
+ * wrapper of a metered stage). Hops whose stage is the same as that of the
+ * previous hop run right away on the same thread, without a hand off, and
+ * so do hops onto idle stages with fusion enabled (see
+ * <code>StageFusion</code>). <br />
+ *
+ * Pipelines are immutable, <code>then()</code> returns a new pipeline, and can
+ * be shared by all threads. If the first stage rejects an event the
+ * <code>RejectedExecutionException</code> is thrown to the caller of
+ * <code>submit()</code>. Events rejected by later stages and exceptions thrown
+ * by handlers are logged and the event is dropped.
+ *
+ * @author Thejo
+ */
+public final class Pipeline<I, O> {
+
+    private final IStage source;
+    private final IStage[] stages;
+    private final EventHandler<?, ?>[] handlers;
+
+    private Pipeline(IStage source) {
+        this(source, new IStage[0], new EventHandler<?, ?>[0]);
+    }
+
+    private Pipeline(IStage source, IStage[] stages,
+            EventHandler<?, ?>[] handlers) {
+        this.source = source;
+        this.stages = stages;
+        this.handlers = handlers;
+    }
+
+    /**
+     * Start a pipeline whose events are submitted by tasks running on the
+     * given stage. The type of the events has to be given explicitly, i.e,
+     * <code>Pipeline.&lt;CommSocket&gt;from(stage)</code>.
+     *
+     * @param source - Stage the events come from. If the first hop is on the
+     * same stage, it runs on the thread calling <code>submit()</code>
+     * @return Pipeline without any hop
+     */
+    public static <T> Pipeline<T, T> from(IStage source) {
+        return new Pipeline<T, T>(source);
+    }
+
+    /**
+     * Start a pipeline whose events of the given type are submitted by tasks
+     * running on the given stage
+     *
+     * @param source
+     * @param type
+     * @return Pipeline without any hop
+     */
+    public static <T> Pipeline<T, T> from(IStage source, Class<T> type) {
+        return new Pipeline<T, T>(source);
+    }
+
+    /**
+     * Add a hop to the pipeline
+     *
+     * @param stage - Stage the handler is run on
+     * @param handler
+     * @return A new pipeline ending with the hop
+     */
+    public <R> Pipeline<I, R> then(IStage stage,
+            EventHandler<? super O, ? extends R> handler) {
+        if (null == stage || null == handler) {
+            throw new IllegalArgumentException("Stage and handler are required");
+        }
+
+        IStage[] newStages = Arrays.copyOf(stages, stages.length + 1);
+        EventHandler<?, ?>[] newHandlers =
+                Arrays.copyOf(handlers, handlers.length + 1);
+        newStages[stages.length] = stage;
+        newHandlers[handlers.length] = handler;
+
+        return new Pipeline<I, R>(source, newStages, newHandlers);
+    }
+
+    /**
+     * Send an event down the pipeline
+     *
+     * @param event
+     * @throws RejectedExecutionException if the stage of the first hop didn't
+     * accept the event
+     */
+    public void submit(I event) {
+        if (stages.length == 0) {
+            throw new IllegalStateException("Pipeline has no hops");
+        }
+
+        Carrier carrier = new Carrier(event);
+        if (stages[0] == source) {
+            carrier.run();
+        } else {
+            stages[0].execute(carrier);
+        }
+    }
+
+    public IStage getSource() {
+        return source;
+    }
+
+    public int getHopCount() {
+        return stages.length;
+    }
+
+    /**
+     * The handlers are chained by <code>then()</code> so that each one accepts
+     * what the previous one returns
+     */
+    @SuppressWarnings("unchecked")
+    private static Object handle(EventHandler<?, ?> handler, Object event)
+            throws Exception {
+        return ((EventHandler<Object, ?>) handler).handle(event);
+    }
+
+    /**
+     * Carries an event from hop to hop. It is the task submitted to every
+     * stage of the flow
+     */
+    private final class Carrier implements Runnable {
+        private Object event;
+        private int hop;
+
+        Carrier(Object event) {
+            this.event = event;
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    event = handle(handlers[hop], event);
+                } catch (Exception ex) {
+                    log.error("Hop " + hop + " on stage " + stages[hop].getName()
+                            + " failed", ex);
+                    return;
+                }
+
+                IStage current = stages[hop];
+                hop++;
+                if (null == event || hop == stages.length) {
+                    return;
+                }
+
+                if (stages[hop] != current) {
+                    handOff();
+                    return;
+                }
+            }
+        }
+
+        private void handOff() {
+            try {
+                StageFusion.execute(stages[hop], this);
+            } catch (RejectedExecutionException ree) {
+                log.warn("Stage " + stages[hop].getName() + " rejected event "
+                        + "at hop " + hop + ", dropping it");
+            }
+        }
+    }
+
+    private static final Logger log = Logger.getLogger(Pipeline.class);
+}
@@ -18,34 +18,118 @@ public class Queue {
         PRIORITY_BLOCKING_QUEUE,
         ARRAY_BLOCKING_QUEUE,
         SYNCHRONOUS_QUEUE,
-        DELAY_QUEUE};
+        DELAY_QUEUE,
+        /* Lock-free ring buffers. They differ in how idle threads wait */
+        RING_BUFFER,
+        RING_BUFFER_YIELDING,
+        RING_BUFFER_BUSY_SPIN,
+        /* Earliest deadline first, see DeadlineThreadPoolExecutor */
+        DEADLINE,
+        /* Controlled delay with adaptive LIFO, see CoDelQueue */
+        CODEL};
+
+    /**
+     * Number of preallocated slots in a ring buffer queue
+     */
+    public static final int DEFAULT_RING_BUFFER_SIZE = 16384;
+
+    /**
+     * Capacity of an array blocking queue when no capacity is given. The
+     * array is allocated upfront, so it can't be unbounded
+     */
+    public static final int DEFAULT_ARRAY_QUEUE_SIZE = 16384;
+
+    /**
+     * Capacity used to ask for an unbounded queue
+     */
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    /**
+     * Checks if a queue hands out tasks in the order they were added without
+     * looking at them. Only the tasks of such a queue can be coalesced, e.g,
+     * by <code>executeBatch()</code>. Priority, deadline and delay queues
+     * order by the task itself and a CoDel queue sheds and reorders tasks
+     * one by one.
+     *
+     * @param queue
+     * @return true for FIFO queues
+     */
+    public static boolean isFifo(BlockingQueue<Runnable> queue) {
+        return queue instanceof LinkedBlockingQueue
+                || queue instanceof LinkedBlockingDeque
+                || queue instanceof ArrayBlockingQueue
+                || queue instanceof SynchronousQueue
+                || queue instanceof RingBufferQueue;
+    }
 
     public static BlockingQueue<Runnable> getQueue(Type type) {
+        return getQueue(type, UNBOUNDED);
+    }
+
+    /**
+     * Create a queue which holds at most <code>capacity</code> tasks. Once
+     * the queue is full, the overload policy of the stage decides what
+     * happens to new tasks. <br />
+     *
+     * Priority, deadline and delay queues can't be bounded and synchronous queues
+     * never hold a task, so the capacity is ignored for them. Array and ring
+     * buffer queues preallocate their capacity and fall back to a default
+     * size when asked to be unbounded.
+     *
+     * @param type
+     * @param capacity - Max. number of queued tasks or <code>UNBOUNDED</code>
+     * @return BlockingQueue<Runnable>
+     */
+    public static BlockingQueue<Runnable> getQueue(Type type, int capacity) {
         BlockingQueue<Runnable> queue = null;
+        int fixedCapacity = (capacity == UNBOUNDED) ?
+                DEFAULT_RING_BUFFER_SIZE : capacity;
         
         switch(type) {
             case LINKED_BLOCKING_QUEUE:
-                queue = new LinkedBlockingQueue<Runnable>();
+                /* Can be re-bounded at run time, e.g, through JMX */
+                queue = new ResizableLinkedBlockingQueue<Runnable>(capacity);
                 break;
             case LINKED_BLOCKING_DEQUE:
-                queue = new LinkedBlockingDeque<Runnable>();
+                queue = new LinkedBlockingDeque<Runnable>(capacity);
                 break;
             case PRIORITY_BLOCKING_QUEUE:
-                queue = new PriorityBlockingQueue<Runnable>();
+                /* Expired timers of the timing wheel go first */
+                queue = new PriorityBlockingQueue<Runnable>(11,
+                        HashedTimingWheel.TIMERS_FIRST);
                 break;
             case ARRAY_BLOCKING_QUEUE:
-                queue = new ArrayBlockingQueue<Runnable>(Integer.MAX_VALUE);
+                queue = new ArrayBlockingQueue<Runnable>( (capacity == UNBOUNDED) ?
+                        DEFAULT_ARRAY_QUEUE_SIZE : capacity );
                 break;
             case SYNCHRONOUS_QUEUE:
                 queue = new SynchronousQueue<Runnable>();
                 break;
+            case DEADLINE:
+                queue = new DeadlineQueue();
+                break;
+            case CODEL:
+                queue = new CoDelQueue(capacity);
+                break;
             case DELAY_QUEUE:
                 /* If a Delay queue is used, the element added to the queue
                  should implement Runnable and Delayed */
                 queue = new DelayQueue();
                 break;
+            case RING_BUFFER:
+                queue = new RingBufferQueue<Runnable>(fixedCapacity,
+                        new BlockingWaitStrategy());
+                break;
+            case RING_BUFFER_YIELDING:
+                queue = new RingBufferQueue<Runnable>(fixedCapacity,
+                        new YieldingWaitStrategy());
+                break;
+            case RING_BUFFER_BUSY_SPIN:
+                queue = new RingBufferQueue<Runnable>(fixedCapacity,
+                        new BusySpinWaitStrategy());
+                break;
             default:
-                queue = new LinkedBlockingQueue<Runnable>();
+                queue = new ResizableLinkedBlockingQueue<Runnable>(capacity);
         }
         
         return queue;
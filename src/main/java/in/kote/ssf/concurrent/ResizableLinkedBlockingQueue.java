@@ -0,0 +1,68 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A linked blocking queue whose capacity can be changed while it is in use,
+ * e.g, to tighten the bound of a stage queue under production load. <br />
+ *
+ * The bound is checked against the current size before an element is added,
+ * so concurrent producers may overshoot it by a few elements. Only the non
+ * blocking <code>offer()</code> (which is what a thread pool executor uses)
+ * and <code>add()</code> honour the bound. Lowering the capacity below the
+ * current size doesn't remove any element, it only refuses new ones until
+ * the queue has drained below the new bound.
+ *
+ * @author Thejo
+ */
+public class ResizableLinkedBlockingQueue<E> extends LinkedBlockingQueue<E> {
+
+    private static final long serialVersionUID = 1L;
+
+    private volatile int capacity_;
+
+    public ResizableLinkedBlockingQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public ResizableLinkedBlockingQueue(int capacity) {
+        super();
+        setCapacity(capacity);
+    }
+
+    public int getCapacity() {
+        return capacity_;
+    }
+
+    /**
+     * Change the max. number of elements the queue holds
+     *
+     * @param capacity
+     */
+    public void setCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid queue capacity "
+                    + capacity);
+        }
+        capacity_ = capacity;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (size() >= capacity_) {
+            return false;
+        }
+
+        return super.offer(e);
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Math.max(0, capacity_ - size());
+    }
+}
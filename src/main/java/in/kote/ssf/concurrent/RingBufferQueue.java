@@ -0,0 +1,271 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer queue backed by a
+ * preallocated ring buffer. Every slot carries a sequence number which tells
+ * producers and consumers whether the slot is free or published, so the only
+ * contended operations are a CAS on the head or the tail counter. Nothing is
+ * allocated per element. <br />
+ *
+ * The capacity is rounded up to a power of two. How threads wait on an empty
+ * or full queue is decided by the <code>WaitStrategy</code>. <br />
+ *
+ * Elements can't be removed from the middle of the queue. <code>remove(Object)
+ * </code> always returns false and the iterator is a weakly consistent
+ * snapshot which doesn't support <code>remove()</code>.
+ *
+ * @see WaitStrategy
+ * @author Thejo
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+    private final PaddedAtomicLong enqueuePosition = new PaddedAtomicLong();
+    private final PaddedAtomicLong dequeuePosition = new PaddedAtomicLong();
+    private final WaitStrategy waitStrategy;
+
+    private final WaitStrategy.Predicate notEmpty = new WaitStrategy.Predicate() {
+        public boolean canProceed() {
+            return !isEmpty();
+        }
+    };
+
+    private final WaitStrategy.Predicate notFull = new WaitStrategy.Predicate() {
+        public boolean canProceed() {
+            return size() < capacity;
+        }
+    };
+
+    public RingBufferQueue(int capacity) {
+        this(capacity, new BlockingWaitStrategy());
+    }
+
+    public RingBufferQueue(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        this.capacity = size;
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<E>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public boolean offer(E e) {
+        if (null == e) {
+            throw new NullPointerException();
+        }
+
+        long position = enqueuePosition.get();
+        int index;
+        for (;;) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) {
+                //The consumer hasn't freed the slot yet. Queue is full
+                return false;
+            } else {
+                position = enqueuePosition.get();
+            }
+        }
+
+        buffer.lazySet(index, e);
+        //Publish. A volatile write so that waiters registered with a
+        //blocking strategy can't miss it
+        sequences.set(index, position + 1);
+        waitStrategy.signal(notEmpty);
+
+        return true;
+    }
+
+    public E poll() {
+        long position = dequeuePosition.get();
+        int index;
+        for (;;) {
+            index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+
+            if (difference == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = dequeuePosition.get();
+            } else if (difference < 0) {
+                //Nothing has been published in this slot. Queue is empty
+                return null;
+            } else {
+                position = dequeuePosition.get();
+            }
+        }
+
+        E e = buffer.get(index);
+        buffer.lazySet(index, null);
+        sequences.set(index, position + mask + 1);
+        waitStrategy.signal(notFull);
+
+        return e;
+    }
+
+    public E peek() {
+        long position = dequeuePosition.get();
+        int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+
+        return buffer.get(index);
+    }
+
+    public void put(E e) throws InterruptedException {
+        offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    public boolean offer(E e, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + nanos;
+        int attempt = 0;
+
+        while (!offer(e)) {
+            if (nanos <= 0) {
+                return false;
+            }
+            waitStrategy.await(notFull, attempt++, nanos);
+            nanos = deadline - System.nanoTime();
+        }
+
+        return true;
+    }
+
+    public E take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + nanos;
+        int attempt = 0;
+
+        E e;
+        while ((e = poll()) == null) {
+            if (nanos <= 0) {
+                return null;
+            }
+            waitStrategy.await(notEmpty, attempt++, nanos);
+            nanos = deadline - System.nanoTime();
+        }
+
+        return e;
+    }
+
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    public int size() {
+        long size = enqueuePosition.get() - dequeuePosition.get();
+        if (size < 0) {
+            return 0;
+        }
+
+        return (int) Math.min(size, capacity);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return enqueuePosition.get() == dequeuePosition.get();
+    }
+
+    /**
+     * Elements can't be removed from the middle of a ring buffer
+     *
+     * @return false
+     */
+    @Override
+    public boolean remove(Object o) {
+        return false;
+    }
+
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+
+        int count = 0;
+        E e;
+        while (count < maxElements && (e = poll()) != null) {
+            c.add(e);
+            count++;
+        }
+
+        return count;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<E>();
+        long start = dequeuePosition.get();
+        long end = enqueuePosition.get();
+
+        for (long position = start; position < end; position++) {
+            int index = (int) (position & mask);
+            E e = buffer.get(index);
+            if (e != null && sequences.get(index) == position + 1) {
+                snapshot.add(e);
+            }
+        }
+
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    /**
+     * An <code>AtomicLong</code> padded to its own cache line so that the
+     * producer and consumer counters don't false share
+     */
+    @SuppressWarnings("serial")
+    private static final class PaddedAtomicLong extends AtomicLong {
+        public volatile long p1, p2, p3, p4, p5, p6 = 7L;
+
+        /**
+         * Prevents the padding from being optimized away
+         */
+        public long sumPaddingToPreventOptimisation() {
+            return p1 + p2 + p3 + p4 + p5 + p6;
+        }
+    }
+}
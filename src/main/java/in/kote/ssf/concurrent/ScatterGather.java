@@ -0,0 +1,263 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import in.kote.ssf.util.LatencyHistogram;
+
+/**
+ * Fans a request out to a number of callables on a stage, e.g, one per
+ * backend, and gathers whatever results are in by a deadline. <br />
+ *
+ * Unlike <code>IStage.invokeAll()</code>, the caller can stop waiting as soon
+ * as a quorum of the callables have succeeded. With hedging enabled, a
+ * callable which hasn't completed after a delay, derived from the latencies
+ * seen so far (e.g, the 95th percentile), is started a second time and the
+ * first of the two to complete wins. A single slow backend then costs about
+ * the hedge delay plus a normal response time instead of its full tail
+ * latency. Hedging only suits callables which are safe to run twice. <br />
+ *
+ * An instance can be shared by all requests of a kind, so that the hedge
+ * delay follows the latencies of the backends they call.
+ *
+ * @author Thejo
+ */
+public class ScatterGather {
+
+    public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+
+    /**
+     * Number of latency samples needed before hedge delays are derived from
+     * them
+     */
+    public static final int MIN_HEDGE_SAMPLES = 20;
+
+    private final IStage stage;
+    private volatile int quorum = Integer.MAX_VALUE;
+    private volatile boolean hedging;
+    private volatile double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+    private volatile long minHedgeDelayNanos;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong hedgeCount = new AtomicLong();
+
+    /**
+     * @param stage - Stage the callables are run on
+     */
+    public ScatterGather(IStage stage) {
+        this.stage = stage;
+    }
+
+    /**
+     * Stop waiting once this many callables have succeeded. Defaults to all
+     * of them
+     *
+     * @param quorum
+     * @return this
+     */
+    public ScatterGather setQuorum(int quorum) {
+        if (quorum < 1) {
+            throw new IllegalArgumentException("Invalid quorum " + quorum);
+        }
+        this.quorum = quorum;
+        return this;
+    }
+
+    /**
+     * Start a second copy of a callable which hasn't completed after the
+     * given percentile of the latencies observed so far. Until enough
+     * latencies have been observed, and whenever the percentile is lower,
+     * the min. delay is used.
+     *
+     * @param percentile - e.g, 0.95
+     * @param minDelay
+     * @param unit
+     * @return this
+     */
+    public ScatterGather setHedging(double percentile, long minDelay,
+            TimeUnit unit) {
+        if (percentile <= 0 || percentile > 1) {
+            throw new IllegalArgumentException("Invalid percentile " + percentile);
+        }
+        this.hedgePercentile = percentile;
+        this.minHedgeDelayNanos = unit.toNanos(minDelay);
+        this.hedging = true;
+        return this;
+    }
+
+    public ScatterGather disableHedging() {
+        this.hedging = false;
+        return this;
+    }
+
+    /**
+     * @return Current delay after which a callable is hedged, in nanoseconds
+     */
+    public long getHedgeDelayNanos() {
+        if (latencies.getCount() < MIN_HEDGE_SAMPLES) {
+            return minHedgeDelayNanos;
+        }
+        return Math.max(minHedgeDelayNanos, latencies.getPercentile(hedgePercentile));
+    }
+
+    /**
+     * @return Number of duplicate callables started so far
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Run the callables on the stage and wait until a quorum of them have
+     * succeeded, all of them have completed or the timeout expires,
+     * whichever comes first.
+     *
+     * @param callables
+     * @param timeout
+     * @param unit
+     * @return Futures in the same order as the callables. Those which hadn't
+     * completed when the call returned are cancelled
+     * @throws InterruptedException
+     */
+    public <T> List<Future<T>> invoke(Collection<? extends Callable<T>> callables,
+            long timeout, TimeUnit unit) throws InterruptedException {
+        long now = System.nanoTime();
+        long deadline = now + unit.toNanos(timeout);
+        boolean hedge = hedging;
+        long hedgeTime = now + getHedgeDelayNanos();
+
+        Gather<T> gather = new Gather<T>();
+        List<Slot<T>> slots = new ArrayList<Slot<T>>(callables.size());
+        for (Callable<T> callable : callables) {
+            Slot<T> slot = new Slot<T>(gather, callable);
+            slots.add(slot);
+            submit(slot);
+        }
+
+        try {
+            synchronized (gather) {
+                while (gather.succeeded < quorum && gather.completed < slots.size()) {
+                    now = System.nanoTime();
+                    if (now - deadline >= 0) {
+                        break;
+                    }
+
+                    if (hedge && now - hedgeTime >= 0) {
+                        hedge = false;
+                        for (Slot<T> slot : slots) {
+                            if (!slot.isDone()) {
+                                hedgeCount.incrementAndGet();
+                                submit(slot);
+                            }
+                        }
+                        continue;
+                    }
+
+                    long waitUntil = (hedge && hedgeTime - deadline < 0) ?
+                            hedgeTime : deadline;
+                    TimeUnit.NANOSECONDS.timedWait(gather,
+                            Math.max(1, waitUntil - now));
+                }
+            }
+        } finally {
+            for (Slot<T> slot : slots) {
+                slot.cancel(false);
+            }
+        }
+
+        return new ArrayList<Future<T>>(slots);
+    }
+
+    private <T> void submit(final Slot<T> slot) {
+        slot.launched.incrementAndGet();
+        try {
+            //A future, so that a stage dropping it when overloaded cancels it
+            stage.execute(new FutureTask<Void>(new Runnable() {
+                public void run() {
+                    slot.attempt();
+                }
+            }, null) {
+                @Override
+                protected void done() {
+                    if (isCancelled()) {
+                        slot.failed( new RejectedExecutionException("Stage "
+                                + stage.getName() + " dropped the task") );
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            slot.failed(ree);
+        }
+    }
+
+    /**
+     * Counts of one fan out, also used as the monitor the caller waits on
+     */
+    private static final class Gather<T> {
+        int succeeded;
+        int completed;
+
+        synchronized void done(boolean success) {
+            completed++;
+            if (success) {
+                succeeded++;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * The result of one callable, completed by whichever of its copies
+     * completes first
+     */
+    private final class Slot<T> extends CompletableFuture<T> {
+        private final Gather<T> gather;
+        private final Callable<T> callable;
+        final AtomicInteger launched = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+
+        Slot(Gather<T> gather, Callable<T> callable) {
+            this.gather = gather;
+            this.callable = callable;
+        }
+
+        void attempt() {
+            if (isDone()) {
+                //The other copy won, or the caller gave up
+                return;
+            }
+
+            long start = System.nanoTime();
+            T value;
+            try {
+                value = callable.call();
+            } catch (Throwable t) {
+                failed(t);
+                return;
+            }
+
+            latencies.record(System.nanoTime() - start);
+            if (complete(value)) {
+                gather.done(true);
+            }
+        }
+
+        void failed(Throwable t) {
+            //Only fail once no copy is left which could still succeed
+            if (failures.incrementAndGet() >= launched.get()) {
+                if (completeExceptionally(t)) {
+                    gather.done(false);
+                }
+            }
+        }
+    }
+}
@@ -18,18 +18,70 @@ import java.util.concurrent.*;
  * open sourced by Facebook
  * 
  */
-public class SingleThreadedStage implements IStage {
+public class SingleThreadedStage implements IMeteredStage {
     
+    /**
+     * The scheduled executor of the stage, null if the stage was created with
+     * a queue type of its own
+     */
     protected DebuggableScheduledThreadPoolExecutor executorService_;
+
+    /**
+     * The executor backed by the queue the stage was created with, e.g, a
+     * deadline or CoDel queue, null for a scheduled stage
+     */
+    private ThreadPoolExecutor queueExecutor_;
     private String name_;
+    private StageMetrics metrics_;
     
     public SingleThreadedStage(String name)
     {
-        executorService_ = new DebuggableScheduledThreadPoolExecutor(1, 
-                new ThreadFactoryImpl(name));       
+        metrics_ = new StageMetrics(name);
+        executorService_ = new DebuggableScheduledThreadPoolExecutor(1,
+                new ThreadFactoryImpl(name));
+        executorService_.setMetrics(metrics_);
+        name_ = name;
+    }
+
+    /**
+     * A single threaded stage backed by the given queue type instead of the
+     * delay queue of a scheduled executor. Periodic tasks on such a stage
+     * are timed by the default <code>HashedTimingWheel</code>.
+     *
+     * @param name
+     * @param queueType
+     */
+    public SingleThreadedStage(String name, Queue.Type queueType)
+    {
+        this(name, Queue.getQueue(queueType));
+    }
+
+    public SingleThreadedStage(String name, BlockingQueue<Runnable> queue)
+    {
+        metrics_ = new StageMetrics(name);
+        if (queue instanceof DeadlineQueue) {
+            DeadlineThreadPoolExecutor executor = new DeadlineThreadPoolExecutor(
+                    1, 1, Integer.MAX_VALUE, TimeUnit.SECONDS, (DeadlineQueue) queue,
+                    new ThreadFactoryImpl(name));
+            executor.setMetrics(metrics_);
+            queueExecutor_ = executor;
+        } else {
+            DebuggableThreadPoolExecutor executor = new DebuggableThreadPoolExecutor(
+                    1, 1, Integer.MAX_VALUE, TimeUnit.SECONDS, queue,
+                    new ThreadFactoryImpl(name));
+            executor.setMetrics(metrics_);
+            queueExecutor_ = executor;
+        }
         name_ = name;
     }
 	
+    /**
+     * @return The executor tasks are run on
+     */
+    private ThreadPoolExecutor executor() {
+        return (null != executorService_) ? executorService_ : queueExecutor_;
+    }
+
     /* Implementing the IStage interface methods */
     
     public String getName()
@@ -38,56 +90,82 @@ public class SingleThreadedStage implements IStage {
     }
     
     public <T> Future<T> execute(Callable<T> callable) {
-        return executorService_.submit(callable);
+        return executor().submit(callable);
+    }
+
+    public <T> StageFuture<T> executeAsync(Callable<T> callable) {
+        return StageFuture.supplyOn(this, callable);
     }
     
     public void execute(Runnable runnable)
     {
-        executorService_.execute(runnable);
+        executor().execute(runnable);
+    }
+
+    public void executeBatch(Collection<? extends Runnable> runnables) {
+        if (null == executorService_ && !Queue.isFifo(executor().getQueue())) {
+            //Let a priority, deadline or CoDel queue see every task
+            for (Runnable task : runnables) {
+                executor().execute(task);
+            }
+            return;
+        }
+
+        for (Runnable task : CompositeTask.split(runnables, 1)) {
+            executor().execute(task);
+        }
     }
 
     public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> callable) 
             throws InterruptedException {
-        return executorService_.invokeAll(callable);
+        return executor().invokeAll(callable);
     }
 
     public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> callable,
             long timeout, TimeUnit unit) throws InterruptedException {
-        return executorService_.invokeAll(callable, timeout, unit);
+        return executor().invokeAll(callable, timeout, unit);
     }
     
     public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
     {
-        //return executorService_.schedule(command, delay, unit);
-        throw new UnsupportedOperationException("This operation is not supported");
+        return HashedTimingWheel.getDefault().schedule(this, command, delay, unit);
     }
     
     public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, 
             long initialDelay, long period, TimeUnit unit)
     {
-        return executorService_.scheduleAtFixedRate(command, initialDelay, 
+        if( null == executorService_ ) {
+            return HashedTimingWheel.getDefault().scheduleAtFixedRate(this, command,
+                    initialDelay, period, unit);
+        }
+
+        return executorService_.scheduleAtFixedRate(command, initialDelay,
                 period, unit);
     }
     
     public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, 
             long initialDelay, long delay, TimeUnit unit)
     {
-        //return executorService_.scheduleWithFixedDelay(command, initialDelay, delay, unit);
-        throw new UnsupportedOperationException("This operation is not supported");
+        return HashedTimingWheel.getDefault().scheduleWithFixedDelay(this, command,
+                initialDelay, delay, unit);
     }
     
     public void shutdown()
     {
-        executorService_.shutdownNow();
+        executor().shutdownNow();
     }
     
     public boolean isShutdown()
     {
-        return executorService_.isShutdown();
+        return executor().isShutdown();
     }    
     
     public long getTaskCount(){
-        return (executorService_.getTaskCount() - 
-                executorService_.getCompletedTaskCount());
+        return (executor().getTaskCount() - 
+                executor().getCompletedTaskCount());
+    }
+
+    public StageMetrics getMetrics() {
+        return metrics_;
     }
 }
@@ -0,0 +1,229 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.log4j.Logger;
+
+import in.kote.ssf.util.Shutdownable;
+
+/**
+ * A feedback driven thread pool controller as described in the SEDA paper.
+ * <br />
+ *
+ * At a fixed interval the controller samples every <code>MultiThreadedStage
+ * </code> registered with the <code>StageManager</code> for its queue length,
+ * throughput and the queueing delay estimated from the two (Little's law). If
+ * the queue is backing up, threads are added to the stage, as long as doing
+ * so keeps improving throughput. If the stage stays idle for a number of
+ * samples, threads are removed one at a time. The pool size is kept within
+ * per stage bounds, which default to the core and max. pool sizes the stage
+ * was created with. <br />
+ *
+ * The controller runs on a stage of its own which is not registered with the
+ * <code>StageManager</code>. It should be shutdown along with the other
+ * <code>Shutdownable</code> tasks of the application.
+ *
+ * @author Thejo
+ */
+public class StageController implements Runnable, Shutdownable {
+
+    public static final String STAGE_CONTROLLER_STAGE = "STAGE-CONTROLLER-STAGE";
+
+    /**
+     * Queue length above which a stage is considered overloaded
+     */
+    public static final int DEFAULT_QUEUE_THRESHOLD = 100;
+
+    /**
+     * Estimated queueing delay above which a stage is considered overloaded
+     */
+    public static final long DEFAULT_TARGET_QUEUE_DELAY_MILLIS = 50;
+
+    /**
+     * Number of consecutive idle samples after which a thread is removed
+     */
+    public static final int DEFAULT_IDLE_SAMPLES = 5;
+
+    /**
+     * Keep alive time set on controlled stages so removed threads exit
+     */
+    public static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private final long interval;
+    private final TimeUnit unit;
+    private int queueThreshold = DEFAULT_QUEUE_THRESHOLD;
+    private long targetQueueDelayMillis = DEFAULT_TARGET_QUEUE_DELAY_MILLIS;
+    private int idleSamples = DEFAULT_IDLE_SAMPLES;
+
+    private final Map<String, int[]> bounds = new ConcurrentHashMap<String, int[]>();
+    private final Map<String, ControlState> states =
+            new ConcurrentHashMap<String, ControlState>();
+    private SingleThreadedStage controllerStage;
+
+    /**
+     * @param interval - Time between two samples of the stages
+     * @param unit
+     */
+    public StageController(long interval, TimeUnit unit) {
+        this.interval = interval;
+        this.unit = unit;
+    }
+
+    /**
+     * Override the default bounds for a stage. Must be called before the
+     * controller first samples the stage.
+     *
+     * @param stageName
+     * @param minThreads
+     * @param maxThreads
+     */
+    public void setBounds(String stageName, int minThreads, int maxThreads) {
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException("Invalid bounds for stage "
+                    + stageName);
+        }
+        bounds.put(stageName, new int[] {minThreads, maxThreads});
+    }
+
+    public void setQueueThreshold(int queueThreshold) {
+        this.queueThreshold = queueThreshold;
+    }
+
+    public void setTargetQueueDelayMillis(long targetQueueDelayMillis) {
+        this.targetQueueDelayMillis = targetQueueDelayMillis;
+    }
+
+    public void setIdleSamples(int idleSamples) {
+        this.idleSamples = idleSamples;
+    }
+
+    public synchronized void start() {
+        if (controllerStage == null) {
+            controllerStage = new SingleThreadedStage(STAGE_CONTROLLER_STAGE);
+            controllerStage.scheduleAtFixedRate(this, interval, interval, unit);
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (controllerStage != null) {
+            controllerStage.shutdown();
+        }
+    }
+
+    /**
+     * One iteration of the control loop
+     */
+    public void run() {
+        try {
+            for (IStage stage : StageManager.getStages()) {
+                if (stage instanceof MultiThreadedStage && !stage.isShutdown()) {
+                    control( (MultiThreadedStage) stage );
+                }
+            }
+        } catch (RuntimeException ex) {
+            //An exception would cancel the periodic task
+            log.error(ex.toString(), ex);
+        }
+    }
+
+    private void control(MultiThreadedStage stage) {
+        long now = System.nanoTime();
+        long completed = stage.getCompletedTaskCount();
+
+        ControlState state = states.get(stage.getName());
+        if (null == state) {
+            int[] stageBounds = bounds.get(stage.getName());
+            if (null == stageBounds) {
+                stageBounds = new int[] {stage.getCorePoolSize(),
+                        Math.max(stage.getCorePoolSize(), stage.getMaxPoolSize())};
+            }
+
+            stage.setKeepAliveTime(IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            states.put(stage.getName(), new ControlState(stageBounds[0],
+                    stageBounds[1], completed, now));
+            return;
+        }
+
+        double throughput = (completed - state.lastCompleted) * 1e9
+                / Math.max(1, now - state.lastSampleTime);
+        int queueLength = stage.getQueueSize();
+        double queueDelayMillis = (throughput > 0) ?
+                (queueLength * 1000.0 / throughput) :
+                (queueLength > 0 ? Double.MAX_VALUE : 0);
+
+        int poolSize = stage.getCorePoolSize();
+        int newPoolSize = poolSize;
+
+        if (queueLength > queueThreshold
+                || queueDelayMillis > targetQueueDelayMillis) {
+            state.idleSamples = 0;
+
+            //Adding threads last time didn't help, e.g, the stage is bound
+            //by a downstream resource. Hold for one interval
+            if (state.grew && throughput <= state.lastThroughput) {
+                state.grew = false;
+            } else if (poolSize < state.maxThreads) {
+                newPoolSize = Math.min(state.maxThreads,
+                        poolSize + Math.max(1, poolSize / 4));
+                state.grew = true;
+            }
+        } else {
+            state.grew = false;
+
+            if (queueLength == 0 && stage.getActiveCount() < poolSize) {
+                state.idleSamples++;
+            } else {
+                state.idleSamples = 0;
+            }
+
+            if (state.idleSamples >= idleSamples && poolSize > state.minThreads) {
+                newPoolSize = poolSize - 1;
+                state.idleSamples = 0;
+            }
+        }
+
+        if (poolSize < state.minThreads) {
+            newPoolSize = state.minThreads;
+        }
+
+        if (newPoolSize != poolSize) {
+            stage.setCorePoolSize(newPoolSize);
+            log.info("Resized stage " + stage.getName() + " from " + poolSize
+                    + " to " + newPoolSize + " threads (queue: " + queueLength
+                    + ", throughput: " + (long) throughput + "/s)");
+        }
+
+        state.lastCompleted = completed;
+        state.lastSampleTime = now;
+        state.lastThroughput = throughput;
+    }
+
+    /**
+     * What the controller remembers about a stage between samples
+     */
+    private static final class ControlState {
+        final int minThreads;
+        final int maxThreads;
+        long lastCompleted;
+        long lastSampleTime;
+        double lastThroughput;
+        boolean grew;
+        int idleSamples;
+
+        ControlState(int minThreads, int maxThreads, long lastCompleted,
+                long lastSampleTime) {
+            this.minThreads = minThreads;
+            this.maxThreads = maxThreads;
+            this.lastCompleted = lastCompleted;
+            this.lastSampleTime = lastSampleTime;
+        }
+    }
+
+    private static final Logger log = Logger.getLogger(StageController.class);
+}
@@ -0,0 +1,99 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Hands tasks over from one stage to the next, fusing the two when the next
+ * stage is idle. <br />
+ *
+ * A hand off through the queue of a stage costs a queue insert, waking up a
+ * thread and running the task on a cold cache. When the next stage has fusion
+ * enabled, an empty queue and threads to spare, the task is run right away on
+ * the current thread instead. The stages stay separate as far as the
+ * application is concerned, only the context switch goes away. <br />
+ *
+ * To keep a chain of fused stages from holding on to the thread of the first
+ * stage for too long, every thread has a budget: a max. depth of fused hops
+ * and a max. time since the first hop of the chain was fused. Beyond that,
+ * tasks are queued as usual. Under load the queues of the stages fill up and
+ * fusion stops by itself.
+ *
+ * @see IFusibleStage
+ * @author Thejo
+ */
+public final class StageFusion {
+
+    public static final int DEFAULT_MAX_DEPTH = 4;
+    public static final long DEFAULT_TIME_BUDGET_MICROS = 1000;
+
+    /**
+     * Depth of the current chain of fused hops and the time it started
+     */
+    private static final ThreadLocal<long[]> chain = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    private StageFusion() {
+    }
+
+    /**
+     * Hand a task over to a stage, running it on the current thread if the
+     * stage allows it
+     *
+     * @param stage
+     * @param runnable
+     */
+    public static void execute(IStage stage, Runnable runnable) {
+        if (stage instanceof IFusibleStage
+                && ((IFusibleStage) stage).tryExecuteInline(runnable)) {
+            return;
+        }
+
+        stage.execute(runnable);
+    }
+
+    /**
+     * Run a task inline if the budget of the current thread allows it
+     *
+     * @param runnable
+     * @param metrics - Statistics of the stage the task was handed over to
+     * @param maxDepth
+     * @param timeBudgetNanos
+     * @return true if the task was run
+     */
+    static boolean runInline(Runnable runnable, StageMetrics metrics,
+            int maxDepth, long timeBudgetNanos) {
+        long[] state = chain.get();
+        long now = System.nanoTime();
+
+        if (state[0] >= maxDepth
+                || (state[0] > 0 && now - state[1] > timeBudgetNanos)) {
+            return false;
+        }
+
+        if (state[0]++ == 0) {
+            state[1] = now;
+        }
+
+        try {
+            metrics.wrap(runnable).run();
+        } catch (RuntimeException ex) {
+            //Don't fail the upstream task
+            log.error(ex.toString(), ex);
+        } finally {
+            state[0]--;
+        }
+
+        return true;
+    }
+
+    private static final Logger log = Logger.getLogger(StageFusion.class);
+}
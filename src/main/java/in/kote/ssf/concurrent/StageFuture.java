@@ -0,0 +1,216 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * A <code>CompletableFuture</code> whose continuations can be pinned to a
+ * stage, e.g,
+ * <pre>
+ * stage.executeAsync(lookup)
+ *         .thenApplyOn(Stage.RESPONSE_STAGE, render)
+ *         .thenAcceptOn(writeStage, write);
+ * </pre>
+ * A continuation is handed over to its stage once the previous step has
+ * completed, so no thread is parked waiting on <code>get()</code>. If the
+ * previous step failed, the continuation is skipped and the failure is
+ * passed on. A continuation rejected by its stage, or dropped from its
+ * queue when the stage is overloaded, fails with a
+ * <code>RejectedExecutionException</code>. <br />
+ *
+ * The usual <code>CompletableFuture</code> methods can be used as well, with
+ * <code>executor(stage)</code> for the async ones.
+ *
+ * @see IStage#executeAsync(Callable)
+ * @author Thejo
+ */
+public class StageFuture<T> extends CompletableFuture<T> {
+
+    /**
+     * Run a callable on a stage
+     *
+     * @param stage
+     * @param callable
+     * @return Future completed with the result of the callable
+     * @throws RejectedExecutionException if the stage didn't accept the task
+     */
+    public static <T> StageFuture<T> supplyOn(IStage stage,
+            final Callable<T> callable) {
+        final StageFuture<T> future = new StageFuture<T>();
+
+        stage.execute( new Step<T>(stage, future, callable) );
+
+        return future;
+    }
+
+    /**
+     * Adapts a stage to an <code>Executor</code>, for the async methods of
+     * <code>CompletableFuture</code>
+     *
+     * @param stage
+     * @return Executor
+     */
+    public static Executor executor(final IStage stage) {
+        return new Executor() {
+            public void execute(Runnable command) {
+                stage.execute(command);
+            }
+        };
+    }
+
+    /**
+     * Apply a function to the result of this future on the given stage
+     *
+     * @param stage
+     * @param fn
+     * @return Future completed with the result of the function
+     */
+    public <U> StageFuture<U> thenApplyOn(final IStage stage,
+            final Function<? super T, ? extends U> fn) {
+        final StageFuture<U> next = new StageFuture<U>();
+
+        whenComplete(new BiConsumer<T, Throwable>() {
+            public void accept(final T value, Throwable failure) {
+                if (failure != null) {
+                    next.completeExceptionally(failure);
+                    return;
+                }
+
+                continueOn(stage, next, new Callable<U>() {
+                    public U call() {
+                        return fn.apply(value);
+                    }
+                });
+            }
+        });
+
+        return next;
+    }
+
+    /**
+     * Apply a function to the result of this future on the stage registered
+     * with the <code>StageManager</code> under the given name
+     */
+    public <U> StageFuture<U> thenApplyOn(String stageName,
+            Function<? super T, ? extends U> fn) {
+        return thenApplyOn(lookup(stageName), fn);
+    }
+
+    /**
+     * Consume the result of this future on the given stage
+     *
+     * @param stage
+     * @param action
+     * @return Future completed once the action has run
+     */
+    public StageFuture<Void> thenAcceptOn(IStage stage,
+            final Consumer<? super T> action) {
+        return thenApplyOn(stage, new Function<T, Void>() {
+            public Void apply(T value) {
+                action.accept(value);
+                return null;
+            }
+        });
+    }
+
+    public StageFuture<Void> thenAcceptOn(String stageName,
+            Consumer<? super T> action) {
+        return thenAcceptOn(lookup(stageName), action);
+    }
+
+    /**
+     * Start another asynchronous step, e.g, a call to a remote service, on
+     * the given stage with the result of this future
+     *
+     * @param stage
+     * @param fn - Returns the stage of the next step
+     * @return Future completed with the result of the next step
+     */
+    public <U> StageFuture<U> thenComposeOn(IStage stage,
+            final Function<? super T, ? extends CompletionStage<U>> fn) {
+        final StageFuture<U> next = new StageFuture<U>();
+
+        thenApplyOn(stage, fn).whenComplete(
+                new BiConsumer<CompletionStage<U>, Throwable>() {
+            public void accept(CompletionStage<U> step, Throwable failure) {
+                if (failure != null) {
+                    next.completeExceptionally(failure);
+                    return;
+                }
+
+                step.whenComplete(new BiConsumer<U, Throwable>() {
+                    public void accept(U value, Throwable stepFailure) {
+                        if (stepFailure != null) {
+                            next.completeExceptionally(stepFailure);
+                        } else {
+                            next.complete(value);
+                        }
+                    }
+                });
+            }
+        });
+
+        return next;
+    }
+
+    private static IStage lookup(String stageName) {
+        IStage stage = StageManager.getStage(stageName);
+        if (null == stage) {
+            throw new IllegalArgumentException("No stage registered as "
+                    + stageName);
+        }
+        return stage;
+    }
+
+    private static <U> void continueOn(IStage stage, final StageFuture<U> next,
+            final Callable<U> step) {
+        try {
+            stage.execute( new Step<U>(stage, next, step) );
+        } catch (RejectedExecutionException ree) {
+            next.completeExceptionally(ree);
+        }
+    }
+
+    /**
+     * The task which completes a future on a stage. It is a
+     * <code>Future</code> itself, so that a stage which drops it from its
+     * queue when overloaded cancels it, which fails the future with a
+     * <code>RejectedExecutionException</code> instead of leaving it pending.
+     */
+    private static final class Step<U> extends FutureTask<Void> {
+        private final String stageName;
+        private final StageFuture<U> future;
+
+        Step(IStage stage, final StageFuture<U> future, final Callable<U> callable) {
+            super(new Runnable() {
+                public void run() {
+                    if (future.isDone()) {
+                        //Cancelled while queued
+                        return;
+                    }
+
+                    try {
+                        future.complete(callable.call());
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                }
+            }, null);
+            this.stageName = stage.getName();
+            this.future = future;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) {
+                future.completeExceptionally( new RejectedExecutionException(
+                        "Stage " + stageName + " dropped the task") );
+            }
+        }
+    }
+}
@@ -5,8 +5,10 @@
 
 package in.kote.ssf.concurrent;
 
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class manages all stages that exist within a process. The application registers
@@ -20,16 +22,19 @@ import java.util.Map;
 
 public class StageManager
 {
-    private static Map<String, IStage > stageQueues_ = new HashMap<String, IStage>();
+    private static Map<String, IStage > stageQueues_ =
+            new ConcurrentHashMap<String, IStage>();
 
     /**
-     * Register a stage with the StageManager
+     * Register a stage with the StageManager. The stage is also exposed
+     * through JMX by a <i>StageMonitor</i>.
      * @param stageName stage name.
      * @param stage stage for the respective message types.
      */
     public static void registerStage(String stageName, IStage stage)
     {
         stageQueues_.put(stageName, stage);
+        StageMonitor.register(stageName, stage);
     }
 
     /**
@@ -41,6 +46,15 @@ public class StageManager
         return stageQueues_.get(stageName);
     }
 
+    /**
+     * Retrieve all registered stages
+     * @return an unmodifiable view of the registered stages
+     */
+    public static Collection<IStage> getStages()
+    {
+        return Collections.unmodifiableCollection(stageQueues_.values());
+    }
+
     /**
      * Deregister a stage from StageManager
      * @param stageName stage name.
@@ -48,6 +62,7 @@ public class StageManager
     public static void deregisterStage(String stageName)
     {
         stageQueues_.remove(stageName);
+        StageMonitor.unregister(stageName);
     }
 
     /**
@@ -61,6 +76,25 @@ public class StageManager
         return stageQueues_.get(stage).getTaskCount();
     }
 
+    /**
+     * This method returns a snapshot of the latency and throughput
+     * statistics of a stage. Counters are cumulative, the rate over an
+     * interval is computed from two snapshots with
+     * <code>Snapshot.getRate(previous)</code>.
+     * @param stage name of the stage
+     * @return null if the stage doesn't keep statistics
+     */
+    public static StageMetrics.Snapshot getStageMetrics(String stage)
+    {
+        IStage registeredStage = stageQueues_.get(stage);
+        if ( !(registeredStage instanceof IMeteredStage) )
+        {
+            return null;
+        }
+
+        return ((IMeteredStage) registeredStage).getMetrics().snapshot();
+    }
+
     /**
      * This method shuts down all registered stages.
      */
@@ -0,0 +1,407 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import in.kote.ssf.util.LatencyHistogram;
+
+/**
+ * Latency and throughput statistics of a stage. <br />
+ *
+ * Every task entering a metered stage is wrapped in a <code>MeteredTask</code>
+ * which remembers when it was queued. When a stage thread picks it up, the
+ * time spent in the queue and then the time spent running are recorded in
+ * histograms, and the task is counted as completed. The difference between
+ * submitted and completed (or dropped) tasks is the number of tasks in flight.
+ * <br />
+ *
+ * Metering costs one small allocation and a few counter updates per task. It
+ * can be switched off per stage with <code>setEnabled(false)</code>. <br />
+ *
+ * The wrapper also carries the <code>Trace</code> of a sampled request from
+ * the submitting thread to the stage thread, and records when the task was
+ * queued, started and finished on the stage. Traced tasks are wrapped for
+ * this even when metering is switched off.
+ *
+ * @see IMeteredStage
+ * @author Thejo
+ */
+public class StageMetrics {
+
+    private final String stageName;
+    private final String queuedPoint;
+    private final String startPoint;
+    private final String endPoint;
+    private volatile boolean enabled = true;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+
+    private final long createdAt = System.nanoTime();
+
+    public StageMetrics(String stageName) {
+        this.stageName = stageName;
+        this.queuedPoint = stageName + ".queued";
+        this.startPoint = stageName + ".start";
+        this.endPoint = stageName + ".end";
+    }
+
+    public String getStageName() {
+        return stageName;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Wrap a task which is about to be queued on the stage. Returns the task
+     * itself if it has already been wrapped, or if metering is switched off
+     * and no <code>Trace</code> is current. With metering switched off a
+     * traced task is still wrapped, to carry its trace, but isn't counted.
+     * Delayed tasks are wrapped in a task which is <i>Delayed</i> as well, so
+     * they can still be queued on a delay queue. Their queueing delay counts
+     * from when they are due.
+     *
+     * @param task
+     * @return Runnable to be queued instead of the task
+     */
+    public Runnable wrap(Runnable task) {
+        if (task instanceof MeteredTask) {
+            return task;
+        }
+
+        boolean metered = enabled;
+        Trace trace = Trace.current();
+        if (!metered && null == trace) {
+            return task;
+        }
+
+        if (metered) {
+            submitted.increment();
+        }
+        if (task instanceof Delayed) {
+            return new DelayedMeteredTask(task, trace, metered);
+        }
+        return new ComparableMeteredTask(task, trace, metered);
+    }
+
+    /**
+     * Returns the task wrapped by <code>wrap()</code>, or the task itself if it
+     * isn't wrapped
+     *
+     * @param task
+     * @return Runnable
+     */
+    public static Runnable unwrap(Runnable task) {
+        if (task instanceof MeteredTask) {
+            return ((MeteredTask) task).task;
+        }
+
+        return task;
+    }
+
+    /**
+     * Account for a wrapped task which will never run because the stage
+     * dropped or rejected it
+     *
+     * @param task
+     */
+    public static void discard(Runnable task) {
+        if (task instanceof MeteredTask && ((MeteredTask) task).metered) {
+            ((MeteredTask) task).metrics().dropped.increment();
+        }
+    }
+
+    /**
+     * Count tasks queued on the stage without being wrapped, e.g, the items of
+     * a <code>BatchingStage</code>
+     *
+     * @param count
+     */
+    public void recordSubmitted(int count) {
+        if (enabled) {
+            submitted.add(count);
+        }
+    }
+
+    /**
+     * Record a number of tasks processed together in the given time
+     *
+     * @param count
+     * @param serviceNanos
+     */
+    public void recordCompleted(int count, long serviceNanos) {
+        if (enabled) {
+            serviceTime.record(serviceNanos);
+            completed.add(count);
+        }
+    }
+
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    public long getCompletedCount() {
+        return completed.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return Number of tasks queued or running on the stage
+     */
+    public long getInFlightCount() {
+        return Math.max(0, submitted.sum() - completed.sum() - dropped.sum());
+    }
+
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    public LatencyHistogram getServiceTime() {
+        return serviceTime;
+    }
+
+    /**
+     * Take a snapshot of the statistics. Counters in a snapshot are
+     * cumulative and taking one doesn't change any state, so any number of
+     * callers (e.g, JMX and a <code>StageController</code>) can take
+     * snapshots. Each caller computes rates against its own previous
+     * snapshot, see <code>Snapshot.getRate(Snapshot)</code>.
+     *
+     * @return Snapshot
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    public void reset() {
+        queueWait.reset();
+        serviceTime.reset();
+    }
+
+    /**
+     * A task which records its own queueing delay and service time, unless
+     * it only carries a trace
+     */
+    abstract class MeteredTask implements Runnable {
+        final Runnable task;
+        final boolean metered;
+        private final long enqueueTime;
+        private final Trace trace;
+
+        MeteredTask(Runnable task, long delayNanos, Trace trace,
+                boolean metered) {
+            this.task = task;
+            this.metered = metered;
+            long now = System.nanoTime();
+            this.enqueueTime = now + Math.max(0, delayNanos);
+            this.trace = trace;
+            Tracer.record(trace, queuedPoint, now);
+        }
+
+        StageMetrics metrics() {
+            return StageMetrics.this;
+        }
+
+        public void run() {
+            long start = System.nanoTime();
+            if (metered) {
+                queueWait.record( Math.max(0, start - enqueueTime) );
+            }
+
+            Trace previous = null;
+            if (trace != null) {
+                Tracer.record(trace, startPoint, start);
+                previous = Trace.attach(trace);
+            }
+
+            try {
+                task.run();
+            } finally {
+                long end = System.nanoTime();
+                if (metered) {
+                    serviceTime.record(end - start);
+                    completed.increment();
+                }
+
+                if (trace != null) {
+                    Tracer.record(trace, endPoint, end);
+                    Trace.attach(previous);
+                }
+            }
+        }
+    }
+
+    private final class ComparableMeteredTask extends MeteredTask
+            implements Comparable<Object> {
+
+        ComparableMeteredTask(Runnable task, Trace trace, boolean metered) {
+            super(task, 0, trace, metered);
+        }
+
+        /**
+         * Keeps the order of the wrapped tasks on priority queues
+         */
+        @SuppressWarnings("unchecked")
+        public int compareTo(Object other) {
+            return ((Comparable<Object>) task).compareTo( unwrap((Runnable) other) );
+        }
+    }
+
+    private final class DelayedMeteredTask extends MeteredTask
+            implements Delayed {
+
+        DelayedMeteredTask(Runnable task, Trace trace, boolean metered) {
+            super(task, ((Delayed) task).getDelay(TimeUnit.NANOSECONDS), trace,
+                    metered);
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return ((Delayed) task).getDelay(unit);
+        }
+
+        public int compareTo(Delayed other) {
+            Object original = (other instanceof Runnable) ?
+                    unwrap((Runnable) other) : other;
+            return ((Delayed) task).compareTo( (Delayed) original );
+        }
+    }
+
+    /**
+     * A point in time view of the statistics of a stage. Latencies are in
+     * microseconds
+     */
+    public static final class Snapshot {
+        private final String stageName;
+        private final long submitted;
+        private final long completed;
+        private final long dropped;
+        private final long inFlight;
+        private final long since;
+        private final long time;
+        private final long[] queueWait;
+        private final long[] serviceTime;
+        private final double meanServiceTime;
+
+        Snapshot(StageMetrics metrics) {
+            this.time = System.nanoTime();
+            this.since = metrics.createdAt;
+            this.stageName = metrics.stageName;
+            this.submitted = metrics.getSubmittedCount();
+            this.completed = metrics.getCompletedCount();
+            this.dropped = metrics.getDroppedCount();
+            this.inFlight = metrics.getInFlightCount();
+            this.queueWait = percentiles(metrics.queueWait);
+            this.serviceTime = percentiles(metrics.serviceTime);
+            this.meanServiceTime = metrics.serviceTime.getMean() / 1000;
+        }
+
+        private static long[] percentiles(LatencyHistogram histogram) {
+            return new long[] {
+                TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(0.5)),
+                TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(0.99)),
+                TimeUnit.NANOSECONDS.toMicros(histogram.getPercentile(0.999))
+            };
+        }
+
+        public String getStageName() {
+            return stageName;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+
+        public long getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * @return Tasks completed per second since the metrics were created
+         */
+        public double getRate() {
+            return getRate(null);
+        }
+
+        /**
+         * @param previous - An earlier snapshot of the same stage, or null
+         * @return Tasks completed per second since the previous snapshot
+         */
+        public double getRate(Snapshot previous) {
+            long startTime = (null == previous) ? since : previous.time;
+            long startCompleted = (null == previous) ? 0 : previous.completed;
+            return (completed - startCompleted) * 1e9
+                    / Math.max(1, time - startTime);
+        }
+
+        /**
+         * @return When the snapshot was taken, in <code>System.nanoTime()</code>
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public long getQueueWaitP50() {
+            return queueWait[0];
+        }
+
+        public long getQueueWaitP99() {
+            return queueWait[1];
+        }
+
+        public long getQueueWaitP999() {
+            return queueWait[2];
+        }
+
+        public long getServiceTimeP50() {
+            return serviceTime[0];
+        }
+
+        public long getServiceTimeP99() {
+            return serviceTime[1];
+        }
+
+        public long getServiceTimeP999() {
+            return serviceTime[2];
+        }
+
+        public double getMeanServiceTime() {
+            return meanServiceTime;
+        }
+
+        @Override
+        public String toString() {
+            return stageName + " [rate: " + (long) getRate() + "/s, in flight: "
+                    + inFlight + ", completed: " + completed + ", dropped: "
+                    + dropped + ", queue wait p50/p99/p999: " + queueWait[0]
+                    + "/" + queueWait[1] + "/" + queueWait[2]
+                    + "us, service p50/p99/p999: " + serviceTime[0] + "/"
+                    + serviceTime[1] + "/" + serviceTime[2] + "us]";
+        }
+    }
+}
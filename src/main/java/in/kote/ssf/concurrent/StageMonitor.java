@@ -0,0 +1,261 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.*;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Exposes a stage through JMX so that it can be watched and tuned without
+ * restarting the server. The <code>StageManager</code> registers one of these
+ * for every stage under the name <code>in.kote.ssf:type=Stage,name=...</code>.
+ * <br />
+ *
+ * The thread pool and queue bound of a <code>MultiThreadedStage</code> can be
+ * changed at run time. Note that if a <code>StageController</code> is running,
+ * it keeps resizing the pool within its own bounds. <br />
+ *
+ * For a <code>LimitedStage</code> the attributes are those of the stage
+ * behind the limiter, along with the state of the limiter.
+ *
+ * @author Thejo
+ */
+public class StageMonitor implements StageMonitorMBean {
+
+    public static final String DOMAIN = "in.kote.ssf";
+
+    private final IStage stage;
+    private final ConcurrencyLimiter limiter;
+
+    public StageMonitor(IStage stage) {
+        if (stage instanceof LimitedStage) {
+            this.stage = ((LimitedStage) stage).getStage();
+            this.limiter = ((LimitedStage) stage).getLimiter();
+        } else {
+            this.stage = stage;
+            this.limiter = null;
+        }
+    }
+
+    /**
+     * The name under which the MBean of a stage is registered
+     *
+     * @param stageName
+     * @return ObjectName
+     */
+    public static ObjectName getObjectName(String stageName) {
+        try {
+            return new ObjectName(DOMAIN + ":type=Stage,name="
+                    + ObjectName.quote(stageName));
+        } catch (MalformedObjectNameException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    /**
+     * Register the MBean of a stage with the platform MBean server, replacing
+     * the one of a stage previously registered under the same name. Failures
+     * are logged, the stage works without being managed.
+     *
+     * @param stageName
+     * @param stage
+     */
+    static void register(String stageName, IStage stage) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = getObjectName(stageName);
+
+        try {
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StageMonitor(stage), name);
+        } catch (JMException ex) {
+            log.warn("Unable to register MBean for stage " + stageName, ex);
+        }
+    }
+
+    static void unregister(String stageName) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            server.unregisterMBean( getObjectName(stageName) );
+        } catch (InstanceNotFoundException ex) {
+            //Never registered
+        } catch (JMException ex) {
+            log.warn("Unable to unregister MBean for stage " + stageName, ex);
+        }
+    }
+
+    public String getName() {
+        return stage.getName();
+    }
+
+    public String getStageClass() {
+        return stage.getClass().getName();
+    }
+
+    public long getTaskCount() {
+        return stage.getTaskCount();
+    }
+
+    public int getQueueSize() {
+        if (stage instanceof MultiThreadedStage) {
+            return ((MultiThreadedStage) stage).getQueueSize();
+        } else if (stage instanceof ForkJoinStage) {
+            return ((ForkJoinStage) stage).getQueueSize();
+        } else if (stage instanceof PartitionedStage) {
+            return ((PartitionedStage) stage).getQueueSize();
+        }
+
+        return -1;
+    }
+
+    public int getQueueCapacity() {
+        return (stage instanceof MultiThreadedStage) ?
+                ((MultiThreadedStage) stage).getQueueCapacity() : -1;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        multiThreadedStage().setQueueCapacity(queueCapacity);
+        log.info("Queue capacity of stage " + stage.getName() + " set to "
+                + queueCapacity);
+    }
+
+    public int getActiveCount() {
+        if (stage instanceof MultiThreadedStage) {
+            return ((MultiThreadedStage) stage).getActiveCount();
+        } else if (stage instanceof VirtualThreadStage) {
+            return ((VirtualThreadStage) stage).getActiveCount();
+        } else if (stage instanceof ForkJoinStage) {
+            return ((ForkJoinStage) stage).getActiveCount();
+        } else if (stage instanceof PartitionedStage) {
+            return ((PartitionedStage) stage).getActiveCount();
+        }
+
+        return -1;
+    }
+
+    public long getCompletedTaskCount() {
+        if (stage instanceof MultiThreadedStage) {
+            return ((MultiThreadedStage) stage).getCompletedTaskCount();
+        } else if (stage instanceof IMeteredStage) {
+            return ((IMeteredStage) stage).getMetrics().getCompletedCount();
+        }
+
+        return -1;
+    }
+
+    public long getRejectedCount() {
+        if (stage instanceof MultiThreadedStage) {
+            return ((MultiThreadedStage) stage).getRejectedCount();
+        } else if (stage instanceof PartitionedStage) {
+            return ((PartitionedStage) stage).getRejectedCount();
+        }
+
+        return -1;
+    }
+
+    public int getConcurrencyLimit() {
+        return (null == limiter) ? -1 : limiter.getLimit();
+    }
+
+    public int getInFlightCount() {
+        return (null == limiter) ? -1 : limiter.getInFlight();
+    }
+
+    public long getLimitRejectedCount() {
+        return (null == limiter) ? -1 : limiter.getRejectedCount();
+    }
+
+    public int[] getLaneQueueSizes() {
+        return (stage instanceof PartitionedStage) ?
+                ((PartitionedStage) stage).getLaneQueueSizes() : new int[0];
+    }
+
+    public long getDroppedCount() {
+        return (stage instanceof IMeteredStage) ?
+                ((IMeteredStage) stage).getMetrics().getDroppedCount() : -1;
+    }
+
+    public int getCorePoolSize() {
+        return (stage instanceof MultiThreadedStage) ?
+                ((MultiThreadedStage) stage).getCorePoolSize() : -1;
+    }
+
+    public void setCorePoolSize(int corePoolSize) {
+        multiThreadedStage().setCorePoolSize(corePoolSize);
+        log.info("Core pool size of stage " + stage.getName() + " set to "
+                + corePoolSize);
+    }
+
+    public int getMaxPoolSize() {
+        return (stage instanceof MultiThreadedStage) ?
+                ((MultiThreadedStage) stage).getMaxPoolSize() : -1;
+    }
+
+    public void setMaxPoolSize(int maxPoolSize) {
+        multiThreadedStage().setMaxPoolSize(maxPoolSize);
+        log.info("Max. pool size of stage " + stage.getName() + " set to "
+                + maxPoolSize);
+    }
+
+    public void resize(int corePoolSize, int maxPoolSize) {
+        if (corePoolSize < 1 || maxPoolSize < corePoolSize) {
+            throw new IllegalArgumentException("Invalid pool sizes "
+                    + corePoolSize + ", " + maxPoolSize);
+        }
+
+        MultiThreadedStage multiThreadedStage = multiThreadedStage();
+        if (maxPoolSize >= multiThreadedStage.getCorePoolSize()) {
+            multiThreadedStage.setMaxPoolSize(maxPoolSize);
+            multiThreadedStage.setCorePoolSize(corePoolSize);
+        } else {
+            multiThreadedStage.setCorePoolSize(corePoolSize);
+            multiThreadedStage.setMaxPoolSize(maxPoolSize);
+        }
+        log.info("Stage " + stage.getName() + " resized to " + corePoolSize
+                + "/" + maxPoolSize + " threads");
+    }
+
+    public long getQueueWaitP99Micros() {
+        if ( !(stage instanceof IMeteredStage) ) {
+            return -1;
+        }
+
+        return TimeUnit.NANOSECONDS.toMicros( ((IMeteredStage) stage)
+                .getMetrics().getQueueWait().getPercentile(0.99) );
+    }
+
+    public long getServiceTimeP99Micros() {
+        if ( !(stage instanceof IMeteredStage) ) {
+            return -1;
+        }
+
+        return TimeUnit.NANOSECONDS.toMicros( ((IMeteredStage) stage)
+                .getMetrics().getServiceTime().getPercentile(0.99) );
+    }
+
+    public void resetMetrics() {
+        if (stage instanceof IMeteredStage) {
+            ((IMeteredStage) stage).getMetrics().reset();
+        }
+    }
+
+    private MultiThreadedStage multiThreadedStage() {
+        if ( !(stage instanceof MultiThreadedStage) ) {
+            throw new UnsupportedOperationException("Stage " + stage.getName()
+                    + " can't be resized");
+        }
+
+        return (MultiThreadedStage) stage;
+    }
+
+    private static final Logger log = Logger.getLogger(StageMonitor.class);
+}
@@ -0,0 +1,92 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+/**
+ * The JMX management interface of a stage. Attributes which don't apply to
+ * the kind of stage being managed read as -1.
+ *
+ * @see StageMonitor
+ * @author Thejo
+ */
+public interface StageMonitorMBean
+{
+    public String getName();
+
+    public String getStageClass();
+
+    /**
+     * Number of tasks submitted to the stage which haven't completed yet
+     * @return
+     */
+    public long getTaskCount();
+
+    public int getQueueSize();
+
+    public int getQueueCapacity();
+
+    /**
+     * Change the bound of the stage queue. Only stages created with a
+     * <code>LINKED_BLOCKING_QUEUE</code> support this
+     * @param queueCapacity
+     */
+    public void setQueueCapacity(int queueCapacity);
+
+    public int getActiveCount();
+
+    public long getCompletedTaskCount();
+
+    public long getRejectedCount();
+
+    public long getDroppedCount();
+
+    /**
+     * Current limit of a <code>LimitedStage</code>, -1 for other stages
+     * @return
+     */
+    public int getConcurrencyLimit();
+
+    public int getInFlightCount();
+
+    /**
+     * Number of tasks turned away by the limiter of a
+     * <code>LimitedStage</code>, -1 for other stages
+     * @return
+     */
+    public long getLimitRejectedCount();
+
+    /**
+     * Queue size of every lane of a <code>PartitionedStage</code>, empty for
+     * other stages
+     * @return
+     */
+    public int[] getLaneQueueSizes();
+
+    public int getCorePoolSize();
+
+    public void setCorePoolSize(int corePoolSize);
+
+    public int getMaxPoolSize();
+
+    public void setMaxPoolSize(int maxPoolSize);
+
+    public long getQueueWaitP99Micros();
+
+    public long getServiceTimeP99Micros();
+
+    /**
+     * Change both pool sizes at once, in the order which keeps the core
+     * pool size within the max. pool size
+     * @param corePoolSize
+     * @param maxPoolSize
+     */
+    public void resize(int corePoolSize, int maxPoolSize);
+
+    /**
+     * Clear the latency histograms of the stage
+     */
+    public void resetMetrics();
+}
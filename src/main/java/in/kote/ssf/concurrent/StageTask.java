@@ -22,4 +22,15 @@ public abstract class StageTask implements Runnable  {
     public void setNextStage(IStage nextStage) {
         this.nextStage = nextStage;
     }
+
+    /**
+     * Hand a task over to the next stage. If the next stage has fusion
+     * enabled and is idle, the task runs right away on the current thread.
+     *
+     * @param task
+     * @see StageFusion
+     */
+    protected void executeNext(Runnable task) {
+        StageFusion.execute(nextStage, task);
+    }
 }
@@ -0,0 +1,36 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+/**
+ * The threads created by <code>ThreadFactoryImpl</code>. Every thread owns a
+ * <code>ThreadArena</code> which tasks running on it reach through
+ * <code>ThreadArena.current()</code> without a thread local lookup. The
+ * current <code>Trace</code> is kept the same way.
+ *
+ * @author Thejo
+ */
+public class StageThread extends Thread {
+
+    private final ThreadArena arena_ = new ThreadArena();
+    private Trace trace_;
+
+    public StageThread(ThreadGroup group, Runnable runnable, String name) {
+        super(group, runnable, name);
+    }
+
+    public ThreadArena getArena() {
+        return arena_;
+    }
+
+    Trace getTrace() {
+        return trace_;
+    }
+
+    void setTrace(Trace trace) {
+        trace_ = trace;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of free lists of scratch objects owned by a single thread. Hot path
+ * code, e.g, request parsing, borrows byte buffers, string builders, output
+ * streams and its own objects from the arena of the current thread and
+ * releases them once done, so that in the steady state a request doesn't
+ * allocate them again. Since an arena is only ever used by its thread, no
+ * synchronization is needed. <br />
+ *
+ * Threads created by <code>ThreadFactoryImpl</code> carry their arena with
+ * them, other threads get one through a thread local. Borrowing and releasing
+ * must be balanced by the caller. An object which is not released, e.g,
+ * because it is handed over to another stage, is simply left to the garbage
+ * collector. Objects which have grown larger than the retention limits are
+ * not kept either, so a single big request doesn't pin its memory to the
+ * thread for good.
+ *
+ * @see StageThread
+ * @author Thejo
+ */
+public final class ThreadArena {
+
+    /**
+     * Max. number of objects of every kind kept by an arena
+     */
+    public static final int MAX_RETAINED_OBJECTS = 8;
+
+    /**
+     * Byte buffers and streams larger than this are not kept
+     */
+    public static final int MAX_RETAINED_BYTES = 1024 * 1024;
+
+    /**
+     * String builders with a larger capacity than this are not kept
+     */
+    public static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+    private static final ThreadLocal<ThreadArena> arenas = new ThreadLocal<ThreadArena>() {
+        @Override
+        protected ThreadArena initialValue() {
+            return new ThreadArena();
+        }
+    };
+
+    private static final AtomicInteger nextRecyclerId = new AtomicInteger();
+
+    /**
+     * Resets string builders and drops those which have grown too large
+     */
+    private static final Recycler<StringBuilder> STRING_BUILDERS =
+            new Recycler<StringBuilder>() {
+        protected StringBuilder newObject() {
+            return new StringBuilder(256);
+        }
+
+        protected boolean reset(StringBuilder builder) {
+            if (builder.capacity() > MAX_RETAINED_CHARS) {
+                return false;
+            }
+            builder.setLength(0);
+            return true;
+        }
+    };
+
+    private static final Recycler<ByteStream> BYTE_STREAMS =
+            new Recycler<ByteStream>() {
+        protected ByteStream newObject() {
+            return new ByteStream();
+        }
+
+        protected boolean reset(ByteStream stream) {
+            if (stream.capacity() > MAX_RETAINED_BYTES) {
+                return false;
+            }
+            stream.reset();
+            return true;
+        }
+    };
+
+    private final byte[][] buffers = new byte[MAX_RETAINED_OBJECTS][];
+    private int bufferCount;
+    private Object[][] pools = new Object[4][];
+    private int[] poolSizes = new int[4];
+    private long missCount;
+
+    /**
+     * @return The arena of the current thread
+     */
+    public static ThreadArena current() {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof StageThread) {
+            return ((StageThread) thread).getArena();
+        }
+        return arenas.get();
+    }
+
+    /**
+     * Borrow a byte buffer of at least the given size. The contents of the
+     * buffer are undefined.
+     *
+     * @param minSize
+     * @return
+     */
+    public byte[] borrowBuffer(int minSize) {
+        //Prefer the most recently released buffer, it is likely in the cache
+        for (int i = bufferCount - 1; i >= 0; i--) {
+            byte[] buffer = buffers[i];
+            if (buffer.length >= minSize) {
+                buffers[i] = buffers[--bufferCount];
+                buffers[bufferCount] = null;
+                return buffer;
+            }
+        }
+
+        missCount++;
+        return new byte[minSize];
+    }
+
+    public void releaseBuffer(byte[] buffer) {
+        if (buffer.length > MAX_RETAINED_BYTES) {
+            return;
+        }
+
+        if (bufferCount < buffers.length) {
+            buffers[bufferCount++] = buffer;
+        } else {
+            //Keep the larger buffers, they satisfy more requests
+            int smallest = 0;
+            for (int i = 1; i < bufferCount; i++) {
+                if (buffers[i].length < buffers[smallest].length) {
+                    smallest = i;
+                }
+            }
+            if (buffers[smallest].length < buffer.length) {
+                buffers[smallest] = buffer;
+            }
+        }
+    }
+
+    /**
+     * @return An empty string builder
+     */
+    public StringBuilder borrowStringBuilder() {
+        return borrow(STRING_BUILDERS);
+    }
+
+    public void releaseStringBuilder(StringBuilder builder) {
+        release(STRING_BUILDERS, builder);
+    }
+
+    /**
+     * @return An empty output stream
+     */
+    public ByteStream borrowOutputStream() {
+        return borrow(BYTE_STREAMS);
+    }
+
+    public void releaseOutputStream(ByteStream stream) {
+        release(BYTE_STREAMS, stream);
+    }
+
+    /**
+     * Borrow an object managed by the given recycler, a new one is created if
+     * none is available
+     *
+     * @param recycler
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T borrow(Recycler<T> recycler) {
+        int id = recycler.id;
+        if (id < poolSizes.length && poolSizes[id] > 0) {
+            Object[] pool = pools[id];
+            int size = --poolSizes[id];
+            T object = (T) pool[size];
+            pool[size] = null;
+            return object;
+        }
+
+        missCount++;
+        return recycler.newObject();
+    }
+
+    /**
+     * Return an object to the arena. The object must not be used by the
+     * caller any more.
+     *
+     * @param recycler - The recycler the object was borrowed with
+     * @param object
+     */
+    public <T> void release(Recycler<T> recycler, T object) {
+        if (null == object || !recycler.reset(object)) {
+            return;
+        }
+
+        int id = recycler.id;
+        if (id >= poolSizes.length) {
+            int length = Math.max(id + 1, poolSizes.length * 2);
+            pools = Arrays.copyOf(pools, length);
+            poolSizes = Arrays.copyOf(poolSizes, length);
+        }
+        if (null == pools[id]) {
+            pools[id] = new Object[MAX_RETAINED_OBJECTS];
+        }
+
+        if (poolSizes[id] < MAX_RETAINED_OBJECTS) {
+            pools[id][poolSizes[id]++] = object;
+        }
+    }
+
+    /**
+     * @return Number of times an object had to be allocated because none was
+     * available in the arena. Stops growing once the thread reaches its
+     * steady state
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Creates and resets the objects of one kind kept in arenas. Recyclers
+     * are meant to be static, every instance gets a slot in all arenas.
+     */
+    public static abstract class Recycler<T> {
+        private final int id = nextRecyclerId.getAndIncrement();
+
+        protected abstract T newObject();
+
+        /**
+         * Clear the state of an object being released
+         *
+         * @param object
+         * @return false if the object should not be kept, e.g, it is too large
+         */
+        protected abstract boolean reset(T object);
+    }
+
+    /**
+     * A <code>ByteArrayOutputStream</code> whose contents can be read without
+     * copying them
+     */
+    public static final class ByteStream extends ByteArrayOutputStream {
+
+        public ByteStream() {
+            super(256);
+        }
+
+        /**
+         * @return The internal buffer, valid up to <code>size()</code>
+         */
+        public byte[] getBuffer() {
+            return buf;
+        }
+
+        public int capacity() {
+            return buf.length;
+        }
+    }
+}
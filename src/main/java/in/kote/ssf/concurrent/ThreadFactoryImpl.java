@@ -11,7 +11,8 @@ import java.util.concurrent.atomic.*;
 /**
  * This class is an implementation of the <i>ThreadFactory</i> interface. This 
  * is useful to give Java threads meaningful names which is useful when using 
- * a tool like JConsole. <br />
+ * a tool like JConsole. The threads are <code>StageThread</code>s, each
+ * with a <code>ThreadArena</code> of its own. <br />
  * 
  * This code is originally from the 
  * <a href="http://code.google.com/p/the-cassandra-project/">Cassandra project</a> 
@@ -35,7 +36,7 @@ public class ThreadFactoryImpl implements ThreadFactory
     public Thread newThread(Runnable runnable)
     {        
         String name = id_ + ":" + threadNbr_.getAndIncrement();       
-        Thread thread = new Thread(threadGroup_, runnable, name);        
+        Thread thread = new StageThread(threadGroup_, runnable, name);        
         return thread;
     }
 }
\ No newline at end of file
@@ -0,0 +1,96 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+/**
+ * The trace context of a sampled request. It is created by
+ * <code>Tracer.start()</code>, usually when the request is received, and
+ * follows the request from stage to stage: a task submitted to a metered
+ * stage carries the trace current on the submitting thread, and the trace is
+ * current on the stage thread while the task runs. Events are recorded in
+ * the ring of the <code>Tracer</code>. <br />
+ *
+ * Requests which are not sampled have no trace, so all the methods here
+ * accept and return null.
+ *
+ * @see Tracer
+ * @author Thejo
+ */
+public final class Trace {
+
+    private static final ThreadLocal<Trace> current = new ThreadLocal<Trace>();
+
+    private final long id;
+
+    Trace(long id) {
+        this.id = id;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Record an event of this trace, e.g, <code>"http.parse.end"</code>.
+     * Points should be constants, they are kept by reference.
+     *
+     * @param point
+     */
+    public void record(String point) {
+        Tracer.record(this, point, System.nanoTime());
+    }
+
+    /**
+     * @return The trace of the request being processed by the current
+     * thread, or null
+     */
+    public static Trace current() {
+        if (!Tracer.isEnabled()) {
+            return null;
+        }
+
+        Thread thread = Thread.currentThread();
+        if (thread instanceof StageThread) {
+            return ((StageThread) thread).getTrace();
+        }
+        return current.get();
+    }
+
+    /**
+     * Make a trace current on this thread
+     *
+     * @param trace - May be null
+     * @return The trace which was current before, to be restored with
+     * another call to <code>attach()</code> once done
+     */
+    public static Trace attach(Trace trace) {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof StageThread) {
+            StageThread stageThread = (StageThread) thread;
+            Trace previous = stageThread.getTrace();
+            stageThread.setTrace(trace);
+            return previous;
+        }
+
+        Trace previous = current.get();
+        if (previous != trace) {
+            current.set(trace);
+        }
+        return previous;
+    }
+
+    /**
+     * Record an event of the current trace, if any
+     *
+     * @param point
+     */
+    public static void mark(String point) {
+        Trace trace = current();
+        if (trace != null) {
+            trace.record(point);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Low overhead tracing of requests across stages. <br />
+ *
+ * A configurable fraction of requests is sampled. For those, events such as
+ * the time a request is received, queued on and run by every stage, parsed
+ * and answered are recorded into a ring preallocated for a fixed number of
+ * events, so recording doesn't allocate and old events are simply
+ * overwritten. Requests which are not sampled cost a volatile read per stage
+ * hop, and nothing at all while tracing is off, which is the default. <br />
+ *
+ * A trace hops from stage to stage with the tasks wrapped by the
+ * <code>StageMetrics</code> of each stage, which wraps traced tasks even on
+ * stages whose metering has been switched off. <br />
+ *
+ * The ring can be dumped to a file at any time to see where the time of slow
+ * requests goes. Recording is not synchronized with dumping, so an event
+ * being written while the ring is dumped may be missed or garbled.
+ *
+ * @see Trace
+ * @author Thejo
+ */
+public final class Tracer {
+
+    public static final int DEFAULT_RING_SIZE = 65536;
+
+    private static volatile double sampleRate;
+    private static volatile Ring ring = new Ring(DEFAULT_RING_SIZE);
+    private static final AtomicLong nextTraceId = new AtomicLong(1);
+
+    private Tracer() { }
+
+    /**
+     * Set the fraction of requests which are traced. 0 switches tracing off
+     *
+     * @param rate - Between 0 and 1
+     */
+    public static void setSampleRate(double rate) {
+        if (rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("Invalid sample rate " + rate);
+        }
+        sampleRate = rate;
+    }
+
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+
+    public static boolean isEnabled() {
+        return sampleRate > 0;
+    }
+
+    /**
+     * Replace the ring with an empty one holding the given number of events,
+     * rounded up to a power of two
+     *
+     * @param size
+     */
+    public static void setRingSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Invalid ring size " + size);
+        }
+        ring = new Ring(size);
+    }
+
+    public static int getRingSize() {
+        return ring.traceIds.length;
+    }
+
+    /**
+     * Drop all recorded events
+     */
+    public static void clear() {
+        ring = new Ring(ring.traceIds.length);
+    }
+
+    /**
+     * Start a trace for a new request if it is sampled
+     *
+     * @param point - The first event of the trace, e.g, <code>"received"</code>
+     * @param nanos - <code>System.nanoTime()</code> of the first event
+     * @return The trace or null if the request isn't sampled
+     */
+    public static Trace start(String point, long nanos) {
+        double rate = sampleRate;
+        if (rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate)) {
+            return null;
+        }
+
+        Trace trace = new Trace( nextTraceId.getAndIncrement() );
+        record(trace, point, nanos);
+        return trace;
+    }
+
+    /**
+     * Record an event of a trace
+     *
+     * @param trace - May be null, in which case nothing is recorded
+     * @param point
+     * @param nanos - <code>System.nanoTime()</code> of the event
+     */
+    public static void record(Trace trace, String point, long nanos) {
+        if (null == trace) {
+            return;
+        }
+
+        Ring current = ring;
+        int slot = (int) (current.next.getAndIncrement() & current.mask);
+        current.times[slot] = nanos;
+        current.points[slot] = point;
+        current.threads[slot] = Thread.currentThread().getName();
+        current.traceIds[slot] = trace.getId();
+    }
+
+    /**
+     * @return Number of events recorded since the ring was last replaced,
+     * including those which have been overwritten
+     */
+    public static long getRecordedCount() {
+        return ring.next.get();
+    }
+
+    /**
+     * Write the events in the ring to a file, see <code>dump(Writer)</code>
+     *
+     * @param file
+     * @return Number of events written
+     * @throws java.io.IOException
+     */
+    public static int dump(File file) throws IOException {
+        Writer writer = new BufferedWriter(new FileWriter(file));
+        try {
+            return dump(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write the events in the ring as tab separated lines, grouped by trace
+     * and in the order they happened. For every event the time since the
+     * first event of the trace and since the previous one are given in
+     * microseconds. Traces whose first events have been overwritten appear
+     * with their remaining events only.
+     *
+     * @param writer
+     * @return Number of events written
+     * @throws java.io.IOException
+     */
+    public static int dump(Writer writer) throws IOException {
+        Ring current = ring;
+        int size = (int) Math.min(current.next.get(), current.traceIds.length);
+
+        Event[] events = new Event[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (current.traceIds[i] != 0 && current.points[i] != null) {
+                events[count++] = new Event(current.traceIds[i], current.times[i],
+                        current.points[i], current.threads[i]);
+            }
+        }
+
+        Arrays.sort(events, 0, count);
+
+        writer.write("#trace\tsince_start_us\tsince_previous_us\tthread\tevent\n");
+        long traceId = 0;
+        long start = 0;
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            Event event = events[i];
+            if (event.traceId != traceId) {
+                traceId = event.traceId;
+                start = event.nanos;
+                previous = event.nanos;
+            }
+
+            writer.write(event.traceId + "\t" + (event.nanos - start) / 1000
+                    + "\t" + (event.nanos - previous) / 1000 + "\t"
+                    + event.thread + "\t" + event.point + "\n");
+            previous = event.nanos;
+        }
+        writer.flush();
+
+        return count;
+    }
+
+    /**
+     * The preallocated events, as parallel arrays
+     */
+    private static final class Ring {
+        final long mask;
+        final long[] traceIds;
+        final long[] times;
+        final String[] points;
+        final String[] threads;
+        final AtomicLong next = new AtomicLong();
+
+        Ring(int capacity) {
+            int size = 1;
+            while (size < capacity) {
+                size <<= 1;
+            }
+            mask = size - 1;
+            traceIds = new long[size];
+            times = new long[size];
+            points = new String[size];
+            threads = new String[size];
+        }
+    }
+
+    /**
+     * An event copied out of the ring for dumping
+     */
+    private static final class Event implements Comparable<Event> {
+        final long traceId;
+        final long nanos;
+        final String point;
+        final String thread;
+
+        Event(long traceId, long nanos, String point, String thread) {
+            this.traceId = traceId;
+            this.nanos = nanos;
+            this.point = point;
+            this.thread = thread;
+        }
+
+        public int compareTo(Event other) {
+            if (traceId != other.traceId) {
+                return (traceId < other.traceId) ? -1 : 1;
+            }
+            return Long.signum(nanos - other.nanos);
+        }
+    }
+}
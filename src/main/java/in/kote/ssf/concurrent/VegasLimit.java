@@ -0,0 +1,109 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+/**
+ * A limit algorithm along the lines of TCP Vegas. <br />
+ *
+ * The smallest latency seen is taken as the latency without load. The number
+ * of requests queued somewhere downstream is estimated as
+ * <code>limit * (1 - noLoadRtt / rtt)</code>. The limit grows while that
+ * estimate is small and shrinks once it grows past a threshold, so the
+ * limit settles where a few requests are queued. The thresholds grow with
+ * the log of the limit. <br />
+ *
+ * Since the latency without load may change, e.g, after a deployment, the
+ * smallest latency is forgotten every so often and measured again.
+ *
+ * @author Thejo
+ */
+public class VegasLimit implements LimitAlgorithm {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+    public static final int DEFAULT_MAX_LIMIT = 1000;
+
+    /**
+     * The no load latency is measured again after this many samples per unit
+     * of the limit
+     */
+    public static final int PROBE_MULTIPLIER = 30;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private long noLoadRttNanos;
+    private long samplesUntilProbe;
+
+    public VegasLimit() {
+        this(DEFAULT_INITIAL_LIMIT, 1, DEFAULT_MAX_LIMIT);
+    }
+
+    public VegasLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit
+                || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid limits " + initialLimit
+                    + ", " + minLimit + ", " + maxLimit);
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.samplesUntilProbe = nextProbe();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return The latency taken as the latency without load, or 0 if none
+     * has been measured yet
+     */
+    public synchronized long getNoLoadRttNanos() {
+        return noLoadRttNanos;
+    }
+
+    public synchronized void onSample(long rttNanos, int inFlight, boolean dropped) {
+        if (!dropped && rttNanos <= 0) {
+            return;
+        }
+
+        if (--samplesUntilProbe <= 0) {
+            samplesUntilProbe = nextProbe();
+            noLoadRttNanos = 0;
+        }
+
+        if (!dropped && (0 == noLoadRttNanos || rttNanos < noLoadRttNanos)) {
+            noLoadRttNanos = rttNanos;
+            return;
+        }
+
+        double step = Math.max(1, Math.log10(limit));
+        double newLimit;
+        if (dropped) {
+            newLimit = limit - step;
+        } else if (inFlight * 2 < limit) {
+            //Too few requests to say anything about the limit
+            return;
+        } else {
+            double queued = limit * (1 - (double) noLoadRttNanos / rttNanos);
+            if (queued <= step) {
+                newLimit = limit + 6 * step;
+            } else if (queued < 3 * step) {
+                newLimit = limit + step;
+            } else if (queued > 6 * step) {
+                newLimit = limit - step;
+            } else {
+                return;
+            }
+        }
+
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+    private long nextProbe() {
+        return PROBE_MULTIPLIER * (long) Math.max(limit, minLimit);
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.log4j.Logger;
+
+/**
+ * This class is an implementation of the <i>IStage</i> interface which runs
+ * every task on a thread of its own. On runtimes which support virtual threads
+ * (Java 21 onwards) each task gets a virtual thread, so stages whose tasks
+ * block on sockets are not limited by the size of a thread pool. On older
+ * runtimes it falls back to a new platform thread per task. <br />
+ *
+ * The number of tasks running at the same time is bounded by a semaphore.
+ * A thread is only started for a task which got a permit. Tasks in excess of
+ * the bound wait in a queue and are run by the threads of the tasks which
+ * complete, so there are never more threads than permits and
+ * <code>execute()</code> never blocks the caller. For details please refer to
+ * the <i>IStage</i> documentation.
+ *
+ * @author Thejo
+ */
+public class VirtualThreadStage implements IMeteredStage {
+
+    private String name_;
+    private ThreadPerTaskExecutor executorService_;
+    private StageMetrics metrics_;
+
+    /**
+     * @param name - Name of the stage
+     * @param maxConcurrency - Max. number of tasks allowed to run at a time
+     */
+    public VirtualThreadStage(String name, int maxConcurrency) {
+        name_ = name;
+
+        ThreadFactory threadFactory = newVirtualThreadFactory(name);
+        if (null == threadFactory) {
+            log.info("Virtual threads are not available. Stage " + name
+                    + " will use a platform thread per task");
+            threadFactory = new ThreadFactoryImpl(name);
+        }
+
+        metrics_ = new StageMetrics(name);
+        executorService_ = new ThreadPerTaskExecutor(threadFactory,
+                maxConcurrency, metrics_);
+    }
+
+    /**
+     * Looks up <code>Thread.ofVirtual()</code> reflectively so that the
+     * framework can still be built and run on older runtimes.
+     *
+     * @param name - Prefix for thread names
+     * @return A factory for virtual threads or null if not supported
+     */
+    private static ThreadFactory newVirtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, name + ":", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory")
+                    .invoke(builder);
+        } catch (Exception ex) {
+            //Not available or not enabled in this runtime
+            return null;
+        }
+    }
+
+    public String getName() {
+        return name_;
+    }
+
+    public <T> Future<T> execute(Callable<T> callable) {
+        return executorService_.submit(callable);
+    }
+
+    public <T> StageFuture<T> executeAsync(Callable<T> callable) {
+        return StageFuture.supplyOn(this, callable);
+    }
+
+    public void execute(Runnable runnable) {
+        executorService_.execute(runnable);
+    }
+
+    public void executeBatch(Collection<? extends Runnable> runnables) {
+        for (Runnable task : CompositeTask.split(runnables,
+                executorService_.getMaxConcurrency())) {
+            executorService_.execute(task);
+        }
+    }
+
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> callable)
+            throws InterruptedException {
+        return executorService_.invokeAll(callable);
+    }
+
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> callable,
+            long timeout, TimeUnit unit) throws InterruptedException {
+        return executorService_.invokeAll(callable, timeout, unit);
+    }
+
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
+    {
+        return HashedTimingWheel.getDefault().schedule(this, command, delay, unit);
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+            long initialDelay, long period, TimeUnit unit) {
+        return HashedTimingWheel.getDefault().scheduleAtFixedRate(this, command,
+                initialDelay, period, unit);
+    }
+
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+            long initialDelay, long delay, TimeUnit unit) {
+        return HashedTimingWheel.getDefault().scheduleWithFixedDelay(this, command,
+                initialDelay, delay, unit);
+    }
+
+    public void shutdown() {
+        executorService_.shutdownNow();
+    }
+
+    public boolean isShutdown()
+    {
+        return executorService_.isShutdown();
+    }
+
+    public long getTaskCount(){
+        return (executorService_.getTaskCount()
+                - executorService_.getCompletedTaskCount());
+    }
+
+    public StageMetrics getMetrics() {
+        return metrics_;
+    }
+
+    /**
+     * Returns the number of tasks currently holding a permit
+     *
+     * @return
+     */
+    public int getActiveCount() {
+        return executorService_.getActiveCount();
+    }
+
+    /**
+     * An executor which starts a new thread for every task holding a permit,
+     * and queues tasks for which no permit is available
+     */
+    private static final class ThreadPerTaskExecutor extends AbstractExecutorService {
+        private final ThreadFactory threadFactory;
+        private final StageMetrics metrics;
+        private final Semaphore permits;
+        private final int maxConcurrency;
+        private final java.util.Queue<Runnable> pending =
+                new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicLong taskCount = new AtomicLong();
+        private final AtomicLong completedTaskCount = new AtomicLong();
+        private final Set<Thread> threads = Collections.newSetFromMap(
+                new ConcurrentHashMap<Thread, Boolean>());
+        private final CountDownLatch terminated = new CountDownLatch(1);
+        private volatile boolean shutdown;
+
+        ThreadPerTaskExecutor(ThreadFactory threadFactory, int maxConcurrency,
+                StageMetrics metrics) {
+            this.threadFactory = threadFactory;
+            this.metrics = metrics;
+            this.maxConcurrency = maxConcurrency;
+            this.permits = new Semaphore(maxConcurrency);
+        }
+
+        public void execute(Runnable command) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Stage has been shutdown");
+            }
+
+            taskCount.incrementAndGet();
+            Runnable task = metrics.wrap(command);
+            if (permits.tryAcquire()) {
+                start(task);
+                return;
+            }
+
+            pending.offer(task);
+            //A permit released since the tryAcquire() above may have missed it
+            if (permits.tryAcquire()) {
+                Runnable next = next();
+                if (null != next) {
+                    start(next);
+                }
+            }
+        }
+
+        /**
+         * Start a thread for a task, called holding a permit for it
+         */
+        private void start(Runnable task) {
+            Thread thread = null;
+            try {
+                thread = threadFactory.newThread( new Worker(task) );
+                threads.add(thread);
+                thread.start();
+            } catch (Throwable t) {
+                //E.g, the OS is out of threads
+                if (null != thread) {
+                    threads.remove(thread);
+                }
+                taskCount.decrementAndGet();
+                StageMetrics.discard(task);
+                permits.release();
+                throw new RejectedExecutionException("Can't start a thread for "
+                        + "the task", t);
+            }
+        }
+
+        /**
+         * Called holding a permit
+         *
+         * @return The next queued task, still holding the permit, or null
+         * after the permit has been released
+         */
+        private Runnable next() {
+            while (true) {
+                Runnable task = pending.poll();
+                if (null != task) {
+                    return task;
+                }
+
+                permits.release();
+                //A task queued before the release may have missed the permit
+                if (pending.isEmpty() || !permits.tryAcquire()) {
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * Runs a task and then the queued tasks, until the queue is empty. A
+         * task failing with an Error ends the thread, which hands its permit
+         * and the queued tasks over to a new thread on its way out.
+         */
+        private final class Worker implements Runnable {
+            private final Runnable first;
+
+            Worker(Runnable first) {
+                this.first = first;
+            }
+
+            public void run() {
+                Runnable task = first;
+                try {
+                    while (null != task) {
+                        try {
+                            task.run();
+                        } catch (Throwable t) {
+                            log.error(t.toString(), t);
+                            if (t instanceof Error) {
+                                throw (Error) t;
+                            }
+                        } finally {
+                            completedTaskCount.incrementAndGet();
+                        }
+                        task = next();
+                    }
+                } finally {
+                    threads.remove(Thread.currentThread());
+                    if (null != task) {
+                        handOff();
+                    }
+                    tryTerminate();
+                }
+            }
+        }
+
+        /**
+         * Pass the permit of a dying thread on to the next queued task
+         */
+        private void handOff() {
+            Runnable next = next();
+            if (null != next) {
+                try {
+                    start(next);
+                } catch (RejectedExecutionException ree) {
+                    log.error("Dropped a task: " + ree.getMessage(), ree);
+                }
+            }
+        }
+
+        long getTaskCount() {
+            return taskCount.get();
+        }
+
+        long getCompletedTaskCount() {
+            return completedTaskCount.get();
+        }
+
+        int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+
+        int getActiveCount() {
+            return maxConcurrency - permits.availablePermits();
+        }
+
+        private void tryTerminate() {
+            if (shutdown && threads.isEmpty()) {
+                terminated.countDown();
+            }
+        }
+
+        public void shutdown() {
+            shutdown = true;
+            tryTerminate();
+        }
+
+        public List<Runnable> shutdownNow() {
+            shutdown();
+
+            List<Runnable> dropped = new ArrayList<Runnable>();
+            Runnable task;
+            while ( (task = pending.poll()) != null ) {
+                StageMetrics.discard(task);
+                completedTaskCount.incrementAndGet();
+                dropped.add( StageMetrics.unwrap(task) );
+            }
+
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            return dropped;
+        }
+
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        public boolean isTerminated() {
+            return terminated.getCount() == 0;
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+                throws InterruptedException {
+            return terminated.await(timeout, unit);
+        }
+    }
+
+    private static final Logger log = Logger.getLogger(VirtualThreadStage.class);
+}
@@ -0,0 +1,50 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+/**
+ * Decides how a thread waits when it can't make progress on a
+ * <code>RingBufferQueue</code>, i.e, a consumer on an empty queue or a
+ * producer on a full one. The choice trades CPU usage for hand off latency.
+ *
+ * @see RingBufferQueue
+ * @author Thejo
+ */
+public interface WaitStrategy {
+
+    /**
+     * The condition a waiting thread is waiting for
+     */
+    public interface Predicate {
+        public boolean canProceed();
+    }
+
+    /**
+     * Wait for the predicate to become true. Implementations may return early
+     * (spurious wake up), the caller is expected to retry and call this method
+     * again if required.
+     *
+     * @param predicate - The condition being waited on
+     * @param attempt - Number of times the caller has already waited
+     * @param nanos - Max. time to wait
+     * @throws InterruptedException
+     */
+    public void await(Predicate predicate, int attempt, long nanos)
+            throws InterruptedException;
+
+    /**
+     * Wake up one thread waiting for the given predicate. Called every time
+     * a single element or slot becomes available.
+     *
+     * @param predicate - The condition which may have become true
+     */
+    public void signal(Predicate predicate);
+
+    /**
+     * Wake up all threads waiting on this strategy
+     */
+    public void signalAll();
+}
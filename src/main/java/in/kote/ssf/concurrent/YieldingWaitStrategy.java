@@ -0,0 +1,44 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spins for a while, then yields and finally parks for short intervals. Gives
+ * low hand off latency under load without burning a core forever when the
+ * stage is idle.
+ *
+ * @author Thejo
+ */
+public class YieldingWaitStrategy implements WaitStrategy {
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 200;
+    private static final long PARK_NANOS = 100000L;
+
+    public void await(Predicate predicate, int attempt, long nanos)
+            throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+
+        if (attempt < SPIN_TRIES) {
+            return;
+        } else if (attempt < YIELD_TRIES) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Math.min(nanos, PARK_NANOS));
+        }
+    }
+
+    public void signal(Predicate predicate) {
+        //Waiters poll, nothing to do
+    }
+
+    public void signalAll() {
+        //Waiters poll, nothing to do
+    }
+}
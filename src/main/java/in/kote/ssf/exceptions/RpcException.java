@@ -0,0 +1,18 @@
+package in.kote.ssf.exceptions;
+
+/**
+ * A remote call failed, timed out or was answered with an error
+ *
+ * @author Thejo
+ */
+public class RpcException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public RpcException() {
+        super();
+    }
+
+    public RpcException(String message) {
+        super(message);
+    }
+}
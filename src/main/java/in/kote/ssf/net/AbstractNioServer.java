@@ -0,0 +1,245 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import in.kote.ssf.util.*;
+import in.kote.ssf.concurrent.*;
+
+/**
+ * A non-blocking alternative to <code>AbstractServer</code>. <br />
+ *
+ * One acceptor thread accepts connections on a <code>ServerSocketChannel</code>
+ * and distributes them round robin across a number of reactors. Each reactor
+ * runs a selector loop which reads requests without blocking. Only when a
+ * request has been read fully (as decided by <code>isRequestComplete</code>)
+ * is a task created for it and handed over to the next stage. Stage threads
+ * are thus never blocked on slow clients, and the number of open connections
+ * is no longer bound by the number of threads. <br />
+ *
+ * Like <code>AbstractServer</code>, this class extends <code>StageTask</code>
+ * and the stage requests are handed over to is set through
+ * <code>setNextStage()</code>.
+ *
+ * @see NioConnection
+ * @author Thejo
+ */
+public abstract class AbstractNioServer extends StageTask
+        implements Runnable, Shutdownable {
+
+    public ServerSocketChannel server;
+    Thread thread;
+    boolean done;
+    protected int port;
+    protected int backlog;
+    protected int reactorCount;
+    private NioReactor[] reactors;
+    private int nextReactor;
+    private final AtomicInteger connId = new AtomicInteger(1);
+
+    public static final int DEFAULT_BACKLOG = AbstractServer.DEFAULT_BACKLOG;
+    public static final int DEFAULT_REACTOR_COUNT =
+            Runtime.getRuntime().availableProcessors();
+
+    public AbstractNioServer(int port) {
+        this(port, DEFAULT_BACKLOG, DEFAULT_REACTOR_COUNT);
+    }
+
+    public AbstractNioServer(int port, int backlog, int reactorCount) {
+        this.port = port;
+        this.backlog = backlog;
+        this.reactorCount = reactorCount;
+    }
+
+    /**
+     * Returns true if the bytes read so far make up a complete request
+     *
+     * @param data - Bytes read on the connection so far
+     * @param length - Number of valid bytes in <code>data</code>
+     * @return true if the request can be handed over to a stage
+     */
+    protected abstract boolean isRequestComplete(byte[] data, int length);
+
+    /**
+     * Returns the length of the request at the start of <code>data</code> if
+     * it has been read completely, or -1 if more bytes are needed. Bytes past
+     * the returned length belong to the next (pipelined) request on the
+     * connection and are kept for it. <br />
+     *
+     * The default implementation treats everything read so far as the request
+     * once <code>isRequestComplete</code> returns true. Sub-classes can
+     * override this to support pipelining or to keep scan state between reads
+     * through <code>NioConnection.setParseState()</code>.
+     *
+     * @param connection - The connection the bytes were read on
+     * @param data - Bytes read on the connection so far
+     * @param length - Number of valid bytes in <code>data</code>
+     * @return Length of the complete request or -1
+     * @throws java.io.IOException if the request is invalid. The connection
+     * is closed
+     */
+    protected int getRequestLength(NioConnection connection, byte[] data,
+            int length) throws IOException {
+        return isRequestComplete(data, length) ? length : -1;
+    }
+
+    /**
+     * Create the task which will process a completely read request on the
+     * next stage. The request is available through
+     * <code>CommSocket.getInputStream()</code> and the response should be
+     * written to <code>CommSocket.getOutputStream()</code>. The task then
+     * either calls <code>CommSocket.complete()</code> to go on with the next
+     * request on the connection or <code>CommSocket.close()</code>.
+     *
+     * @param socket - The client connection
+     * @return Runnable to be executed on the next stage
+     */
+    protected abstract Runnable newRequestTask(CommSocket socket);
+
+    /**
+     * The initial size of the per connection read buffer
+     *
+     * @return int value in bytes
+     */
+    protected int getInitialBufSize() {
+        return 4096;
+    }
+
+    /**
+     * The maximum size of a request. The connection is closed if a client
+     * sends more than this without completing a request
+     *
+     * @return int value in bytes
+     */
+    protected int getMaxRequestSize() {
+        return 1024 * 1024;
+    }
+
+    /**
+     * Bind the server socket and start the acceptor and reactor threads
+     *
+     * @throws java.io.IOException
+     */
+    public synchronized void startServer() throws IOException {
+        if (thread == null) {
+            done = false;
+
+            server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(port), backlog);
+
+            ThreadFactoryImpl threadFactory = new ThreadFactoryImpl(
+                    "NIO-REACTOR-" + port);
+            reactors = new NioReactor[reactorCount];
+            for (int i = 0; i < reactorCount; i++) {
+                reactors[i] = new NioReactor(this);
+                threadFactory.newThread(reactors[i]).start();
+            }
+
+            thread = new Thread(this, "NIO-ACCEPTOR-" + port);
+            thread.start();
+        }
+    }
+
+    public synchronized void shutdown() {
+        done = true;
+        try {
+            thread.interrupt();
+            server.close();
+        } catch (Exception ex) {
+            //Log if required
+        }
+
+        if (reactors != null) {
+            for (NioReactor reactor : reactors) {
+                reactor.shutdown();
+            }
+        }
+    }
+
+    public synchronized boolean getDone() {
+        return done;
+    }
+
+    /**
+     * The acceptor loop
+     */
+    public void run() {
+        while (!getDone()) {
+            SocketChannel channel = null;
+            try {
+                channel = server.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                reactors[nextReactor].register(channel);
+                nextReactor = (nextReactor + 1) % reactors.length;
+
+            } catch (ClosedChannelException cce) {
+                //Server socket was closed during shutdown
+                break;
+            } catch (IOException ioe) {
+                log.warn(ioe.toString(), ioe);
+                if (channel != null) try {
+                    channel.close();
+                } catch (IOException e) {
+                    //Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand over a completely read request to the next stage. Called on the
+     * reactor thread.
+     *
+     * @param connection
+     */
+    void dispatch(NioConnection connection) {
+        CommSocket socket = new CommSocket(connection, connId.getAndIncrement());
+
+        if (null == nextStage) {
+            log.warn("No stage registered to handle requests on port " + port);
+            connection.close();
+            return;
+        }
+
+        //Let the task carry the trace of the request to the next stage
+        Trace previous = Trace.attach(socket.getTrace());
+        try {
+            nextStage.execute( newRequestTask(socket) );
+        } catch (RejectedExecutionException ree) {
+            if (log.isDebugEnabled()) {
+                log.debug("Stage " + nextStage.getName() + " rejected request");
+            }
+            Trace.mark("rejected");
+            rejected(socket);
+        } finally {
+            Trace.attach(previous);
+        }
+    }
+
+    /**
+     * Called on the reactor thread when the next stage doesn't accept a
+     * request because it is overloaded. Closes the connection by default.
+     * Sub-classes can write a short response (e.g, a 503) instead. Anything
+     * written is sent without blocking the reactor.
+     *
+     * @param socket
+     */
+    protected void rejected(CommSocket socket) {
+        socket.getConnection().close();
+    }
+
+    private static final Logger log = Logger.getLogger(AbstractNioServer.class);
+}
@@ -6,6 +6,7 @@
 package in.kote.ssf.net;
 
 import java.net.*;
+import java.util.concurrent.RejectedExecutionException;
 
 import in.kote.ssf.util.*;
 import in.kote.ssf.concurrent.*;
@@ -62,6 +63,46 @@ public abstract class AbstractServer extends StageTask
 
   public abstract void run();
 
+  /**
+   * Hand over a task to the next stage. Returns false if the stage did not
+   * accept the task because it is overloaded (or shutdown), so that the
+   * sub-class can answer the client right away, e.g, with a 503, instead of
+   * letting the request wait in an ever growing queue.
+   *
+   * @param task
+   * @return true if the next stage accepted the task
+   */
+  protected boolean handOff(Runnable task) {
+    try {
+      nextStage.execute(task);
+      return true;
+    } catch (RejectedExecutionException ree) {
+      return false;
+    }
+  }
+
+  /**
+   * Hand over the task processing the request on a socket to the next stage,
+   * along with the trace of the request if it is sampled.
+   *
+   * @param socket
+   * @param task
+   * @return true if the next stage accepted the task
+   * @see #handOff(Runnable)
+   */
+  protected boolean handOff(CommSocket socket, Runnable task) {
+    Trace previous = Trace.attach(socket.getTrace());
+    try {
+      boolean accepted = handOff(task);
+      if (!accepted) {
+        Trace.mark("rejected");
+      }
+      return accepted;
+    } finally {
+      Trace.attach(previous);
+    }
+  }
+
   public synchronized boolean getDone() {
     return done;
   }
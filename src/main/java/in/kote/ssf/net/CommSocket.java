@@ -5,19 +5,28 @@
 
 package in.kote.ssf.net;
 
+import java.io.*;
 import java.net.*;
 
+import in.kote.ssf.concurrent.Trace;
+import in.kote.ssf.concurrent.Tracer;
+
 /**
  * This class represents the socket and other details associated with the 
- * communication with a client
+ * communication with a client. <br />
+ *
+ * If the request is sampled by the <code>Tracer</code>, its trace starts
+ * when this object is created.
  * 
  * @author Thejo
  */
 public class CommSocket {
     private Socket socket;
+    private NioConnection connection;
     private String connId;
     private String hostAddress;
     private long requestReceivedTime;
+    private Trace trace;
     
     public static final String MASTER_PREFIX = "m";
     public static final String WORKER_PREFIX = "w";
@@ -31,6 +40,19 @@ public class CommSocket {
         this.connId = type + "-" + connId;
         this.hostAddress = socket.getInetAddress().getHostAddress();
         this.requestReceivedTime = System.nanoTime();
+        this.trace = Tracer.start("received", this.requestReceivedTime);
+    }
+
+    /**
+     * Wraps a connection accepted by an <code>AbstractNioServer</code>. The
+     * request has already been read completely when this object is created.
+     *
+     * @param connection
+     * @param connId
+     */
+    public CommSocket (NioConnection connection, int connId) {
+        this(connection.getChannel().socket(), connId);
+        this.connection = connection;
     }
 
     public String getConnId() {
@@ -41,6 +63,81 @@ public class CommSocket {
         return socket;
     }
 
+    /**
+     * The non-blocking connection if this socket was accepted by an
+     * <code>AbstractNioServer</code>, null otherwise
+     *
+     * @return NioConnection
+     */
+    public NioConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns a stream to read the request from. This works for both blocking
+     * and non-blocking connections and should be preferred over
+     * <code>getSocket().getInputStream()</code>
+     *
+     * @return InputStream
+     * @throws java.io.IOException
+     */
+    public InputStream getInputStream() throws IOException {
+        if (connection != null) {
+            return connection.getInputStream();
+        }
+
+        return socket.getInputStream();
+    }
+
+    /**
+     * Returns a stream to write the response to. For non-blocking connections
+     * the response is written by the reactor after the stream is closed
+     *
+     * @return OutputStream
+     * @throws java.io.IOException
+     */
+    public OutputStream getOutputStream() throws IOException {
+        if (connection != null) {
+            return connection.getOutputStream();
+        }
+
+        return socket.getOutputStream();
+    }
+
+    public boolean isClosed() {
+        if (connection != null) {
+            return connection.isClosed();
+        }
+
+        return socket.isClosed();
+    }
+
+    /**
+     * Signal that the whole response has been written, so that a
+     * non-blocking connection goes on to read the next request once the
+     * response has been sent. Nothing to do for a blocking socket, since its
+     * owner reads the next request itself.
+     */
+    public void complete() {
+        if (connection != null) {
+            connection.complete();
+        }
+    }
+
+    /**
+     * Close the connection. Non-blocking connections are closed after any
+     * pending response has been written
+     *
+     * @throws java.io.IOException
+     */
+    public void close() throws IOException {
+        if (connection != null) {
+            connection.close();
+        } else {
+            socket.close();
+        }
+    }
+
     public String getHostAddress() {
         return hostAddress;
     }
@@ -52,4 +149,16 @@ public class CommSocket {
     public void setRequestReceivedTime(long requestReceivedTime) {
         this.requestReceivedTime = requestReceivedTime;
     }
+
+    /**
+     * @return The trace of the request on this socket, null if the request
+     * isn't sampled
+     */
+    public Trace getTrace() {
+        return trace;
+    }
+
+    public void setTrace(Trace trace) {
+        this.trace = trace;
+    }
 }
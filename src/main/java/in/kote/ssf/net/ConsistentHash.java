@@ -6,34 +6,41 @@
 package in.kote.ssf.net;
 
 import java.util.*;
-import java.security.NoSuchAlgorithmException;
 
 import in.kote.ssf.util.BasicUtilities;
 
 /**
- * Provides an implementation of a consistent hash with weighted nodes
+ * Provides an implementation of a consistent hash with weighted nodes <br />
+ *
+ * The circle is immutable: the positions of the virtual nodes are kept in a
+ * sorted <code>int[]</code> with the endpoint owning each position in a
+ * parallel array, and a key is mapped with a 64 bit hash and a binary search.
+ * Lookups don't allocate and take no locks. To change the set of nodes a new
+ * circle is built and published with <code>setCurrent()</code>, which
+ * readers pick up atomically.
  * 
  * @author Thejo
  */
 public class ConsistentHash {
+
     /**
-     * Consistent hash for external consumption
-     */
-    public static volatile SortedMap<Integer, EndPoint> consistentHash =
-            new TreeMap<Integer, EndPoint>();
-    
-    /**
-     * An ordered map which represents the circle of a consistent hash
+     * Circle for external consumption, used by the static lookups
      */
-    private SortedMap<Integer, EndPoint> newCircle = 
-            new TreeMap<Integer, EndPoint>();
+    private static volatile ConsistentHash current = new ConsistentHash(
+            Collections.<EndPoint>emptyList());
     
     /**
-     * The total number of virtual nodes. Each real node will be converted to a 
-     * number of virtual nodes depending on its weight
+     * The number of virtual nodes per unit of weight. A real node's virtual
+     * nodes depend on its own weight only, so adding or removing a node moves
+     * just the keys on that node's virtual nodes
      */
-    public static final int virtualNodeCount = 1000;
-    private int totalWeight;
+    public static final int virtualNodesPerWeight = 160;
+
+    /* Positions of the virtual nodes on the circle, in ascending order */
+    private final int[] points;
+    /* The endpoint owning the virtual node at the same index in points */
+    private final EndPoint[] owners;
+    private final List<EndPoint> nodes;
     
     /**
      * Constructor
@@ -41,102 +48,179 @@ public class ConsistentHash {
      * @param nodes - A collection of endpoints
      * @see in.kote.ssf.net.EndPoint
      */
-    public ConsistentHash(Collection<EndPoint> nodes) 
-            throws NoSuchAlgorithmException {
-        //Get the total weight of all nodes
-        for (EndPoint node : nodes) {
-            totalWeight += node.getWeight();
+    public ConsistentHash(Collection<EndPoint> nodes) {
+        this.nodes = Collections.unmodifiableList( new ArrayList<EndPoint>(
+                new LinkedHashSet<EndPoint>(nodes) ) );
+
+        //Position and owner of every virtual node, packed so that they sort
+        //by position and, for equal positions, by the order of the nodes
+        List<EndPoint> ownerList = new ArrayList<EndPoint>();
+        long[] packed = new long[0];
+        int count = 0;
+        for (EndPoint node : this.nodes) {
+            int replicas = getReplicaCount( node.getWeight() );
+            if (count + replicas > packed.length) {
+                packed = Arrays.copyOf(packed, Math.max(packed.length * 2,
+                        count + replicas));
+            }
+
+            long nodeHash = BasicUtilities.hash64( node.toString() );
+            for (int i = 0; i < replicas; i++) {
+                int point = position( BasicUtilities.hash64(nodeHash + i) );
+                packed[count++] = ((long) point << 32) | ownerList.size();
+            }
+            ownerList.add(node);
         }
-        
-        //Add all nodes
-        for (EndPoint node : nodes) {
-            add(node);
+        Arrays.sort(packed, 0, count);
+
+        //Two virtual nodes at the same position are rare, the first wins
+        int[] newPoints = new int[count];
+        EndPoint[] newOwners = new EndPoint[count];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            int point = (int) (packed[i] >> 32);
+            if (size > 0 && newPoints[size - 1] == point) {
+                continue;
+            }
+            newPoints[size] = point;
+            newOwners[size] = ownerList.get( (int) packed[i] );
+            size++;
         }
+
+        points = Arrays.copyOf(newPoints, size);
+        owners = Arrays.copyOf(newOwners, size);
     }
-    
+
     /**
-     * Get the ordered map representing the circle of the consistent hash
-     * 
-     * @return SortedMap<Integer, EndPoint>
+     * @return The circle used by the static lookups
+     */
+    public static ConsistentHash getCurrent() {
+        return current;
+    }
+
+    /**
+     * Publish a new circle for the static lookups
+     *
+     * @param circle
      */
-    public SortedMap<Integer, EndPoint> getNewCircle() {
-        return newCircle;
+    public static void setCurrent(ConsistentHash circle) {
+        if (null == circle) {
+            throw new IllegalArgumentException("Invalid consistent hash");
+        }
+        current = circle;
     }
     
     /**
      * Calculates and returns the number of replicas or virtual nodes for a 
-     * given weight
+     * given weight. An endpoint without a weight counts as weight 1.
      * 
-     * @param weight - An integer representingthe weight of an endpoint
-     * @return The numer of virtual nodes for the given weight
+     * @param weight - An integer representing the weight of an endpoint
+     * @return The number of virtual nodes for the given weight
      */
-    private int getReplicaCount(int weight) {
-        return (virtualNodeCount * weight) / totalWeight;
+    private static int getReplicaCount(int weight) {
+        return virtualNodesPerWeight * Math.max(1, weight);
+    }
+
+    /**
+     * @return The endpoints on the circle
+     */
+    public List<EndPoint> getEndPoints() {
+        return nodes;
+    }
+
+    public boolean contains(EndPoint node) {
+        return nodes.contains(node);
+    }
+
+    /**
+     * @return Number of virtual nodes on the circle
+     */
+    public int size() {
+        return points.length;
     }
     
     /**
-     * Add a given endpoint to the circle
+     * Build a circle with an endpoint added. The virtual nodes of the other
+     * endpoints keep their positions.
      * 
      * @param node - <code>EndPoint</code> to be added to the circle
+     * @return The new circle
      */
-    public void add(EndPoint node) throws NoSuchAlgorithmException {
-        int numberOfReplicas = getReplicaCount(node.getWeight());
-        for (int i = 0; i < numberOfReplicas; i++) {
-            Integer nodeNum = BasicUtilities.getMD5(node.toString()
-                        + i).intValue() % virtualNodeCount;
-            newCircle.put(nodeNum, node);
-        }
+    public ConsistentHash add(EndPoint node) {
+        List<EndPoint> newNodes = new ArrayList<EndPoint>(nodes);
+        newNodes.add(node);
+        return new ConsistentHash(newNodes);
     }
     
     /**
-     * Remove an endpoint from the circle
+     * Build a circle with an endpoint removed
      * 
      * @param node - <code>EndPoint</code> to be removed from the circle
+     * @return The new circle
      */
-    public void remove(EndPoint node) throws NoSuchAlgorithmException {
-        int numberOfReplicas = getReplicaCount(node.getWeight());
-        for (int i = 0; i < numberOfReplicas; i++) {
-            
-            Integer nodeNum = BasicUtilities.getMD5(node.toString()
-                    + i).intValue() % virtualNodeCount;
-            newCircle.remove(nodeNum);
-        }
+    public ConsistentHash remove(EndPoint node) {
+        List<EndPoint> newNodes = new ArrayList<EndPoint>(nodes);
+        newNodes.remove(node);
+        return new ConsistentHash(newNodes);
     }
     
     /**
-     * Given a key (user identifier in case of ad server) and ordered map 
-     * representing the circle, returns the EndPoint to which the key maps.
+     * Given a key (user identifier in case of ad server) returns the EndPoint
+     * to which the key maps. Keys other than strings are mapped by their
+     * <code>toString()</code>
      * 
      * @param key - The user identifier
-     * @param circle - The consistent hash circle being used
-     * @return <code>EndPoint</code> to which the key maps
+     * @return <code>EndPoint</code> to which the key maps, null if the circle
+     * is empty
      */
-    public static EndPoint get(Object key, SortedMap<Integer, EndPoint> circle) 
-            throws NoSuchAlgorithmException {
-        if (circle.isEmpty()) {
+    public EndPoint getEndPoint(Object key) {
+        CharSequence s = (key instanceof CharSequence) ?
+                (CharSequence) key : key.toString();
+        return getEndPointForHash( BasicUtilities.hash64(s) );
+    }
+
+    /**
+     * Map a numeric key without converting it to a string
+     *
+     * @param key
+     * @return <code>EndPoint</code> to which the key maps, null if the circle
+     * is empty
+     */
+    public EndPoint getEndPoint(long key) {
+        return getEndPointForHash( BasicUtilities.hash64(key) );
+    }
+
+    private EndPoint getEndPointForHash(long hash) {
+        if (0 == points.length) {
             return null;
         }
-        
-        int hash = 0;
-        
-        hash = BasicUtilities.getMD5((String) key).intValue()
-                % ConsistentHash.virtualNodeCount;
-        if (!circle.containsKey(hash)) {
-            SortedMap<Integer, EndPoint> tailMap = circle.tailMap(hash);
-            hash = tailMap.isEmpty() ? circle.firstKey() : tailMap.firstKey();
+
+        //The first virtual node at or after the position, wrapping around
+        int index = Arrays.binarySearch(points, position(hash));
+        if (index < 0) {
+            index = -index - 1;
+            if (index == points.length) {
+                index = 0;
+            }
         }
-        
-        return circle.get(hash);
+        return owners[index];
     }
 
     /**
-     * The static field of this class should be populated if this method is used
+     * A position on the circle, from the high bits of a hash
+     */
+    private static int position(long hash) {
+        return (int) (hash >>> 32);
+    }
+
+    /**
+     * The current circle should be published with <code>setCurrent()</code>
+     * if this method is used
      * 
      * @param key
-     * @return
-     * @throws java.security.NoSuchAlgorithmException
+     * @return <code>EndPoint</code> to which the key maps
      */
-    public static EndPoint get(Object key) throws NoSuchAlgorithmException {
-        return get(key, consistentHash);
+    public static EndPoint get(Object key) {
+        return current.getEndPoint(key);
     }
 }
@@ -0,0 +1,286 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Represents a single non-blocking client connection owned by a reactor of an
+ * <code>AbstractNioServer</code>. <br />
+ *
+ * All reads and writes on the channel happen on the reactor thread. Stage
+ * threads only see the fully read request (through <code>CommSocket</code>) and
+ * hand back response bytes, which are queued and written by the reactor once
+ * the channel is writable. A slow client therefore never holds a stage thread.
+ *
+ * @see AbstractNioServer
+ * @author Thejo
+ */
+public class NioConnection {
+    private final SocketChannel channel;
+    private final NioReactor reactor;
+    private final int maxRequestSize;
+    private SelectionKey key;
+
+    /**
+     * Bytes read so far for the current request. Only touched by the reactor
+     * until the request has been handed over to a stage
+     */
+    private ByteBuffer readBuffer;
+
+    /**
+     * Length of the request handed over to a stage. Bytes read past it belong
+     * to the next request
+     */
+    private int requestLength;
+
+    /**
+     * State kept by the server while scanning a partially read request
+     */
+    private Object parseState;
+
+    /**
+     * Response buffers waiting to be written by the reactor
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> writeQueue =
+            new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private volatile boolean closeRequested;
+
+    /**
+     * Set once the whole response to the current request has been queued
+     */
+    private volatile boolean responseComplete;
+
+    NioConnection(SocketChannel channel, NioReactor reactor, int initialBufSize,
+            int maxRequestSize) {
+        this.channel = channel;
+        this.reactor = reactor;
+        this.maxRequestSize = maxRequestSize;
+        this.readBuffer = ByteBuffer.allocate(
+                Math.min(initialBufSize, maxRequestSize) );
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * The raw bytes of the request. Valid bytes are in the range
+     * [0, <code>getRequestLength()</code>)
+     *
+     * @return The backing array of the read buffer
+     */
+    public byte[] getRequestData() {
+        return readBuffer.array();
+    }
+
+    public int getRequestLength() {
+        return requestLength;
+    }
+
+    /**
+     * An input stream over the request that has been read
+     *
+     * @return InputStream
+     */
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(readBuffer.array(), 0, requestLength);
+    }
+
+    /**
+     * An output stream that buffers a response in memory. The buffered bytes
+     * are handed over to the reactor to be written when the stream is closed.
+     *
+     * @return OutputStream
+     */
+    public OutputStream getOutputStream() {
+        return new ResponseOutputStream();
+    }
+
+    /**
+     * Queue the given bytes to be written to the client. Can be called from
+     * any thread
+     *
+     * @param data
+     */
+    public void send(ByteBuffer data) {
+        writeQueue.add(data);
+        reactor.update(this);
+    }
+
+    /**
+     * Mark the response to the current request as complete. Once it has been
+     * written, the next request on the connection is read. Until then the
+     * connection only writes, however many times <code>send()</code> is
+     * called. Call this after the last <code>send()</code> (or after closing
+     * the output stream) of a response and not at all if the connection is
+     * to be closed instead. Can be called from any thread
+     */
+    public void complete() {
+        responseComplete = true;
+        reactor.update(this);
+    }
+
+    /**
+     * Close the connection once all queued responses have been written. Can be
+     * called from any thread. No further request is read from the connection,
+     * even if the response has been completed.
+     */
+    public void close() {
+        closeRequested = true;
+        reactor.update(this);
+    }
+
+    public boolean isClosed() {
+        return closeRequested || !channel.isOpen();
+    }
+
+    // -------------- Methods below are called on the reactor thread ---------
+
+    /**
+     * State the server keeps between reads of a partially received request,
+     * e.g. how far it has already scanned
+     *
+     * @return The object set through <code>setParseState()</code> or null
+     */
+    public Object getParseState() {
+        return parseState;
+    }
+
+    public void setParseState(Object parseState) {
+        this.parseState = parseState;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Read whatever is available on the channel and dispatch the request if it
+     * is complete
+     *
+     * @throws java.io.IOException
+     */
+    void read() throws IOException {
+        if (channel.read(readBuffer) == -1) {
+            closeChannel();
+            return;
+        }
+
+        if (dispatchIfComplete()) {
+            return;
+        }
+
+        if (!readBuffer.hasRemaining()) {
+            if (readBuffer.capacity() >= maxRequestSize) {
+                throw new IOException("Request has more than " + maxRequestSize
+                        + " bytes");
+            }
+
+            ByteBuffer larger = ByteBuffer.allocate( (int) Math.min(
+                    (long) readBuffer.capacity() * 2, maxRequestSize) );
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    /**
+     * Write as much of the queued responses as the socket accepts. The next
+     * request is only read once the response has been completed, never just
+     * because the queue ran empty between two sends of the same response.
+     *
+     * @throws java.io.IOException
+     */
+    void write() throws IOException {
+        //Everything queued before these were set is written below
+        boolean close = closeRequested;
+        boolean complete = responseComplete;
+
+        ByteBuffer data;
+        while ((data = writeQueue.peek()) != null) {
+            channel.write(data);
+            if (data.hasRemaining()) {
+                //Socket buffer is full. Wait till it is writable again
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            writeQueue.poll();
+        }
+
+        if (close) {
+            closeChannel();
+        } else if (!complete || closeRequested) {
+            //More of the response to come, or a close which raced with the
+            //writes above. Either way the stage updates the connection again
+            key.interestOps(0);
+        } else {
+            responseComplete = false;
+
+            //Keep the bytes of a pipelined request which were read along with
+            //the one just answered
+            readBuffer.flip();
+            readBuffer.position(requestLength);
+            readBuffer.compact();
+            requestLength = 0;
+
+            if (readBuffer.position() == 0 || !dispatchIfComplete()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    /**
+     * Hand the request over to the server if it has been read completely
+     *
+     * @return true if the request was dispatched
+     * @throws java.io.IOException if the request is invalid
+     */
+    private boolean dispatchIfComplete() throws IOException {
+        int length = reactor.getServer().getRequestLength(this,
+                readBuffer.array(), readBuffer.position());
+        if (length < 0) {
+            return false;
+        }
+
+        requestLength = length;
+        //Stop reading till the response has been written
+        key.interestOps(0);
+        reactor.getServer().dispatch(this);
+        return true;
+    }
+
+    void closeChannel() {
+        if (key != null) {
+            key.cancel();
+        }
+
+        try {
+            channel.close();
+        } catch (IOException ioe) {
+            //Nothing to do. The client is gone anyway
+        }
+    }
+
+    /**
+     * Buffers the response and queues it for writing on close
+     */
+    private class ResponseOutputStream extends ByteArrayOutputStream {
+        private boolean closed;
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                send( ByteBuffer.wrap(buf, 0, count) );
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A selector loop which owns a subset of the connections accepted by an
+ * <code>AbstractNioServer</code>. Other threads never touch the selector
+ * directly. They queue newly accepted channels and connection updates which
+ * are picked up by the reactor after a wakeup.
+ *
+ * @author Thejo
+ */
+class NioReactor implements Runnable {
+    private final AbstractNioServer server;
+    private final Selector selector;
+    private volatile boolean done;
+
+    private final ConcurrentLinkedQueue<SocketChannel> registrations =
+            new ConcurrentLinkedQueue<SocketChannel>();
+    private final ConcurrentLinkedQueue<NioConnection> updates =
+            new ConcurrentLinkedQueue<NioConnection>();
+
+    NioReactor(AbstractNioServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    AbstractNioServer getServer() {
+        return server;
+    }
+
+    /**
+     * Hand over a newly accepted channel to this reactor
+     *
+     * @param channel
+     */
+    void register(SocketChannel channel) {
+        registrations.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Notify the reactor that a connection has data to write or needs to
+     * be closed
+     *
+     * @param connection
+     */
+    void update(NioConnection connection) {
+        updates.add(connection);
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        done = true;
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (!done) {
+            try {
+                selector.select();
+                processRegistrations();
+                processUpdates();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        } else if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException ioe) {
+                        if (log.isDebugEnabled()) {
+                            log.debug("Closing connection: " + ioe.getMessage());
+                        }
+                        connection.closeChannel();
+                    }
+                }
+            } catch (ClosedSelectorException cse) {
+                break;
+            } catch (IOException ioe) {
+                log.warn(ioe.toString(), ioe);
+            }
+        }
+
+        closeAll();
+    }
+
+    private void processRegistrations() {
+        SocketChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            NioConnection connection = new NioConnection(channel, this,
+                    server.getInitialBufSize(), server.getMaxRequestSize());
+            try {
+                connection.setKey( channel.register(selector,
+                        SelectionKey.OP_READ, connection) );
+            } catch (IOException ioe) {
+                log.warn(ioe.toString(), ioe);
+                connection.closeChannel();
+            }
+        }
+    }
+
+    private void processUpdates() {
+        NioConnection connection;
+        while ((connection = updates.poll()) != null) {
+            if (!connection.getChannel().isOpen()) {
+                continue;
+            }
+
+            try {
+                connection.write();
+            } catch (IOException ioe) {
+                connection.closeChannel();
+            } catch (CancelledKeyException cke) {
+                connection.closeChannel();
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).closeChannel();
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ioe) {
+            //Shutting down anyway
+        }
+    }
+
+    private static final Logger log = Logger.getLogger(NioReactor.class);
+}
@@ -3,10 +3,14 @@ package in.kote.ssf.net;
 import java.util.*;
 import java.net.*;
 import java.io.*;
-import java.util.concurrent.locks.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import org.apache.log4j.Logger;
 
+import in.kote.ssf.concurrent.IStage;
+import in.kote.ssf.concurrent.Trace;
+import in.kote.ssf.net.codec.*;
 import in.kote.ssf.util.BasicUtilities;
 import in.kote.ssf.exceptions.SocketPoolException;
 
@@ -18,43 +22,267 @@ import in.kote.ssf.exceptions.SocketPoolException;
  * to open a new connection every time it is needed, we'll cache the connections
  * between endpoints and use them whenever needed.
  *
+ * Once <code>startMaintenance()</code> has been called, a background stage
+ * keeps a min. number of connections open to every endpoint and closes those
+ * which have been idle or open for too long. Connections which have been
+ * idle for a while are checked before they are handed out, so callers don't
+ * get one the peer has already closed.
+ *
  * NOTE: The socket pool assumes that consistent hashing is used to share
- * requests. The <code>ConsistentHash</code> should be initialized as required
+ * requests. The current <code>ConsistentHash</code> should be published as required
  * 
  * @author Thejo
  */
 public class SocketPool {
 
-    private static final Lock lock = new ReentrantLock();
-    private static Map<EndPoint, LinkedList<SocketPoolEntry>> socketPool =
-            new HashMap<EndPoint, LinkedList<SocketPoolEntry>>();
-    private static List<EndPoint> endPoints;
-    private static int perEndPointpoolSize;
+    /**
+     * Max. time to wait for a connection to an endpoint, and for the peer
+     * to complete the handshake
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Idle connections are closed after this long
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * Connections are closed after this long, however busy they are, so that
+     * they are spread again over the addresses of an endpoint and don't pin
+     * resources on the peer forever
+     */
+    public static final long DEFAULT_MAX_LIFETIME_MILLIS = 30 * 60 * 1000;
+
+    /**
+     * Connections which have been idle for longer than this are checked
+     * before they are handed out
+     */
+    public static final long DEFAULT_VALIDATION_IDLE_MILLIS = 1000;
+
+    /* Exchanged by both sides when a connection is made, "SSF" and a version */
+    private static final int HANDSHAKE = 0x53534601;
+
+    private static final ConcurrentMap<EndPoint, EndPointPool> socketPool =
+            new ConcurrentHashMap<EndPoint, EndPointPool>();
+    /* Immutable, replaced as a whole by updatePool() */
+    private static volatile List<EndPoint> endPoints;
+    private static volatile int perEndPointpoolSize;
+    private static volatile int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private static volatile Codec codec = new BinaryCodec();
+    private static volatile int minConnections;
+    private static volatile long idleTimeoutNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MILLIS);
+    private static volatile long maxLifetimeNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_LIFETIME_MILLIS);
+    private static volatile long validationIdleNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_VALIDATION_IDLE_MILLIS);
+    /* Stage warm-up and eviction run on, null if not started */
+    private static volatile IStage maintenanceStage;
+    private static ScheduledFuture<?> maintenanceTask;
+    /* Serializes changes to the set of endpoints, never taken by lookups */
+    private static final Object updateLock = new Object();
     
     /**
-     * Represents an entry in the list of connections to an endpoint
+     * Represents an entry in the list of connections to an endpoint. Messages
+     * are exchanged through a <code>MessageStream</code> using the codec the
+     * pool was configured with when the connection was made.
      */
     public static class SocketPoolEntry {
         private Socket socket;
-        private ObjectOutputStream outputStream;
-        private ObjectInputStream inputStream;
+        private MessageStream messageStream;
+        private final long createdAt = System.nanoTime();
+        private volatile long lastUsedAt = createdAt;
         
         public SocketPoolEntry(InetAddress address, int port) throws IOException {
-            socket = new Socket(address, port);
-            outputStream = new ObjectOutputStream( socket.getOutputStream() );
-            inputStream = new ObjectInputStream( socket.getInputStream() );
+            this(new InetSocketAddress(address, port), connectTimeoutMillis);
+        }
+
+        /**
+         * Connect to an endpoint and exchange the handshake
+         *
+         * @param address
+         * @param timeoutMillis - Max. time for the connect and, separately,
+         * for the handshake
+         * @throws java.io.IOException
+         */
+        public SocketPoolEntry(InetSocketAddress address, int timeoutMillis)
+                throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(address, timeoutMillis);
+
+                //Reading the reply blocks until the peer has sent it
+                socket.setSoTimeout(timeoutMillis);
+                DataOutputStream out = new DataOutputStream( socket.getOutputStream() );
+                out.writeInt(HANDSHAKE);
+                out.flush();
+                if( new DataInputStream( socket.getInputStream() ).readInt() != HANDSHAKE ) {
+                    throw new IOException("Unexpected handshake from " + address);
+                }
+                socket.setSoTimeout(0);
+
+                messageStream = new MessageStream(socket.getInputStream(),
+                        socket.getOutputStream(), codec);
+            } catch (IOException ioe) {
+                socket.close();
+                throw ioe;
+            }
         }
 
         public Socket getSocket() {
             return socket;
         }
 
-        public ObjectInputStream getInputStream() {
-            return inputStream;
+        public MessageStream getMessageStream() {
+            return messageStream;
         }
 
-        public ObjectOutputStream getOutputStream() {
-            return outputStream;
+        public void writeMessage(Object message) throws IOException {
+            messageStream.writeMessage(message);
+        }
+
+        public Object readMessage() throws IOException {
+            return messageStream.readMessage();
+        }
+
+        /**
+         * Check that the peer hasn't closed an idle connection, by waiting
+         * a millisecond for a byte. An idle connection has nothing to read,
+         * so anything but a timeout means it can't be used any more.
+         *
+         * @return true if the connection looks alive
+         */
+        boolean validate() {
+            try {
+                socket.setSoTimeout(1);
+                try {
+                    socket.getInputStream().read();
+                    return false;
+                } catch (SocketTimeoutException ste) {
+                    socket.setSoTimeout(0);
+                    return true;
+                }
+            } catch (IOException ioe) {
+                return false;
+            }
+        }
+
+        /**
+         * @return true if the connection has been open or idle for too long
+         */
+        boolean isExpired(long now) {
+            long idleTimeout = idleTimeoutNanos;
+            return isPastLifetime(now)
+                    || (idleTimeout > 0 && now - lastUsedAt > idleTimeout);
+        }
+
+        boolean isPastLifetime(long now) {
+            long maxLifetime = maxLifetimeNanos;
+            return maxLifetime > 0 && now - createdAt > maxLifetime;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ioe) {
+                //Nothing to do
+            }
+        }
+    }
+
+    /**
+     * The idle connections to one endpoint. Connections are taken from and
+     * returned to the head, so that the most recently used ones are reused
+     * and the others can time out.
+     */
+    private static final class EndPointPool {
+        private final ConcurrentLinkedDeque<SocketPoolEntry> idle =
+                new ConcurrentLinkedDeque<SocketPoolEntry>();
+        /* The deque has no constant time size() */
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private final AtomicBoolean warming = new AtomicBoolean();
+        private volatile boolean closed;
+
+        /**
+         * @return An idle connection which is open, hasn't expired and, if it
+         * has been idle for a while, has been validated. Others are closed
+         */
+        SocketPoolEntry poll() {
+            SocketPoolEntry entry;
+            while ( (entry = idle.pollFirst()) != null ) {
+                idleCount.decrementAndGet();
+
+                long now = System.nanoTime();
+                if (! entry.getSocket().isClosed() && ! entry.isExpired(now)
+                        && (now - entry.lastUsedAt <= validationIdleNanos
+                            || entry.validate()) ) {
+                    return entry;
+                }
+
+                if( log.isDebugEnabled() ) {
+                    log.debug("Discarded stale socket to endpoint " + entry.socket
+                            .getRemoteSocketAddress());
+                }
+                entry.close();
+            }
+            return null;
+        }
+
+        /**
+         * Close idle connections which have expired. Connections which
+         * have only been idle for too long are kept if the pool would drop
+         * below the min. number of connections
+         *
+         * @return Number of connections closed
+         */
+        int evict(long now, int min) {
+            int evicted = 0;
+            for (SocketPoolEntry entry : idle) {
+                boolean expired = entry.isPastLifetime(now)
+                        || (getIdleCount() > min && entry.isExpired(now));
+                if (expired && idle.remove(entry)) {
+                    idleCount.decrementAndGet();
+                    entry.close();
+                    evicted++;
+                }
+            }
+            return evicted;
+        }
+
+        int getIdleCount() {
+            return Math.max(0, idleCount.get());
+        }
+
+        /**
+         * @return false if the pool is full or closed, in which case the
+         * caller should close the connection
+         */
+        boolean offer(SocketPoolEntry entry) {
+            if (closed || idleCount.incrementAndGet() > perEndPointpoolSize) {
+                idleCount.decrementAndGet();
+                return false;
+            }
+
+            entry.lastUsedAt = System.nanoTime();
+            idle.offerFirst(entry);
+            if (closed) {
+                //Raced with close(), which may have missed this entry
+                closeIdle();
+            }
+            return true;
+        }
+
+        void closeIdle() {
+            SocketPoolEntry entry;
+            while ( (entry = idle.pollFirst()) != null ) {
+                idleCount.decrementAndGet();
+                entry.close();
+            }
+        }
+
+        void close() {
+            closed = true;
+            closeIdle();
         }
     }
     
@@ -73,77 +301,248 @@ public class SocketPool {
      */
     public static void initPool(List<EndPoint> endPointList, int poolSize) 
             throws SocketPoolException {
+        initPool(endPointList, poolSize, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Initialize the pool.
+     *
+     * @param endPointList
+     * @param poolSize - Max. number of idle connections kept per endpoint
+     * @param connectTimeoutMillis - Max. time to wait for a new connection
+     * @throws SocketPoolException
+     */
+    public static void initPool(List<EndPoint> endPointList, int poolSize,
+            int connectTimeoutMillis) throws SocketPoolException {
         
-        if(socketPool.size() > 0) {
-            throw new SocketPoolException("Socket pool has already been initialized");
-        }
-        
-        if(null == endPointList || endPointList.isEmpty() || poolSize == 0) {
+        if(null == endPointList || endPointList.isEmpty() || poolSize <= 0
+                || connectTimeoutMillis < 0) {
             throw new SocketPoolException("Invalid initialization parameters");
         }
         
-        endPoints = endPointList;
-        perEndPointpoolSize = poolSize;
+        synchronized (updateLock) {
+            if(null != endPoints) {
+                throw new SocketPoolException("Socket pool has already been initialized");
+            }
 
-        for (EndPoint ep : endPoints) {
-            //Don't create a pool of connections to self
-            if( BasicUtilities.isHostLocalHost(ep.getHost()) ) {
-                continue;
+            perEndPointpoolSize = poolSize;
+            SocketPool.connectTimeoutMillis = connectTimeoutMillis;
+
+            for (EndPoint ep : endPointList) {
+                //Don't create a pool of connections to self
+                if( BasicUtilities.isHostLocalHost(ep.getHost()) ) {
+                    continue;
+                }
+
+                socketPool.putIfAbsent(ep, new EndPointPool());
             }
 
-            LinkedList<SocketPoolEntry> socketList = initEndPoint(ep);
-            socketPool.put(ep, socketList);
+            endPoints = Collections.unmodifiableList(
+                    new ArrayList<EndPoint>(endPointList) );
         }
+
+        warmUp();
+    }
+
+    /**
+     * @return The current endpoints, as an immutable snapshot
+     */
+    public static List<EndPoint> getEndPoints() {
+        List<EndPoint> current = endPoints;
+        return (null == current) ? Collections.<EndPoint>emptyList() : current;
+    }
+
+    public static int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public static void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        SocketPool.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public static Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Set the codec used by connections made from now on. Defaults to a
+     * <code>BinaryCodec</code> with the built in schemas. All nodes must use
+     * the same codec.
+     *
+     * @param codec
+     */
+    public static void setCodec(Codec codec) {
+        SocketPool.codec = codec;
     }
     
     /**
-     * Initialize an endpoint. Just returns an empty linked list to hold the 
-     * cached connections
-     * @param ep - The endpoint to be initialized
-     * @return LinkedList<SocketPoolEntry>
-     * @throws in.kote.ssf.exceptions.SocketPoolException
+     * Number of idle connections the pool keeps open to every endpoint once
+     * maintenance has been started. Limited by the pool size. Defaults to 0,
+     * i.e, connections are only made on demand.
+     *
+     * @param minConnections
      */
-    public static LinkedList<SocketPoolEntry> initEndPoint(EndPoint ep) 
-            throws SocketPoolException {
-        
-        LinkedList<SocketPoolEntry> socketList = new LinkedList<SocketPoolEntry>();
-        
-        /* Don't connect on initialization. Lazy connect is better when there 
-         * are multiple nodes in the cluster
-        for(int i = 0; i < perEndPointpoolSize; i++) {
-            SocketPoolEntry entry = null;
-            
-            
-            try {
-                entry = getNewSocket(ep);
-            } catch (IOException ioe) {
-                throw new SocketPoolException(ioe.getMessage());
+    public static void setMinConnections(int minConnections) {
+        SocketPool.minConnections = minConnections;
+    }
+
+    public static int getMinConnections() {
+        return minConnections;
+    }
+
+    /**
+     * @param idleTimeoutMillis - Idle connections are closed after this
+     * long, 0 to keep them
+     */
+    public static void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    public static long getIdleTimeoutMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos);
+    }
+
+    /**
+     * @param maxLifetimeMillis - Connections are closed when they are
+     * returned, or evicted while idle, after this long. 0 for no limit
+     */
+    public static void setMaxLifetimeMillis(long maxLifetimeMillis) {
+        maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(maxLifetimeMillis);
+    }
+
+    public static long getMaxLifetimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLifetimeNanos);
+    }
+
+    /**
+     * @param validationIdleMillis - Connections idle for longer than this
+     * are checked for liveness before they are handed out, which costs up to
+     * a millisecond. 0 to check every connection
+     */
+    public static void setValidationIdleMillis(long validationIdleMillis) {
+        validationIdleNanos = TimeUnit.MILLISECONDS.toNanos(validationIdleMillis);
+    }
+
+    public static long getValidationIdleMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(validationIdleNanos);
+    }
+
+    /**
+     * @param ep
+     * @return Number of idle connections cached for the endpoint
+     */
+    public static int getIdleCount(EndPoint ep) {
+        EndPointPool pool = socketPool.get(ep);
+        return (null == pool) ? 0 : pool.getIdleCount();
+    }
+
+    /**
+     * Start evicting expired idle connections and keeping the min. number
+     * of connections open to every endpoint, on the given stage. Connections
+     * to new endpoints are made right away, and again whenever endpoints
+     * are added, instead of by the first requests to them. Every endpoint is
+     * warmed up by a task of its own, so that an endpoint which is down
+     * doesn't hold up the others.
+     *
+     * @param stage - A stage whose tasks may block on connects
+     * @param interval - Time between eviction runs
+     * @param unit
+     */
+    public static void startMaintenance(IStage stage, long interval, TimeUnit unit) {
+        synchronized (updateLock) {
+            stopMaintenance();
+
+            maintenanceStage = stage;
+            maintenanceTask = stage.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    maintain();
+                }
+            }, 0, interval, unit);
+        }
+    }
+
+    public static void stopMaintenance() {
+        synchronized (updateLock) {
+            if(null != maintenanceTask) {
+                maintenanceTask.cancel(false);
+                maintenanceTask = null;
             }
+            maintenanceStage = null;
+        }
+    }
 
-            socketList.add(entry);
+    /**
+     * Evict expired idle connections and warm up endpoints which are short
+     * of connections. Run periodically on the maintenance stage
+     */
+    private static void maintain() {
+        long now = System.nanoTime();
+        int min = minConnections;
+        int evicted = 0;
+        for (EndPointPool pool : socketPool.values()) {
+            evicted += pool.evict(now, min);
         }
-        */
-        
-        return socketList;
+
+        if(evicted > 0 && log.isDebugEnabled()) {
+            log.debug("Evicted " + evicted + " expired sockets");
+        }
+
+        warmUp();
     }
-    
+
+    private static void warmUp() {
+        for (Map.Entry<EndPoint, EndPointPool> entry : socketPool.entrySet()) {
+            warmUp(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Open connections to an endpoint until it has the min. number of idle
+     * ones, on the maintenance stage. Stops at the first failure, the next
+     * maintenance run tries again.
+     */
+    private static void warmUp(final EndPoint ep, final EndPointPool pool) {
+        IStage stage = maintenanceStage;
+        final int min = Math.min(minConnections, perEndPointpoolSize);
+        if(null == stage || pool.getIdleCount() >= min
+                || ! pool.warming.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            stage.execute(new Runnable() {
+                public void run() {
+                    try {
+                        while (! pool.closed && pool.getIdleCount() < min) {
+                            SocketPoolEntry entry = getNewSocket(ep);
+                            if(! pool.offer(entry)) {
+                                entry.close();
+                                break;
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        log.warn("Couldn't warm up sockets to endpoint " + ep
+                                + ": " + ioe.getMessage());
+                    } finally {
+                        pool.warming.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            pool.warming.set(false);
+        }
+    }
+
     /**
-     * Close all cached socket connections for a given endpoint
+     * Close all cached socket connections for a given endpoint. Connections
+     * in use are not affected
      * 
      * @param ep - The endpoint we want to disconnect from
      */
     public static void disconnectEndPoint(EndPoint ep) {
-        
-        LinkedList<SocketPoolEntry> socketList = socketPool.get(ep);
-        for (SocketPoolEntry entry : socketList) {
-            if(! entry.getSocket().isClosed()) try {
-                entry.getSocket().close();
-            } catch (IOException ioe) {
-                //The endpoint is no longer in use anyway
-            }
-            
-            //The endpoint has to be removed from the socketPool by the caller 
-            //in a thread safe way
+        EndPointPool pool = socketPool.get(ep);
+        if (pool != null) {
+            pool.closeIdle();
         }
     }
     
@@ -156,8 +555,9 @@ public class SocketPool {
      * @throws java.io.IOException
      */
     private static SocketPoolEntry getNewSocket(EndPoint ep) throws IOException {
-        SocketPoolEntry entry = new SocketPoolEntry( 
-                ep.getInetAddress(), ep.getPort() );
+        SocketPoolEntry entry = new SocketPoolEntry(
+                new InetSocketAddress(ep.getInetAddress(), ep.getPort()),
+                connectTimeoutMillis );
         
         if( log.isDebugEnabled() ) {
             log.debug("Created new socket to endpoint " + ep.toString());
@@ -172,7 +572,11 @@ public class SocketPool {
      * one and returns it. This will ensure that we don't have to block till a 
      * connection is available. Makes the implementation simpler and reduces 
      * chances of starvation. This may be a problem if too many connections are
-     * opened
+     * opened. <br />
+     *
+     * No lock is held while connecting, so a slow or dead endpoint only
+     * delays the callers which need a new connection to that endpoint, and
+     * for at most the connect timeout.
      * 
      * @param ep - The endpoint to which you need to connect
      * @return A <code>SocketPoolEntry</code> object
@@ -181,52 +585,37 @@ public class SocketPool {
     public static SocketPoolEntry getSocketPoolEntry(EndPoint ep) 
             throws SocketPoolException {
         
-        SocketPoolEntry entry = null;
+        if(null == ep) {
+            throw new SocketPoolException("Request socket for invalid EndPoint");
+        }
+
+        //Get a connection from the cache if available
+        EndPointPool pool = socketPool.get(ep);
+        SocketPoolEntry entry = (null == pool) ? null : pool.poll();
 
-        lock.lock();
-        try {            
-            if(null == ep) {
-                throw new SocketPoolException("Request socket for invalid EndPoint");
+        if(null != entry) {
+            if( log.isDebugEnabled() ) {
+                log.debug("Retrieved socket to endpoint " + ep.toString());
             }
-            
-            //Get a connection from the cache if available
-            if( socketPool.containsKey(ep) && socketPool.get(ep).size() > 0 ) {
-                LinkedList<SocketPoolEntry> socketList = socketPool.get(ep);
-                //Retrieve and remove the head
-                entry = socketList.poll();
-                
-                //Remove this endpoint if there are no other sockets available
-                if(socketList.size() == 0) {
-                    socketPool.remove(ep);
-                } else {
-                    socketPool.put(ep, socketList);
-                }
-                
-                if( log.isDebugEnabled() ) {
-                    log.debug("Retrieved socket to endpoint " + ep.toString());
-                }
-                
-            } else {
-                //Create a new connection and return that
-                try {
-                    entry = getNewSocket(ep);
-                } catch (IOException ioe) {
-                    throw new SocketPoolException(ioe.getMessage());
-                }
+        } else {
+            //Create a new connection and return that
+            try {
+                entry = getNewSocket(ep);
+            } catch (IOException ioe) {
+                throw new SocketPoolException(ioe.getMessage());
             }
-            
-            return entry;
-            
-        } finally {
-            lock.unlock();
         }
+
+        Trace.mark("socketpool.acquired");
+        return entry;
     }
     
     /**
      * Return a connection to the pool after use. This implementation tries to 
      * enforce the pool size defined when the socket pool was initialized, i.e, 
      * if the number of cached connections for an endpoint is equal to the max. 
-     * allowed number, the connection is simply closed.
+     * allowed number, the connection is simply closed. Connections to
+     * endpoints which have been removed from the pool are closed as well.
      * 
      * @param ep - The endpoint for which we want to return the connection
      * @param entry - The <code>SocketPoolEntry</code> object to be cached
@@ -235,46 +624,93 @@ public class SocketPool {
     public static void returnSocketPoolEntry(EndPoint ep, SocketPoolEntry entry) 
             throws SocketPoolException {
 
-        lock.lock();
+        if(null == ep || null == entry) {
+            throw new SocketPoolException("Can't add SocketEntry back to " +
+                    "pool. Invalid EndPoint or SocketEntry.");
+        }
+
         try {
-            
-            if(null == ep || null == entry) {
-                throw new SocketPoolException("Can't add SocketEntry back to " +
-                        "pool. Invalid EndPoint or SocketEntry.");
+            if( entry.getSocket().isClosed() ) {
+                return;
             }
-            
-            LinkedList<SocketPoolEntry> socketList = new LinkedList<SocketPoolEntry>();
-            
-            if( socketPool.containsKey(ep) ) {
-                socketList = socketPool.get(ep);
-                
-                if (socketList.size() < perEndPointpoolSize) {
-                    socketList.add(entry);
-                } else {
-                    if( ! entry.getSocket().isClosed() ) try {
-                        entry.getSocket().close();
-                    } catch (Exception ex) {
-                        log.warn(ex.toString(), ex);
-                    } finally {
-                        log.info("Closed excess socket to endpoint " + 
-                                ep.toString());
-                    }
-                }                
-                
+
+            if( entry.isPastLifetime(System.nanoTime()) ) {
+                entry.close();
+                return;
+            }
+
+            EndPointPool pool = socketPool.get(ep);
+            if(null == pool && isCurrent(ep)) {
+                //An endpoint which isn't pooled, e.g, this host
+                EndPointPool newPool = new EndPointPool();
+                pool = socketPool.putIfAbsent(ep, newPool);
+                if(null == pool) {
+                    pool = newPool;
+                }
+            }
+
+            if(null != pool && pool.offer(entry)) {
+                if( log.isDebugEnabled() ) {
+                    log.debug("Returned socket to endpoint " + ep.toString());
+                }
             } else {
-                socketList.add(entry);
+                entry.close();
+                log.info("Closed excess socket to endpoint " + ep.toString());
             }
-            
-            socketPool.put(ep, socketList);
-            
-            if( log.isDebugEnabled() ) {
-                log.debug("Returned socket to endpoint " + ep.toString());
-            }            
         } finally {
-            lock.unlock();
+            Trace.mark("socketpool.returned");
         }
     }
+
+    /**
+     * @return true if the endpoint is part of the current set of endpoints,
+     * or the pool hasn't been initialized with one
+     */
+    private static boolean isCurrent(EndPoint ep) {
+        List<EndPoint> current = endPoints;
+        return (null == current) || current.contains(ep);
+    }
     
+    /**
+     * Complete, on the accepting side, the handshake a
+     * <code>SocketPoolEntry</code> performs when it connects. Nothing beyond
+     * the handshake is read from the socket.
+     *
+     * @param socket - A newly accepted connection
+     * @param timeoutMillis - Max. time to wait for the peer
+     * @throws java.io.IOException if the peer isn't a socket pool
+     */
+    public static void acceptConnection(Socket socket, int timeoutMillis)
+            throws IOException {
+        int soTimeout = socket.getSoTimeout();
+        socket.setSoTimeout(timeoutMillis);
+
+        if( new DataInputStream( socket.getInputStream() ).readInt() != HANDSHAKE ) {
+            throw new IOException("Unexpected handshake from "
+                    + socket.getInetAddress());
+        }
+        DataOutputStream out = new DataOutputStream( socket.getOutputStream() );
+        out.writeInt(HANDSHAKE);
+        out.flush();
+
+        socket.setSoTimeout(soTimeout);
+    }
+
+    /**
+     * Accept a connection from a <code>SocketPool</code> on another node and
+     * wrap it for exchanging messages with the current codec
+     *
+     * @param socket - A newly accepted connection
+     * @return MessageStream
+     * @throws java.io.IOException
+     */
+    public static MessageStream acceptMessageStream(Socket socket)
+            throws IOException {
+        acceptConnection(socket, connectTimeoutMillis);
+        return new MessageStream(socket.getInputStream(), socket.getOutputStream(),
+                codec);
+    }
+
     /**
      * Utility function to make writing to given socket easier
      * 
@@ -331,48 +767,58 @@ public class SocketPool {
      */
     public static void updatePool(List<EndPoint> newList) 
             throws SocketPoolException {
-        
-        //Get the set of newly added endpoints
-        HashSet<EndPoint> addedEndPoints = new HashSet<EndPoint>( newList );
-        addedEndPoints.removeAll( endPoints );
 
-        //Get the set of removed endpoints
-        HashSet<EndPoint> removedEndPoints = new HashSet<EndPoint>( endPoints );
-        removedEndPoints.removeAll( newList );
+        if(null == newList) {
+            throw new SocketPoolException("Invalid list of endpoints");
+        }
+
+        synchronized (updateLock) {
+            List<EndPoint> current = getEndPoints();
+
+            //Get the set of newly added endpoints
+            HashSet<EndPoint> addedEndPoints = new HashSet<EndPoint>( newList );
+            addedEndPoints.removeAll( current );
+
+            //Get the set of endpoints to disconnect from. Pooled rather than
+            //previously listed, so that endpoints kept below on an earlier
+            //cycle are picked up again
+            HashSet<EndPoint> removedEndPoints = new HashSet<EndPoint>(
+                    socketPool.keySet() );
+            removedEndPoints.removeAll( newList );
 
-        lock.lock();
-        try {
             //Update the socket pool with connections to new endpoints
-            if(addedEndPoints.size() > 0) for (EndPoint ep : addedEndPoints) {
+            for (EndPoint ep : addedEndPoints) {
                 if( BasicUtilities.isHostLocalHost(ep.getHost()) ) {
                     continue;
                 }
 
-                LinkedList<SocketPoolEntry> socketList = initEndPoint(ep);
-                socketPool.put(ep, socketList);
+                socketPool.putIfAbsent(ep, new EndPointPool());
             }
 
+            //Publish the new snapshot before connections are closed, so that
+            //connections returned from now on to removed endpoints are closed
+            endPoints = Collections.unmodifiableList(
+                    new ArrayList<EndPoint>(newList) );
+
             //Disconnect from removed endpoints
-            if(removedEndPoints.size() > 0) for (EndPoint ep: removedEndPoints) {
+            for (EndPoint ep: removedEndPoints) {
                 /**
                  * Don't remove if the endpoint is still part of the consistent hash. 
                  * The socket connections may be in use. We'll remove them in the 
                  * next update cycle.
                  */
-                if(  ConsistentHash.consistentHash.containsValue(ep) ) {
+                if(  ConsistentHash.getCurrent().contains(ep) ) {
                     continue;
                 }
 
-                disconnectEndPoint(ep);
-                socketPool.remove(ep);
+                EndPointPool pool = socketPool.remove(ep);
+                if(null != pool) {
+                    pool.close();
+                }
             }
-
-            //Update the current list of endpoints
-            endPoints = new ArrayList<EndPoint>( newList );
-        
-        } finally {
-            lock.unlock();
         }
+
+        warmUp();
     }
     
     /**
@@ -382,19 +828,17 @@ public class SocketPool {
      */
     public static void shutdown() {
 
-        lock.lock();
-        try {
-            
-            Iterator<EndPoint> it = socketPool.keySet().iterator();
-            while(it.hasNext()) {
-                EndPoint ep = it.next();
+        synchronized (updateLock) {
+            stopMaintenance();
 
-                disconnectEndPoint(ep);
+            Iterator<EndPointPool> it = socketPool.values().iterator();
+            while(it.hasNext()) {
+                EndPointPool pool = it.next();
                 it.remove();
+                pool.close();
             }
-            
-        }  finally {
-            lock.unlock();
+
+            endPoints = null;
         }
     }//End of shutdown() method
     
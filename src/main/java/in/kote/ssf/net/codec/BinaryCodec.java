@@ -0,0 +1,247 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.codec;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact binary codec driven by registered <code>MessageSchema</code>s.
+ * <br />
+ *
+ * A message is written as the type id of its schema followed by whatever the
+ * schema writes, so a message costs a byte or two plus its fields, instead of
+ * the class descriptors Java serialization sends and the handle table it
+ * keeps growing for the life of a stream. Schemas for null, strings, byte
+ * arrays, the boxed primitives, lists and maps are built in. Other classes
+ * need a schema of their own, messages without one are rejected.
+ *
+ * @author Thejo
+ */
+public class BinaryCodec implements Codec {
+
+    /**
+     * Type ids below this are reserved for the built in schemas
+     */
+    public static final int FIRST_USER_TYPE_ID = 32;
+
+    /**
+     * How deeply lists, maps and messages may be nested in a decoded message.
+     * Bounds the recursion a crafted message can cause
+     */
+    public static final int MAX_DEPTH = 64;
+
+    private static final int NULL_TYPE_ID = 0;
+    private static final int LIST_TYPE_ID = 7;
+    private static final int MAP_TYPE_ID = 8;
+
+    private final Map<Class<?>, MessageSchema<?>> schemasByType =
+            new ConcurrentHashMap<Class<?>, MessageSchema<?>>();
+    private final Map<Integer, MessageSchema<?>> schemasById =
+            new ConcurrentHashMap<Integer, MessageSchema<?>>();
+
+    public BinaryCodec() {
+        add(new MessageSchema<String>(1, String.class) {
+            public void write(String message, BinaryOutput out, BinaryCodec codec) {
+                out.writeString(message);
+            }
+
+            public String read(BinaryInput in, BinaryCodec codec) throws IOException {
+                return in.readString();
+            }
+        });
+
+        add(new MessageSchema<byte[]>(2, byte[].class) {
+            public void write(byte[] message, BinaryOutput out, BinaryCodec codec) {
+                out.writeBytes(message);
+            }
+
+            public byte[] read(BinaryInput in, BinaryCodec codec) throws IOException {
+                return in.readBytes();
+            }
+        });
+
+        add(new MessageSchema<Integer>(3, Integer.class) {
+            public void write(Integer message, BinaryOutput out, BinaryCodec codec) {
+                out.writeInt(message);
+            }
+
+            public Integer read(BinaryInput in, BinaryCodec codec) throws IOException {
+                return in.readInt();
+            }
+        });
+
+        add(new MessageSchema<Long>(4, Long.class) {
+            public void write(Long message, BinaryOutput out, BinaryCodec codec) {
+                out.writeLong(message);
+            }
+
+            public Long read(BinaryInput in, BinaryCodec codec) throws IOException {
+                return in.readLong();
+            }
+        });
+
+        add(new MessageSchema<Boolean>(5, Boolean.class) {
+            public void write(Boolean message, BinaryOutput out, BinaryCodec codec) {
+                out.writeBoolean(message);
+            }
+
+            public Boolean read(BinaryInput in, BinaryCodec codec) throws IOException {
+                return in.readBoolean();
+            }
+        });
+
+        add(new MessageSchema<Double>(6, Double.class) {
+            public void write(Double message, BinaryOutput out, BinaryCodec codec) {
+                out.writeDouble(message);
+            }
+
+            public Double read(BinaryInput in, BinaryCodec codec) throws IOException {
+                return in.readDouble();
+            }
+        });
+
+        add(new MessageSchema<List<?>>(LIST_TYPE_ID,
+                BinaryCodec.<List<?>>type(List.class)) {
+            public void write(List<?> message, BinaryOutput out, BinaryCodec codec)
+                    throws IOException {
+                out.writeVarInt(message.size());
+                for (Object element : message) {
+                    codec.encode(element, out);
+                }
+            }
+
+            public List<?> read(BinaryInput in, BinaryCodec codec) throws IOException {
+                int size = checkSize(in.readVarInt(), in);
+                List<Object> list = new ArrayList<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add( codec.decode(in) );
+                }
+                return list;
+            }
+        });
+
+        add(new MessageSchema<Map<?, ?>>(MAP_TYPE_ID,
+                BinaryCodec.<Map<?, ?>>type(Map.class)) {
+            public void write(Map<?, ?> message, BinaryOutput out, BinaryCodec codec)
+                    throws IOException {
+                out.writeVarInt(message.size());
+                for (Map.Entry<?, ?> entry : message.entrySet()) {
+                    codec.encode(entry.getKey(), out);
+                    codec.encode(entry.getValue(), out);
+                }
+            }
+
+            public Map<?, ?> read(BinaryInput in, BinaryCodec codec) throws IOException {
+                int size = checkSize(in.readVarInt(), in);
+                Map<Object, Object> map = new HashMap<Object, Object>(size * 4 / 3 + 1);
+                for (int i = 0; i < size; i++) {
+                    map.put( codec.decode(in), codec.decode(in) );
+                }
+                return map;
+            }
+        });
+    }
+
+    /**
+     * Register the schema of an application message class
+     *
+     * @param schema
+     * @throws IllegalArgumentException if the type id is reserved or taken
+     */
+    public void register(MessageSchema<?> schema) {
+        if (schema.getTypeId() < FIRST_USER_TYPE_ID) {
+            throw new IllegalArgumentException("Type id " + schema.getTypeId()
+                    + " is reserved");
+        }
+        add(schema);
+    }
+
+    public void encode(Object message, BinaryOutput out) throws IOException {
+        if (null == message) {
+            out.writeVarInt(NULL_TYPE_ID);
+            return;
+        }
+
+        MessageSchema<?> schema = schemasByType.get( message.getClass() );
+        if (null == schema) {
+            //Any implementation of the collection interfaces
+            if (message instanceof List) {
+                schema = schemasById.get(LIST_TYPE_ID);
+            } else if (message instanceof Map) {
+                schema = schemasById.get(MAP_TYPE_ID);
+            } else {
+                throw new NotSerializableException("No schema registered for "
+                        + message.getClass().getName());
+            }
+        }
+
+        out.writeVarInt( schema.getTypeId() );
+        write(schema, message, out);
+    }
+
+    public Object decode(BinaryInput in) throws IOException {
+        int typeId = in.readVarInt();
+        if (NULL_TYPE_ID == typeId) {
+            return null;
+        }
+
+        MessageSchema<?> schema = schemasById.get(typeId);
+        if (null == schema) {
+            throw new StreamCorruptedException("Unknown type id " + typeId);
+        }
+
+        if (in.depth >= MAX_DEPTH) {
+            throw new StreamCorruptedException("Message nested more than "
+                    + MAX_DEPTH + " levels deep");
+        }
+
+        in.depth++;
+        try {
+            return schema.read(in, this);
+        } finally {
+            in.depth--;
+        }
+    }
+
+    private synchronized void add(MessageSchema<?> schema) {
+        if (schemasById.containsKey( schema.getTypeId() )
+                || schemasByType.containsKey( schema.getType() )) {
+            throw new IllegalArgumentException("A schema for type id "
+                    + schema.getTypeId() + " or " + schema.getType().getName()
+                    + " is already registered");
+        }
+
+        schemasById.put(schema.getTypeId(), schema);
+        schemasByType.put(schema.getType(), schema);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void write(MessageSchema<T> schema, Object message,
+            BinaryOutput out) throws IOException {
+        schema.write((T) message, out, this);
+    }
+
+    /**
+     * The class literal of a generic type, e.g <code>List&lt;?&gt;</code>
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Class<T> type(Class<?> type) {
+        return (Class<T>) type;
+    }
+
+    /**
+     * Every element takes at least a byte, which bounds the size of a
+     * collection a corrupt length can make us allocate
+     */
+    private static int checkSize(int size, BinaryInput in) throws IOException {
+        if (size > in.remaining()) {
+            throw new StreamCorruptedException("Invalid collection size " + size);
+        }
+        return size;
+    }
+}
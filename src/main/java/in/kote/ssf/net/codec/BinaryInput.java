@@ -0,0 +1,131 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.codec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads values written by a <code>BinaryOutput</code> from a buffer holding
+ * one message. Reading past the end of the message, or a length which
+ * doesn't fit in it, is reported as an <code>IOException</code> rather than
+ * a runtime exception, since the bytes come from another node.
+ *
+ * @author Thejo
+ */
+public final class BinaryInput {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+
+    /**
+     * How deeply nested the message being decoded is, see
+     * <code>BinaryCodec.MAX_DEPTH</code>
+     */
+    int depth;
+
+    public BinaryInput(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public BinaryInput(byte[] data, int offset, int length) {
+        this( ByteBuffer.wrap(data, offset, length) );
+    }
+
+    public int readByte() throws IOException {
+        need(1);
+        return buffer.get();
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public int readInt() throws IOException {
+        need(4);
+        return buffer.getInt();
+    }
+
+    public long readLong() throws IOException {
+        need(8);
+        return buffer.getLong();
+    }
+
+    public double readDouble() throws IOException {
+        need(8);
+        return buffer.getDouble();
+    }
+
+    public int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Invalid variable length int");
+    }
+
+    public byte[] readBytes() throws IOException {
+        int length = readVarInt();
+        need(length);
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return value;
+    }
+
+    public String readString() throws IOException {
+        int length = readVarInt();
+        need(length);
+        int pos = buffer.position();
+        String value = new String(buffer.array(), buffer.arrayOffset() + pos,
+                length, UTF8);
+        buffer.position(pos + length);
+        return value;
+    }
+
+    /**
+     * @return Number of bytes left in the message
+     */
+    public int remaining() {
+        return buffer.remaining();
+    }
+
+    /**
+     * @return A stream over the rest of the message
+     */
+    public InputStream asInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                len = Math.min(len, buffer.remaining());
+                buffer.get(b, off, len);
+                return len;
+            }
+        };
+    }
+
+    private void need(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            throw new EOFException("Message truncated");
+        }
+    }
+}
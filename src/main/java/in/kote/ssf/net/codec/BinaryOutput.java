@@ -0,0 +1,208 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.codec;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import in.kote.ssf.concurrent.ThreadArena;
+
+/**
+ * A growable buffer messages are encoded into. The buffer is borrowed from
+ * the <code>ThreadArena</code> of the current thread and must be given back
+ * with <code>release()</code> by the same thread. Multi-byte values are big
+ * endian, lengths are written as variable length integers.
+ *
+ * @author Thejo
+ */
+public final class BinaryOutput {
+
+    private ThreadArena arena;
+    private ByteBuffer buffer;
+
+    public BinaryOutput(int initialSize) {
+        arena = ThreadArena.current();
+        buffer = ByteBuffer.wrap( arena.borrowBuffer(initialSize) );
+    }
+
+    public void writeByte(int value) {
+        ensure(1);
+        buffer.put((byte) value);
+    }
+
+    public void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    public void writeInt(int value) {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    public void writeLong(long value) {
+        ensure(8);
+        buffer.putLong(value);
+    }
+
+    public void writeDouble(double value) {
+        ensure(8);
+        buffer.putDouble(value);
+    }
+
+    /**
+     * Write a non-negative int in 1 to 5 bytes, 7 bits at a time
+     *
+     * @param value
+     */
+    public void writeVarInt(int value) {
+        ensure(5);
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public void writeBytes(byte[] value) {
+        writeBytes(value, 0, value.length);
+    }
+
+    public void writeBytes(byte[] value, int offset, int length) {
+        writeVarInt(length);
+        writeRaw(value, offset, length);
+    }
+
+    public void writeRaw(byte[] value, int offset, int length) {
+        ensure(length);
+        buffer.put(value, offset, length);
+    }
+
+    /**
+     * Write a string as its length in bytes followed by its UTF-8 encoding
+     *
+     * @param value
+     */
+    public void writeString(String value) {
+        int length = value.length();
+        int utfLength = utfLength(value, length);
+        writeVarInt(utfLength);
+        ensure(utfLength);
+
+        byte[] array = buffer.array();
+        int pos = buffer.position();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                array[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                array[pos++] = (byte) (0xC0 | (c >> 6));
+                array[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                array[pos++] = (byte) (0xF0 | (cp >> 18));
+                array[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                array[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                array[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                //Unpaired surrogate, encoded as '?' like String.getBytes()
+                array[pos++] = (byte) '?';
+            } else {
+                array[pos++] = (byte) (0xE0 | (c >> 12));
+                array[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                array[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        buffer.position(pos);
+    }
+
+    /**
+     * @return Number of bytes written so far
+     */
+    public int size() {
+        return buffer.position();
+    }
+
+    /**
+     * @return The backing array, valid up to <code>size()</code>
+     */
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    /**
+     * Overwrite an int written earlier, e.g, a length which wasn't known
+     * when it was reserved
+     *
+     * @param position
+     * @param value
+     */
+    public void putInt(int position, int value) {
+        buffer.putInt(position, value);
+    }
+
+    /**
+     * @return A stream which appends to this buffer
+     */
+    public OutputStream asOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                writeByte(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                writeRaw(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Give the buffer back to the arena. The object must not be used after
+     * this
+     */
+    public void release() {
+        if (null != buffer) {
+            arena.releaseBuffer( buffer.array() );
+            buffer = null;
+        }
+    }
+
+    private void ensure(int length) {
+        if (buffer.remaining() >= length) {
+            return;
+        }
+
+        int size = buffer.position();
+        int newSize = Math.max(buffer.capacity() * 2, size + length);
+        ByteBuffer newBuffer = ByteBuffer.wrap( arena.borrowBuffer(newSize) );
+        newBuffer.put(buffer.array(), 0, size);
+        arena.releaseBuffer( buffer.array() );
+        buffer = newBuffer;
+    }
+
+    private static int utfLength(String value, int length) {
+        int utfLength = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                utfLength += 1;
+            } else if (c < 0x800) {
+                utfLength += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                utfLength += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                utfLength += 1;
+            } else {
+                utfLength += 3;
+            }
+        }
+        return utfLength;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.codec;
+
+import java.io.IOException;
+
+/**
+ * Turns the messages exchanged between nodes into bytes and back. A codec
+ * only deals with the body of a message, the framing is done by the
+ * <code>MessageStream</code>. Codecs are shared by all connections and must
+ * be thread safe.
+ *
+ * @see BinaryCodec
+ * @see SerializationCodec
+ * @author Thejo
+ */
+public interface Codec {
+
+    /**
+     * @param message
+     * @param out - Buffer the message is appended to
+     * @throws java.io.IOException if the message can't be encoded
+     */
+    public void encode(Object message, BinaryOutput out) throws IOException;
+
+    /**
+     * @param in - Buffer holding exactly one message
+     * @return The message
+     * @throws java.io.IOException if the bytes don't make up a valid message
+     */
+    public Object decode(BinaryInput in) throws IOException;
+}
@@ -0,0 +1,58 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.codec;
+
+import java.io.IOException;
+
+/**
+ * Encodes and decodes messages of one class for a <code>BinaryCodec</code>.
+ * A schema writes the fields of a message in a fixed order, without any
+ * field names or class descriptors, e.g,
+ * <pre>
+ * new MessageSchema&lt;Lookup&gt;(40, Lookup.class) {
+ *     public void write(Lookup msg, BinaryOutput out, BinaryCodec codec) {
+ *         out.writeString(msg.key);
+ *         out.writeLong(msg.version);
+ *     }
+ *     public Lookup read(BinaryInput in, BinaryCodec codec) throws IOException {
+ *         return new Lookup(in.readString(), in.readLong());
+ *     }
+ * };
+ * </pre>
+ * Fields which may hold any registered type are written with
+ * <code>codec.encode()</code>. All nodes must register the same schemas
+ * with the same type ids.
+ *
+ * @author Thejo
+ */
+public abstract class MessageSchema<T> {
+
+    private final int typeId;
+    private final Class<T> type;
+
+    /**
+     * @param typeId - Identifies the class on the wire, at least
+     * <code>BinaryCodec.FIRST_USER_TYPE_ID</code> for application schemas
+     * @param type - The class of the messages, sub-classes are not matched
+     */
+    protected MessageSchema(int typeId, Class<T> type) {
+        this.typeId = typeId;
+        this.type = type;
+    }
+
+    public int getTypeId() {
+        return typeId;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    public abstract void write(T message, BinaryOutput out, BinaryCodec codec)
+            throws IOException;
+
+    public abstract T read(BinaryInput in, BinaryCodec codec) throws IOException;
+}
@@ -0,0 +1,105 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.codec;
+
+import java.io.*;
+
+import in.kote.ssf.concurrent.ThreadArena;
+
+/**
+ * Sends and receives messages on a connection, each framed by a 4 byte
+ * length. A message is encoded into a buffer borrowed from the arena of the
+ * calling thread and written in one go, received messages are read whole
+ * into a borrowed buffer before they are decoded. So in the steady state
+ * no buffers are allocated per message. <br />
+ *
+ * Like the socket it wraps, a message stream may be used by one writer and
+ * one reader at a time.
+ *
+ * @author Thejo
+ */
+public class MessageStream {
+
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 512;
+
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Codec codec;
+    private final int maxMessageSize;
+
+    public MessageStream(InputStream in, OutputStream out, Codec codec) {
+        this(in, out, codec, DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * @param in
+     * @param out
+     * @param codec
+     * @param maxMessageSize - Larger messages are refused in both directions
+     */
+    public MessageStream(InputStream in, OutputStream out, Codec codec,
+            int maxMessageSize) {
+        this.in = new DataInputStream( new BufferedInputStream(in, 8192) );
+        this.out = out;
+        this.codec = codec;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public void writeMessage(Object message) throws IOException {
+        BinaryOutput buffer = new BinaryOutput(INITIAL_BUFFER_SIZE);
+        try {
+            //Reserve the length
+            buffer.writeInt(0);
+            codec.encode(message, buffer);
+
+            int length = buffer.size() - 4;
+            if (length > maxMessageSize) {
+                throw new IOException("Message of " + length + " bytes is too large");
+            }
+            buffer.putInt(0, length);
+
+            out.write(buffer.array(), 0, buffer.size());
+            out.flush();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Block until the next message has arrived
+     *
+     * @return The message
+     * @throws java.io.IOException
+     */
+    public Object readMessage() throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxMessageSize) {
+            throw new StreamCorruptedException("Invalid message length " + length);
+        }
+
+        ThreadArena arena = ThreadArena.current();
+        byte[] buffer = arena.borrowBuffer(length);
+        try {
+            in.readFully(buffer, 0, length);
+
+            BinaryInput input = new BinaryInput(buffer, 0, length);
+            Object message = codec.decode(input);
+            if (input.remaining() != 0) {
+                throw new StreamCorruptedException(input.remaining()
+                        + " bytes left after message");
+            }
+            return message;
+        } finally {
+            arena.releaseBuffer(buffer);
+        }
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.codec;
+
+import java.io.*;
+
+/**
+ * Encodes messages with Java serialization, for <code>Serializable</code>
+ * messages which have no schema. Every message is written with a stream of
+ * its own, so unlike a long lived <code>ObjectOutputStream</code> no handle
+ * table builds up, but class descriptors are sent with every message. Prefer
+ * the <code>BinaryCodec</code>.
+ *
+ * @author Thejo
+ */
+public class SerializationCodec implements Codec {
+
+    public void encode(Object message, BinaryOutput out) throws IOException {
+        ObjectOutputStream stream = new ObjectOutputStream( out.asOutputStream() );
+        stream.writeObject(message);
+        stream.flush();
+    }
+
+    public Object decode(BinaryInput in) throws IOException {
+        ObjectInputStream stream = new ObjectInputStream( in.asInputStream() );
+        try {
+            return stream.readObject();
+        } catch (ClassNotFoundException cnfe) {
+            throw new InvalidClassException(cnfe.getMessage());
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.http;
+
+import java.io.IOException;
+
+import in.kote.ssf.net.AbstractNioServer;
+import in.kote.ssf.net.CommSocket;
+import in.kote.ssf.net.NioConnection;
+
+/**
+ * A non-blocking HTTP server. A request is handed over to the next stage once
+ * the headers and <code>Content-Length</code> bytes of body have been read.
+ * The task created by sub-classes can use <code>HttpRequestHandler</code> as
+ * usual to parse the request and write the response.
+ *
+ * @author Thejo
+ */
+public abstract class AbstractHttpNioServer extends AbstractNioServer {
+
+    private static final String TRANSFER_ENCODING = "transfer-encoding";
+
+    private IHttpServerConfiguration serverConfig;
+
+    public AbstractHttpNioServer(int port) {
+        this(port, new DefaultHttpServerConfiguration());
+    }
+
+    public AbstractHttpNioServer(int port, IHttpServerConfiguration config) {
+        this(port, DEFAULT_BACKLOG, DEFAULT_REACTOR_COUNT, config);
+    }
+
+    public AbstractHttpNioServer(int port, int backlog, int reactorCount,
+            IHttpServerConfiguration config) {
+        super(port, backlog, reactorCount);
+        this.serverConfig = config;
+    }
+
+    public IHttpServerConfiguration getServerConfig() {
+        return serverConfig;
+    }
+
+    @Override
+    protected int getInitialBufSize() {
+        return serverConfig.getDefaultBufSize();
+    }
+
+    @Override
+    protected int getMaxRequestSize() {
+        return (int) Math.min(Integer.MAX_VALUE,
+                serverConfig.getHeaderPartMaxSize() + serverConfig.getMaxPostSize());
+    }
+
+    /**
+     * Answers with a 503 when the next stage is overloaded
+     */
+    @Override
+    protected void rejected(CommSocket socket) {
+        try {
+            HttpRequestHandler.writeServiceUnavailable(socket);
+        } catch (IOException ioe) {
+            socket.getConnection().close();
+        }
+    }
+
+    /**
+     * Checks for the end of the header section and, if a
+     * <code>Content-Length</code> header is present, that the complete body
+     * has been received
+     */
+    @Override
+    protected boolean isRequestComplete(byte[] data, int length) {
+        try {
+            return scan(new HeaderScan(), data, length) >= 0;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    /**
+     * Scans only the bytes received since the last read of the request. The
+     * end of the headers and the <code>Content-Length</code> are found once
+     * and kept on the connection till the request is complete. Bytes past the
+     * body are left for the next pipelined request.
+     */
+    @Override
+    protected int getRequestLength(NioConnection connection, byte[] data,
+            int length) throws IOException {
+        HeaderScan state = (HeaderScan) connection.getParseState();
+        if (state == null) {
+            state = new HeaderScan();
+            connection.setParseState(state);
+        }
+
+        int requestLength = scan(state, data, length);
+        if (requestLength >= 0) {
+            //The next request starts from scratch
+            connection.setParseState(null);
+        }
+
+        return requestLength;
+    }
+
+    private int scan(HeaderScan state, byte[] data, int length)
+            throws IOException {
+        if (state.requestLength < 0) {
+            //The separator can straddle two reads
+            int from = Math.max(0,
+                    state.scanned - HttpRequestParser.HEADER_SEPARATOR.length + 1);
+            int headerEnd = indexOfHeaderSeparator(data, from, length);
+            if (headerEnd < 0) {
+                state.scanned = length;
+                return -1;
+            }
+
+            long contentLength = getContentLength(data, headerEnd);
+            if (contentLength > serverConfig.getMaxPostSize()
+                    || headerEnd + contentLength > getMaxRequestSize()) {
+                throw new IOException("Content-Length " + contentLength
+                        + " is more than " + serverConfig.getMaxPostSize());
+            }
+            state.requestLength = (int) (headerEnd + contentLength);
+        }
+
+        return length >= state.requestLength ? state.requestLength : -1;
+    }
+
+    /**
+     * Returns the index just past the <code>CRLFCRLF</code> which terminates
+     * the headers or -1 if it has not been received yet
+     */
+    private static int indexOfHeaderSeparator(byte[] data, int from, int length) {
+        byte[] separator = HttpRequestParser.HEADER_SEPARATOR;
+
+        for (int i = from; i + separator.length <= length; i++) {
+            int j = 0;
+            while (j < separator.length && data[i + j] == separator[j]) {
+                j++;
+            }
+
+            if (j == separator.length) {
+                return i + separator.length;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Extracts the value of the <code>Content-Length</code> header without
+     * creating a string for every header line. The request must be framed
+     * exactly as <code>HttpRequestParser</code> will read it, otherwise a
+     * pipelined request could be smuggled in the body of another. So only a
+     * header named exactly <code>Content-Length</code> counts, its value must
+     * be a plain decimal, repeated values must agree and bodies with a
+     * <code>Transfer-Encoding</code> are refused.
+     *
+     * @return The length of the body, 0 if there is no Content-Length header
+     * @throws IOException if the headers don't frame the request clearly
+     */
+    static long getContentLength(byte[] data, int headerEnd)
+            throws IOException {
+        long contentLength = -1;
+        int lineStart = 0;
+
+        while (lineStart < headerEnd) {
+            int lineEnd = lineStart;
+            while (lineEnd < headerEnd && data[lineEnd] != HttpRequestParser.LF) {
+                lineEnd++;
+            }
+
+            int colon = indexOfHeaderValue(data, lineStart, lineEnd);
+            if (colon >= 0) {
+                int nameLength = colon - lineStart;
+                while (nameLength > 0 && isWhitespace(data[lineStart + nameLength - 1])) {
+                    nameLength--;
+                }
+
+                if (isHeader(data, lineStart, nameLength,
+                        HttpRequestParser.CONTENT_LENGTH)) {
+                    long value = parseContentLength(data, colon + 1, lineEnd);
+                    if (contentLength >= 0 && contentLength != value) {
+                        throw new IOException("Conflicting Content-Length headers");
+                    }
+                    contentLength = value;
+                } else if (isHeader(data, lineStart, nameLength, TRANSFER_ENCODING)) {
+                    throw new IOException("Transfer-Encoding is not supported");
+                }
+            }
+
+            lineStart = lineEnd + 1;
+        }
+
+        return Math.max(0, contentLength);
+    }
+
+    /**
+     * Returns the index of the colon after the name of a header line, or -1
+     * for the request line and lines continuing a previous header
+     */
+    private static int indexOfHeaderValue(byte[] data, int lineStart, int lineEnd) {
+        if (lineStart == lineEnd || isWhitespace(data[lineStart])) {
+            return -1;
+        }
+
+        for (int i = lineStart; i < lineEnd; i++) {
+            if (data[i] == ':') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isHeader(byte[] data, int offset, int length,
+            String lowerCaseName) {
+        return length == lowerCaseName.length()
+                && regionMatchesIgnoreCase(data, offset, lowerCaseName);
+    }
+
+    /**
+     * Parses a decimal value surrounded by optional white space
+     */
+    private static long parseContentLength(byte[] data, int start, int end)
+            throws IOException {
+        while (start < end && isWhitespace(data[start])) {
+            start++;
+        }
+        while (end > start && isWhitespace(data[end - 1])) {
+            end--;
+        }
+
+        if (start == end) {
+            throw new IOException("Invalid Content-Length");
+        }
+
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            if (data[i] < '0' || data[i] > '9' || value > Integer.MAX_VALUE) {
+                throw new IOException("Invalid Content-Length");
+            }
+            value = (value * 10) + (data[i] - '0');
+        }
+
+        return value;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private static boolean regionMatchesIgnoreCase(byte[] data, int offset,
+            String lowerCaseKey) {
+        for (int i = 0; i < lowerCaseKey.length(); i++) {
+            if (Character.toLowerCase((char) data[offset + i])
+                    != lowerCaseKey.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * How far a partially read request has been scanned
+     */
+    private static final class HeaderScan {
+        int scanned;
+        int requestLength = -1;
+    }
+}
@@ -8,6 +8,7 @@ package in.kote.ssf.net.http;
 import java.io.ByteArrayOutputStream;
 import java.util.*;
 
+import in.kote.ssf.concurrent.ThreadArena;
 import in.kote.ssf.net.CommSocket;
 
 /**
@@ -17,6 +18,33 @@ import in.kote.ssf.net.CommSocket;
  */
 public class HttpRequest {
 
+    /**
+     * Keeps requests in the arena of the thread parsing them
+     *
+     * @see HttpRequestHandler#release(HttpRequest)
+     */
+    static final ThreadArena.Recycler<HttpRequest> RECYCLER =
+            new ThreadArena.Recycler<HttpRequest>() {
+        protected HttpRequest newObject() {
+            return new HttpRequest();
+        }
+
+        protected boolean reset(HttpRequest request) {
+            if (request.released) {
+                //Released twice, it must be pooled only once
+                return false;
+            }
+            request.reset();
+            request.released = true;
+            return true;
+        }
+    };
+
+    /**
+     * Set while the object is back in an arena
+     */
+    private boolean released;
+
     /**
      * The socket on which we are communication with the client
      */
@@ -163,5 +191,34 @@ public class HttpRequest {
     public List<String> getxForwardedFor() {
         return xForwardedFor;
     }
-    
+
+    /**
+     * Borrow a request from the arena of the current thread
+     */
+    static HttpRequest borrow() {
+        HttpRequest request = ThreadArena.current().borrow(RECYCLER);
+        request.released = false;
+        return request;
+    }
+
+    /**
+     * Clear all state so that the object can be used for another request
+     */
+    void reset() {
+        socket = null;
+        httpHeaders = null;
+        if (null == requestArgs) {
+            requestArgs = new HashMap<String,String>();
+        } else {
+            requestArgs.clear();
+        }
+        requestMethod = null;
+        contentLength = 0;
+        multiPartRequest = false;
+        fileContents = null;
+        fileName = null;
+        fileContentType = null;
+        headerEncoding = null;
+        xForwardedFor.clear();
+    }
 }
@@ -8,6 +8,8 @@ package in.kote.ssf.net.http;
 import java.io.IOException;
 import java.io.PrintWriter;
 
+import in.kote.ssf.concurrent.ThreadArena;
+import in.kote.ssf.concurrent.Tracer;
 import in.kote.ssf.net.CommSocket;
 
 /**
@@ -19,6 +21,9 @@ public class HttpRequestHandler {
     private CommSocket socket;
     private IHttpServerConfiguration serverConfig;
 
+    public static final String HTTP_OK = "200 OK";
+    public static final String HTTP_SERVICE_UNAVAILABLE = "503 Service Unavailable";
+
     public HttpRequestHandler(IHttpServerConfiguration config, CommSocket socket) {
         this.serverConfig = config;
         this.socket = socket;
@@ -31,16 +36,37 @@ public class HttpRequestHandler {
     public HttpRequest process() throws Exception {
         HttpRequestParser httpParser = null;
         
+        Tracer.record(this.socket.getTrace(), "http.parse.start", System.nanoTime());
         try {
             httpParser = new HttpRequestParser(this.serverConfig, this.socket);
             httpParser.process();
+            Tracer.record(this.socket.getTrace(), "http.parse.end",
+                    System.nanoTime());
         } catch (Exception ex) {
             throw ex;
+        } finally {
+            if (null != httpParser) {
+                httpParser.release();
+            }
         }
 
         return httpParser.getHttpRequest();
     }
 
+    /**
+     * Hand a request returned by <code>process()</code> back to the arena of
+     * the current thread, so that the next request parsed on the thread
+     * reuses it. Only call this once neither the request nor its argument
+     * map are referenced any more, e.g, after the response has been written
+     * by the task which parsed it. Requests which are not released are
+     * simply garbage collected.
+     *
+     * @param request
+     */
+    public static void release(HttpRequest request) {
+        ThreadArena.current().release(HttpRequest.RECYCLER, request);
+    }
+
     public static void writeResponse (CommSocket socket, String response)
             throws IOException {
 
@@ -50,13 +76,34 @@ public class HttpRequestHandler {
     public static void writeResponse (CommSocket socket, String response,
             String contentType) throws IOException {
 
-        if(! socket.getSocket().isClosed() ) {
+        writeResponse(socket, response, contentType, HTTP_OK);
+    }
+
+    /**
+     * Tell the client that the server is overloaded and close the connection.
+     * Meant to be used when a stage rejects a request.
+     *
+     * @param socket
+     * @throws java.io.IOException
+     */
+    public static void writeServiceUnavailable (CommSocket socket)
+            throws IOException {
+
+        writeResponse(socket, "Service Unavailable", HttpMimeType.TEXT_PLAIN,
+                HTTP_SERVICE_UNAVAILABLE);
+    }
+
+    public static void writeResponse (CommSocket socket, String response,
+            String contentType, String status) throws IOException {
+
+        if(! socket.isClosed() ) {
             PrintWriter out = null;
+            Tracer.record(socket.getTrace(), "http.write.start", System.nanoTime());
             
             try {
-                out = new PrintWriter(socket.getSocket().getOutputStream(), true);
+                out = new PrintWriter(socket.getOutputStream(), true);
 
-                out.print("HTTP/1.1 200 OK\r\nContent-Type: " +
+                out.print("HTTP/1.1 " + status + "\r\nContent-Type: " +
                         contentType + "; charset=utf-8" + "\r\n\r\n");
                 out.println(response);
 
@@ -65,7 +112,9 @@ public class HttpRequestHandler {
 
             } finally {
                 out.close();
-                socket.getSocket().close();
+                socket.close();
+                Tracer.record(socket.getTrace(), "http.write.end",
+                        System.nanoTime());
             }
         }
     }
@@ -8,6 +8,7 @@ package in.kote.ssf.net.http;
 import java.io.*;
 import java.util.*;
 
+import in.kote.ssf.concurrent.ThreadArena;
 import in.kote.ssf.net.CommSocket;
 import in.kote.ssf.util.StringUtil;
 import in.kote.ssf.exceptions.HTTPParseException;
@@ -23,6 +24,11 @@ import java.util.ArrayList;
  * can be easily modified to a constant memory footprint implementation with a
  * streaming API</li>
  * </ul>
+ * The read buffer, scratch streams and the <code>HttpRequest</code> are
+ * borrowed from the <code>ThreadArena</code> of the parsing thread, so that
+ * parsing a GET or a urlencoded POST request allocates little besides the
+ * strings it returns. <code>release()</code> hands the read buffer back once
+ * the request has been parsed.
  * @author Thejo
  */
 public class HttpRequestParser {
@@ -104,7 +110,19 @@ public class HttpRequestParser {
     /**
      * The buffer used for processing the request.
      */
-    private final byte[] buffer;
+    private byte[] buffer;
+
+
+    /**
+     * Holds the bytes which may be the start of a boundary
+     */
+    private byte[] miniBuffer;
+
+
+    /**
+     * Holds the bytes compared with the boundary
+     */
+    private byte[] boundaryBuffer;
 
 
     /**
@@ -129,12 +147,14 @@ public class HttpRequestParser {
 
     // ----------------- Request Contents -------------------
 
-    private HttpRequest httpRequest = new HttpRequest();
+    private HttpRequest httpRequest = HttpRequest.borrow();
 
     // ------------- Static strings used when parsing the request --------
     public static String GET = "GET";
     public static String POST = "POST";
     public static String BOUNDARY_KEY = "boundary";
+    private static final String BOUNDARY_ASSIGNMENT = "boundary=";
+    private static final String LINE_SEPARATOR = "\r\n";
     public static String CONTENT_LENGTH = "content-length";
     public static String X_FORWARDED_FOR = "x-forwarded-for";
     public static String CONTENT_DISPOSITION = "content-disposition";
@@ -161,11 +181,11 @@ public class HttpRequestParser {
             throws IOException {
         
         this.serverConfig = config;
-        this.input = socket.getSocket().getInputStream();
+        this.input = socket.getInputStream();
         this.httpRequest.setSocket(socket);
 
         this.bufSize = config.getDefaultBufSize();
-        this.buffer = new byte[this.bufSize];
+        this.buffer = ThreadArena.current().borrowBuffer(this.bufSize);
     }
 
     /**
@@ -189,37 +209,46 @@ public class HttpRequestParser {
     public void process() throws
             HTTPParseException, UnsupportedEncodingException, IOException {
 
-        String[] lines = getHeaders();
+        String headers = getHeaders();
         String firstLine = null;
         boolean boundaryAvailable = true;
 
-        for(String line : lines) {
-            if(line.startsWith(GET)) {
+        //Walk the lines in place rather than splitting the headers
+        int length = headers.length();
+        int lineStart = 0;
+        while(lineStart < length) {
+            int lineEnd = headers.indexOf(LINE_SEPARATOR, lineStart);
+            if(lineEnd < 0) {
+                lineEnd = length;
+            }
+
+            if(headers.startsWith(GET, lineStart)) {
                 this.httpRequest.setRequestMethod(GET);
-                firstLine = line;
-            } else if(line.startsWith(POST)) {
+                firstLine = headers.substring(lineStart, lineEnd);
+            } else if(headers.startsWith(POST, lineStart)) {
                 this.httpRequest.setRequestMethod(POST);
-            } else if(line.toLowerCase().startsWith(CONTENT_LENGTH)) {
-                this.httpRequest.setContentLength(
-                        Integer.valueOf(line.split("\\s")[1]) );
-            } else if(line.indexOf(MULTIPART_FORM_DATA) != -1) {
+            } else if(isHeader(headers, lineStart, lineEnd, CONTENT_LENGTH)) {
+                this.httpRequest.setContentLength( parseHeaderInt(headers,
+                        lineStart + CONTENT_LENGTH.length(), lineEnd) );
+            } else if(indexOf(headers, MULTIPART_FORM_DATA, lineStart, lineEnd)
+                    != -1) {
                 this.httpRequest.setMultiPartRequest(true);
 
-                if(line.indexOf(BOUNDARY_KEY + "=") != -1) {
-                    String[] parts = line.split(BOUNDARY_KEY + "=");
-                    if(parts.length != 2) {
-                        boundaryAvailable = false;
-                    } else {
-                        this.boundary = parts[1].getBytes("ISO-8859-1");
-                        this.boundaryLength = this.boundary.length;
-                    }
-                } else {
+                int b = indexOf(headers, BOUNDARY_ASSIGNMENT, lineStart, lineEnd);
+                if(b == -1 || b + BOUNDARY_ASSIGNMENT.length() == lineEnd) {
                     boundaryAvailable = false;
+                } else {
+                    this.boundary = headers.substring(
+                            b + BOUNDARY_ASSIGNMENT.length(), lineEnd)
+                            .getBytes("ISO-8859-1");
+                    this.boundaryLength = this.boundary.length;
                 }
-            } else if(line.toLowerCase().startsWith(X_FORWARDED_FOR)) {
-                this.httpRequest.getxForwardedFor().addAll(
-                        parseXForwardedFor(line) );
+            } else if(isHeader(headers, lineStart, lineEnd, X_FORWARDED_FOR)) {
+                parseXForwardedFor(headers, lineStart, lineEnd,
+                        this.httpRequest.getxForwardedFor());
             }
+
+            lineStart = lineEnd + LINE_SEPARATOR.length();
         }
 
         if(this.httpRequest.getRequestMethod() == null) {
@@ -227,7 +256,9 @@ public class HttpRequestParser {
         }
 
         if(this.httpRequest.getRequestMethod().equalsIgnoreCase(GET)) {
-            this.httpRequest.setRequestArgs(parseGETRequest(firstLine));
+            if(! parseGETRequest(firstLine, this.httpRequest.getRequestArgs()) ) {
+                this.httpRequest.setRequestArgs(null);
+            }
         } else if(this.httpRequest.getRequestMethod().equalsIgnoreCase(POST)
                 && true == this.httpRequest.isMultiPartRequest()) {
 
@@ -239,7 +270,9 @@ public class HttpRequestParser {
             parseMultiPartRequest();
 
         } else if(this.httpRequest.getRequestMethod().equalsIgnoreCase(POST)) {
-            this.httpRequest.setRequestArgs(parsePOSTRequest());
+            if(! parsePOSTRequest(this.httpRequest.getRequestArgs()) ) {
+                this.httpRequest.setRequestArgs(null);
+            }
         } else {
             throw new HTTPParseException("Unsupported HTTP request");
         }
@@ -253,7 +286,7 @@ public class HttpRequestParser {
      * @throws java.io.UnsupportedEncodingException
      * @throws java.io.IOException
      */
-    private String[] getHeaders()
+    private String getHeaders()
             throws HTTPParseException, UnsupportedEncodingException, IOException {
         this.httpRequest.setHttpHeaders(readHeaders());
 
@@ -261,7 +294,18 @@ public class HttpRequestParser {
             throw new HTTPParseException("No headers available");
         }
 
-        return this.httpRequest.getHttpHeaders().split("\r\n");
+        return this.httpRequest.getHttpHeaders();
+    }
+
+    /**
+     * Hand the read buffer back to the arena of the current thread. The
+     * parser must not be used afterwards.
+     */
+    public void release() {
+        if(null != this.buffer) {
+            ThreadArena.current().releaseBuffer(this.buffer);
+            this.buffer = null;
+        }
     }
 
     /**
@@ -272,10 +316,23 @@ public class HttpRequestParser {
      * @throws java.io.IOException
      */
     private String readHeaders() throws UnsupportedEncodingException, IOException {
+        // to support multi-byte characters
+        ThreadArena arena = ThreadArena.current();
+        ThreadArena.ByteStream baos = arena.borrowOutputStream();
+        try {
+            return readHeaders(baos);
+        } finally {
+            arena.releaseOutputStream(baos);
+        }
+    }
+
+    /**
+     * Read the headers into the given scratch stream and decode them
+     */
+    private String readHeaders(ByteArrayOutputStream baos)
+            throws UnsupportedEncodingException, IOException {
         int i = 0;
         byte b;
-        // to support multi-byte characters
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
         int size = 0;
         while (i < HEADER_SEPARATOR.length) {
             try {
@@ -343,7 +400,10 @@ public class HttpRequestParser {
      * @throws java.io.IOException
      */
     private byte[] readBytes(int count) throws IOException {
-        byte[] bytes = new byte[count];
+        if(null == this.boundaryBuffer || this.boundaryBuffer.length < count) {
+            this.boundaryBuffer = new byte[count];
+        }
+        byte[] bytes = this.boundaryBuffer;
 
         for(int i = 0; i < count; i++) {
             bytes[i] = readByte();
@@ -365,16 +425,15 @@ public class HttpRequestParser {
     private boolean isMultiPartRequestDone() throws IOException, HTTPParseException {
 
         //Check if we have reached the end of request
-        byte[] checkRequestEnd = new byte[2];
-        checkRequestEnd[0] = readByte();
-        checkRequestEnd[1] = readByte();
+        byte first = readByte();
+        byte second = readByte();
 
-        if(checkRequestEnd[0] == DASH && checkRequestEnd[1] == DASH) {
+        if(first == DASH && second == DASH) {
             return true;
         }
 
         //If we are not at the end CRLF should be present
-        if(checkRequestEnd[0] != CR || checkRequestEnd[1] != LF) {
+        if(first != CR || second != LF) {
             throw new HTTPParseException("Invalid multipart request");
         }
         
@@ -437,12 +496,15 @@ public class HttpRequestParser {
             }
         }
 
-        ByteArrayOutputStream paramValue = readMultiPartValue();
+        ThreadArena.ByteStream paramValue = readMultiPartValue();
 
         if(fileNameLocal == null) {
             this.httpRequest.getRequestArgs().put(paramName.toLowerCase(),
-                    new String(paramValue.toByteArray(), "UTF-8"));
+                    new String(paramValue.getBuffer(), 0, paramValue.size(),
+                            "UTF-8"));
+            ThreadArena.current().releaseOutputStream(paramValue);
         } else {
+            //The stream now belongs to the request
             this.httpRequest.setFileContents(paramValue);
             this.httpRequest.setFileName(fileNameLocal);
         }
@@ -455,12 +517,15 @@ public class HttpRequestParser {
      * @return
      * @throws java.io.IOException
      */
-    private ByteArrayOutputStream readMultiPartValue() throws IOException,
+    private ThreadArena.ByteStream readMultiPartValue() throws IOException,
             HTTPParseException {
 
         int boundaryPrefixLength = BOUNDARY_PREFIX.length;
-        byte[] miniBuffer = new byte[boundaryPrefixLength];
-        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        if(null == this.miniBuffer) {
+            this.miniBuffer = new byte[boundaryPrefixLength];
+        }
+        byte[] miniBuffer = this.miniBuffer;
+        ThreadArena.ByteStream value = ThreadArena.current().borrowOutputStream();
 
         byte b;
         int i = 0;
@@ -556,26 +621,27 @@ public class HttpRequestParser {
     }
 
     /**
-     * Given the first line of a GET HTTP request, parses it and returns the
-     * parameters as a map
+     * Given the first line of a GET HTTP request, parses it and puts the
+     * parameters into the given map
      *
      * @param req The first line of the HTTP GET request
-     * @return Map<String,String> - A map of key value pairs
+     * @param args - Map the key value pairs are added to
+     * @return false if the request has no query string
      */
-    private static Map<String,String> parseGETRequest(String req) {
+    private static boolean parseGETRequest(String req, Map<String,String> args) {
 
-        int s = req.indexOf(" ");
-        int e = req.lastIndexOf(" ");
+        int s = req.indexOf(' ');
+        int e = req.lastIndexOf(' ');
 
-        if (s<0 || e<0 || s==e) { return null; }
+        if (s<0 || e<0 || s==e) { return false; }
 
-        req = req.substring(s+1, e);
-        int loc = req.indexOf('?');
-        if (loc < 0) {  return null;  }
+        int loc = req.indexOf('?', s+1);
+        if (loc < 0 || loc >= e) {  return false;  }
 
-        req = req.substring(loc+1);
+        if (loc+1 == e) {  return false;  }
 
-        return parseQueryString(req);
+        parseQueryString(req, loc+1, e, args);
+        return true;
     }
 
     /**
@@ -584,33 +650,53 @@ public class HttpRequestParser {
      * @return
      */
     public static Map<String,String> parseQueryString(String req) {
+        if (req.length() < 1) {  return null;  }
+
         Map<String,String> args = new HashMap<String,String>();
+        parseQueryString(req, 0, req.length(), args);
 
-        if (req.length() < 1) {  return null;  }
+        return args;
+    }
 
-        String[] kvs = req.split("[&;]+");
+    /**
+     * Parse the query string between the given indices into a map, without
+     * splitting it first
+     *
+     * @param req - String containing the query string
+     * @param from - Index of the first character of the query string
+     * @param to - Index after the last character of the query string
+     * @param args - Map the key value pairs are added to
+     */
+    static void parseQueryString(String req, int from, int to,
+            Map<String,String> args) {
+        int kvStart = from;
+        while (kvStart < to) {
+            int kvEnd = kvStart;
+            while (kvEnd < to && req.charAt(kvEnd) != '&'
+                    && req.charAt(kvEnd) != ';') {
+                kvEnd++;
+            }
 
-        int loc;
-        for (String kv: kvs) {
-            if (kv.length() < 2) {  continue;  }
-            loc = kv.indexOf('=');
-            if (loc < 1) {  continue;  }
-            String key = kv.substring(0, loc);
-            String value = kv.substring(loc+1);
-            if (key.length() < 1 || value.length() < 1) {  continue;  }
+            int loc = indexOf(req, '=', kvStart, kvEnd);
+            //Skip pieces without a key or a value
+            if (loc > kvStart && loc < kvEnd - 1) {
+                String key = req.substring(kvStart, loc);
+                String value = req.substring(loc+1, kvEnd);
+                args.put(key.toLowerCase(), StringUtil.urlDecode(value) );
+            }
 
-            args.put(key.toLowerCase(), StringUtil.urlDecode(value) );
+            kvStart = kvEnd + 1;
         }
-
-        return args;
     }
 
     /**
-     * Parse the query string of a POST request and return a map
+     * Parse the query string of a POST request into the given map
      *
-     * @return Map<String,String> - A map of key value pairs
+     * @param args - Map the key value pairs are added to
+     * @return false if the request has no query string
      */
-    private Map<String,String> parsePOSTRequest() throws HTTPParseException {
+    private boolean parsePOSTRequest(Map<String,String> args)
+            throws HTTPParseException {
 
         //We need a content length to parse POST requests
         if(this.httpRequest.getContentLength() == 0) {
@@ -618,42 +704,133 @@ public class HttpRequestParser {
         }
 
         //Get the query string from the buffer
-        ByteArrayOutputStream postParams = new ByteArrayOutputStream();
+        ThreadArena arena = ThreadArena.current();
+        ThreadArena.ByteStream postParams = arena.borrowOutputStream();
         byte b = 0;
 
-        for(int i = 0; i < this.httpRequest.getContentLength(); i++) {
-           try {
-                b = readByte();
-                postParams.write(b);
-            } catch (IOException ex) {
-                break;
+        try {
+            for(int i = 0; i < this.httpRequest.getContentLength(); i++) {
+               try {
+                    b = readByte();
+                    postParams.write(b);
+                } catch (IOException ex) {
+                    break;
+                }
             }
+
+            String req = postParams.toString();
+            if (req.length() < 1) {  return false;  }
+
+            parseQueryString(req, 0, req.length(), args);
+            return true;
+        } finally {
+            arena.releaseOutputStream(postParams);
+        }
+    }
+
+    /**
+     * Accept the x-forwarded-for header line, parse it and add the IP
+     * addresses to the list in the same order
+     * @param headers
+     * @param start - Index of the start of the line
+     * @param end - Index of the end of the line
+     * @param ipList
+     */
+    private static void parseXForwardedFor(String headers, int start, int end,
+            List<String> ipList) {
+        //Ignore trailing white space
+        while(end > start && headers.charAt(end - 1) <= ' ') {
+            end--;
         }
 
-        return parseQueryString(postParams.toString());
+        int s = indexOf(headers, ':', start, end);
+        if(s < 0 || indexOf(headers, ':', s + 1, end) >= 0) { return; }
+
+        int ipStart = s + 1;
+        while(ipStart <= end) {
+            int ipEnd = indexOf(headers, ',', ipStart, end);
+            if(ipEnd < 0) {
+                ipEnd = end;
+            }
+            //Skip empty entries, e.g, after a trailing comma
+            int i = ipStart;
+            while(i < ipEnd && headers.charAt(i) <= ' ') {
+                i++;
+            }
+            if(i < ipEnd) {
+                ipList.add(headers.substring(ipStart, ipEnd));
+            }
+            ipStart = ipEnd + 1;
+        }
     }
 
     /**
-     * Accept the x-forwarded-for header line, parse it and return a list of
-     * IP addresses in the same order
-     * @param line
+     * Checks if a line is the header with the given name, i.e, the name
+     * followed by optional white space and a colon. Not just a prefix, since
+     * <code>AbstractHttpNioServer</code> frames requests the same way
+     *
+     * @param headers
+     * @param start - Index of the start of the line
+     * @param end - Index of the end of the line
+     * @param name - The name of the header in lower case
      * @return
      */
-    private List<String> parseXForwardedFor(String line) {
-        List<String> ipList = new ArrayList<String>();
+    private static boolean isHeader(String headers, int start, int end,
+            String name) {
+        if(!headers.regionMatches(true, start, name, 0, name.length())) {
+            return false;
+        }
 
-        int s = line.indexOf(':');
-        if( s < 0) { return ipList; }
+        int i = start + name.length();
+        while(i < end && (headers.charAt(i) == ' ' || headers.charAt(i) == '\t')) {
+            i++;
+        }
+        return i < end && headers.charAt(i) == ':';
+    }
 
-        String[] parts = line.trim().split(":");
-        if(parts.length == 2) {
-            String[] ips = parts[1].split(",");
-            for(int i = 0; i < ips.length; i++) {
-                ipList.add(ips[i]);
+    /**
+     * Parse the decimal value of a header, e.g, Content-Length
+     *
+     * @param headers
+     * @param start - Index after the name of the header
+     * @param end - Index of the end of the line
+     * @return
+     * @throws com.netcore.bulkrequest.exceptions.HTTPParseException
+     */
+    private static int parseHeaderInt(String headers, int start, int end)
+            throws HTTPParseException {
+        int i = start;
+        while(i < end && (headers.charAt(i) == ':' || headers.charAt(i) <= ' ')) {
+            i++;
+        }
+
+        if(i == end) {
+            throw new HTTPParseException("Invalid HTTP header value");
+        }
+
+        long value = 0;
+        for(; i < end && headers.charAt(i) > ' '; i++) {
+            char c = headers.charAt(i);
+            if(c < '0' || c > '9' || value > Integer.MAX_VALUE) {
+                throw new HTTPParseException("Invalid HTTP header value");
             }
+            value = value * 10 + (c - '0');
         }
 
-        return ipList;
+        if(value > Integer.MAX_VALUE) {
+            throw new HTTPParseException("Invalid HTTP header value");
+        }
+        return (int) value;
+    }
+
+    private static int indexOf(String str, char c, int from, int to) {
+        int i = str.indexOf(c, from);
+        return (i < 0 || i >= to) ? -1 : i;
+    }
+
+    private static int indexOf(String str, String s, int from, int to) {
+        int i = str.indexOf(s, from);
+        return (i < 0 || i + s.length() > to) ? -1 : i;
     }
 
     private boolean isRequestComplete() {
@@ -0,0 +1,252 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.rpc;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import in.kote.ssf.concurrent.ThreadFactoryImpl;
+import in.kote.ssf.net.AbstractServer;
+import in.kote.ssf.net.CommSocket;
+import in.kote.ssf.net.SocketPool;
+
+/**
+ * The server side of the multiplexed RPC between cluster nodes. <br />
+ *
+ * Every connection from an <code>RpcClient</code> carries many requests at
+ * once. A reader thread per connection reads the request frames and hands
+ * each request over to the next stage as a task of its own, so requests on
+ * one connection are processed concurrently and their responses are written
+ * back as they complete, tagged with the correlation id of the request. A
+ * request the next stage rejects is answered with an error right away, and
+ * one it drops later on with an error as soon as it is dropped. <br />
+ *
+ * Since a node only has a few connections to each of its peers, a thread per
+ * connection is cheap here. Sub-classes implement <code>handleRequest</code>.
+ *
+ * @see RpcClient
+ * @author Thejo
+ */
+public abstract class AbstractRpcServer extends AbstractServer {
+
+    private final Set<Socket> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private final AtomicInteger connId = new AtomicInteger(1);
+    private ThreadFactoryImpl threadFactory;
+
+    public AbstractRpcServer(int port) {
+        super(port);
+    }
+
+    public AbstractRpcServer(int port, int backlog) {
+        super(port, backlog);
+    }
+
+    /**
+     * Process a request. Called on the next stage, concurrently for requests
+     * from the same connection. The <code>CommSocket</code> identifies the
+     * client and carries the trace of the request, it must not be read from
+     * or written to.
+     *
+     * @param socket - The connection the request came in on
+     * @param request - Payload of the request
+     * @return Payload of the response
+     * @throws java.lang.Exception - Sent back to the client as an error
+     */
+    protected abstract byte[] handleRequest(CommSocket socket, byte[] request)
+            throws Exception;
+
+    /**
+     * The maximum size of a request. A connection on which a client sends a
+     * larger request is closed
+     *
+     * @return int value in bytes
+     */
+    protected int getMaxRequestSize() {
+        return 1024 * 1024;
+    }
+
+    /**
+     * The acceptor loop
+     */
+    public void run() {
+        threadFactory = new ThreadFactoryImpl("RPC-READER-" + port);
+        try {
+            server = new ServerSocket();
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(port), backlog);
+        } catch (IOException ioe) {
+            log.error("Can't start RPC server on port " + port, ioe);
+            return;
+        }
+
+        while (!getDone()) {
+            Socket socket = null;
+            try {
+                socket = server.accept();
+                socket.setTcpNoDelay(true);
+
+                connections.add(socket);
+                threadFactory.newThread( new Connection(socket) ).start();
+            } catch (IOException ioe) {
+                if (getDone()) {
+                    //Server socket was closed during shutdown
+                    break;
+                }
+                log.warn(ioe.toString(), ioe);
+                close(socket);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        super.shutdown();
+
+        for (Socket socket : connections) {
+            close(socket);
+        }
+    }
+
+    /**
+     * @return Number of open client connections
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    private void close(Socket socket) {
+        if (null == socket) {
+            return;
+        }
+
+        connections.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException ioe) {
+            //Nothing to do
+        }
+    }
+
+    /**
+     * Reads the requests on one connection
+     */
+    private final class Connection implements Runnable {
+        private final Socket socket;
+        private RpcFrame.Writer writer;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            try {
+                SocketPool.acceptConnection(socket, SocketPool.getConnectTimeoutMillis());
+                writer = new RpcFrame.Writer( socket.getOutputStream() );
+                DataInputStream in = new DataInputStream( new BufferedInputStream(
+                        socket.getInputStream(), 8192) );
+
+                while (!getDone()) {
+                    RpcFrame frame = RpcFrame.read(in, getMaxRequestSize());
+                    if (RpcFrame.REQUEST != frame.type) {
+                        throw new IOException("Unexpected RPC frame type " + frame.type);
+                    }
+                    dispatch(frame);
+                }
+            } catch (IOException ioe) {
+                if (log.isDebugEnabled()) {
+                    log.debug("RPC connection from " + socket.getInetAddress()
+                            + " closed: " + ioe);
+                }
+            } finally {
+                close(socket);
+            }
+        }
+
+        private void dispatch(RpcFrame frame) {
+            CommSocket commSocket = new CommSocket(socket,
+                    connId.getAndIncrement(), "r");
+
+            if (null == nextStage) {
+                log.warn("No stage registered to handle requests on port " + port);
+                respond(frame.id, RpcFrame.ERROR,
+                        RpcFrame.encodeError(new IllegalStateException("No stage")));
+                return;
+            }
+
+            if (! handOff(commSocket, new Request(this, commSocket, frame)) ) {
+                respond(frame.id, RpcFrame.ERROR,
+                        RpcFrame.encodeError(new IllegalStateException("Overloaded")));
+            }
+        }
+
+        void respond(long id, byte type, byte[] payload) {
+            try {
+                writer.write(id, type, payload);
+            } catch (IOException ioe) {
+                //The reader notices too and stops
+                close(socket);
+            }
+        }
+    }
+
+    /**
+     * Processes one request on the next stage. Every request is answered
+     * exactly once when the future is done, including a request the stage
+     * drops (cancels) when overloaded and one which fails with an Error, so
+     * that the client never waits on it in vain.
+     */
+    private final class Request extends FutureTask<byte[]> {
+        private final Connection connection;
+        private final long id;
+
+        Request(Connection connection, final CommSocket socket,
+                final RpcFrame frame) {
+            super(new Callable<byte[]>() {
+                public byte[] call() throws Exception {
+                    return handleRequest(socket, frame.payload);
+                }
+            });
+            this.connection = connection;
+            this.id = frame.id;
+        }
+
+        @Override
+        protected void done() {
+            byte[] response;
+            try {
+                response = get();
+            } catch (CancellationException ce) {
+                connection.respond(id, RpcFrame.ERROR, RpcFrame.encodeError(
+                        new IllegalStateException("Overloaded")));
+                return;
+            } catch (ExecutionException ee) {
+                Throwable cause = ee.getCause();
+                if (cause instanceof Error) {
+                    log.error("RPC request failed", cause);
+                } else if (log.isDebugEnabled()) {
+                    log.debug("RPC request failed", cause);
+                }
+                connection.respond(id, RpcFrame.ERROR, RpcFrame.encodeError(cause));
+                return;
+            } catch (InterruptedException ie) {
+                //Can't happen, the future is done
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            connection.respond(id, RpcFrame.RESPONSE,
+                    (null == response) ? new byte[0] : response);
+        }
+    }
+
+    private static final Logger log = Logger.getLogger(AbstractRpcServer.class);
+}
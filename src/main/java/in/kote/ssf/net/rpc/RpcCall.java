@@ -0,0 +1,41 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.rpc;
+
+import in.kote.ssf.concurrent.StageFuture;
+
+/**
+ * An outstanding remote call, completed with the response payload
+ *
+ * @author Thejo
+ */
+final class RpcCall extends StageFuture<byte[]> {
+
+    final long id;
+    private volatile RpcConnection connection;
+
+    RpcCall(long id) {
+        this.id = id;
+    }
+
+    void setConnection(RpcConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Stops waiting for the response, the request may still be processed by
+     * the server
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        RpcConnection current = connection;
+        if (cancelled && null != current) {
+            current.cancelled(this);
+        }
+        return cancelled;
+    }
+}
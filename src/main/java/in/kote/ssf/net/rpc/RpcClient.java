@@ -0,0 +1,260 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.rpc;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import in.kote.ssf.concurrent.StageFuture;
+import in.kote.ssf.concurrent.ThreadFactoryImpl;
+import in.kote.ssf.exceptions.RpcException;
+import in.kote.ssf.exceptions.SocketPoolException;
+import in.kote.ssf.net.EndPoint;
+import in.kote.ssf.net.SocketPool;
+import in.kote.ssf.net.SocketPool.SocketPoolEntry;
+import in.kote.ssf.util.Shutdownable;
+
+/**
+ * Client for calls to <code>AbstractRpcServer</code>s on other endpoints.
+ * <br />
+ *
+ * A <code>SocketPoolEntry</code> carries one request at a time, so the
+ * number of connections to a peer grows with the number of concurrent
+ * calls. This client instead keeps a few connections per endpoint and
+ * multiplexes all calls over them. Every request carries a correlation id
+ * and responses are matched to their calls as they arrive, in any order.
+ * Requests written at the same time by several threads are flushed
+ * together. <br />
+ *
+ * Connections are opened through the <code>SocketPool</code>, and so with
+ * its connect timeout, and are dedicated to this client from then on. A
+ * connection which fails fails all calls outstanding on it and is replaced
+ * on the next call.
+ *
+ * @see AbstractRpcServer
+ * @author Thejo
+ */
+public class RpcClient implements Shutdownable {
+
+    public static final int DEFAULT_CONNECTIONS_PER_ENDPOINT = 2;
+    public static final int DEFAULT_MAX_RESPONSE_SIZE = 16 * 1024 * 1024;
+
+    private final int connectionsPerEndPoint;
+    private volatile int maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+    private final ConcurrentMap<EndPoint, Slots> connections =
+            new ConcurrentHashMap<EndPoint, Slots>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final ThreadFactoryImpl threadFactory = new ThreadFactoryImpl("RPC-CLIENT");
+    private volatile boolean shutdown;
+
+    public RpcClient() {
+        this(DEFAULT_CONNECTIONS_PER_ENDPOINT);
+    }
+
+    /**
+     * @param connectionsPerEndPoint - Number of connections calls to an
+     * endpoint are spread over
+     */
+    public RpcClient(int connectionsPerEndPoint) {
+        if (connectionsPerEndPoint < 1) {
+            throw new IllegalArgumentException("Invalid number of connections "
+                    + connectionsPerEndPoint);
+        }
+        this.connectionsPerEndPoint = connectionsPerEndPoint;
+    }
+
+    public void setMaxResponseSize(int maxResponseSize) {
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    public int getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    /**
+     * Send a request without waiting for the response. Cancelling the
+     * returned future stops waiting for the response.
+     *
+     * @param ep - The endpoint of the server
+     * @param request
+     * @return Future completed with the response, or failed with an
+     * <code>RpcException</code>
+     */
+    public StageFuture<byte[]> call(EndPoint ep, byte[] request) {
+        RpcCall call = new RpcCall( nextId.incrementAndGet() );
+
+        RpcConnection connection;
+        try {
+            connection = getConnection(ep, call.id);
+        } catch (RpcException re) {
+            call.completeExceptionally(re);
+            return call;
+        }
+
+        connection.send(call, request);
+        return call;
+    }
+
+    /**
+     * Send a request and wait for the response
+     *
+     * @param ep - The endpoint of the server
+     * @param request
+     * @param timeout
+     * @param unit
+     * @return The response
+     * @throws RpcException if the call failed or timed out
+     * @throws InterruptedException
+     */
+    public byte[] invoke(EndPoint ep, byte[] request, long timeout, TimeUnit unit)
+            throws RpcException, InterruptedException {
+        StageFuture<byte[]> future = call(ep, request);
+        try {
+            return future.get(timeout, unit);
+        } catch (TimeoutException te) {
+            future.cancel(false);
+            throw new RpcException("Call to " + ep + " timed out");
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RpcException) {
+                throw (RpcException) ee.getCause();
+            }
+            throw new RpcException( ee.getCause().toString() );
+        }
+    }
+
+    /**
+     * @param ep
+     * @return Number of calls to the endpoint waiting for their response
+     */
+    public int getPendingCount(EndPoint ep) {
+        Slots slots = connections.get(ep);
+        int count = 0;
+        if (null != slots) {
+            for (int i = 0; i < slots.length(); i++) {
+                RpcConnection connection = slots.get(i);
+                if (null != connection) {
+                    count += connection.getPendingCount();
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Close the connections to an endpoint, failing the calls outstanding on
+     * them, e.g, once it has left the cluster
+     *
+     * @param ep
+     */
+    public void disconnect(EndPoint ep) {
+        Slots slots = connections.remove(ep);
+        if (null != slots) {
+            close(slots);
+        }
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        for (EndPoint ep : connections.keySet()) {
+            disconnect(ep);
+        }
+    }
+
+    /**
+     * Returns an open connection to the endpoint, connecting if required.
+     * Only callers which need the same connection, i.e, the same slot, wait
+     * for the connect.
+     */
+    private RpcConnection getConnection(EndPoint ep, long id) throws RpcException {
+        if (shutdown) {
+            throw new RpcException("RPC client has been shutdown");
+        }
+
+        Slots slots = connections.get(ep);
+        if (null == slots) {
+            Slots newSlots = new Slots(connectionsPerEndPoint);
+            slots = connections.putIfAbsent(ep, newSlots);
+            if (null == slots) {
+                slots = newSlots;
+            }
+        }
+
+        int slot = (int) (id % connectionsPerEndPoint);
+        RpcConnection connection = slots.get(slot);
+        if (null != connection && !connection.isClosed()) {
+            return connection;
+        }
+
+        synchronized (slots.locks[slot]) {
+            connection = slots.get(slot);
+            if (null == connection || connection.isClosed()) {
+                connection = connect(ep);
+                slots.set(slot, connection);
+            }
+        }
+
+        if (shutdown || connections.get(ep) != slots) {
+            //Raced with disconnect(), which may have missed this connection
+            connection.close(null);
+        }
+        return connection;
+    }
+
+    private RpcConnection connect(EndPoint ep) throws RpcException {
+        SocketPoolEntry entry;
+        try {
+            entry = SocketPool.getSocketPoolEntry(ep);
+        } catch (SocketPoolException spe) {
+            throw new RpcException("Can't connect to " + ep + ": " + spe.getMessage());
+        }
+
+        try {
+            entry.getSocket().setTcpNoDelay(true);
+            RpcConnection connection = new RpcConnection(ep, entry, maxResponseSize);
+            threadFactory.newThread(connection).start();
+            return connection;
+        } catch (IOException ioe) {
+            try {
+                entry.getSocket().close();
+            } catch (IOException e) {
+                //Nothing to do
+            }
+            throw new RpcException("Can't connect to " + ep + ": " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Close the connections of slots which have been removed from the map. A
+     * connect still in progress on one of them closes its connection itself,
+     * see getConnection()
+     */
+    private static void close(Slots slots) {
+        for (int i = 0; i < slots.length(); i++) {
+            RpcConnection connection = slots.getAndSet(i, null);
+            if (null != connection) {
+                connection.close(null);
+            }
+        }
+    }
+
+    /**
+     * The connections to one endpoint, with a lock per connection
+     */
+    private static final class Slots extends AtomicReferenceArray<RpcConnection> {
+        private static final long serialVersionUID = 1L;
+
+        final Object[] locks;
+
+        Slots(int length) {
+            super(length);
+            locks = new Object[length];
+            for (int i = 0; i < length; i++) {
+                locks[i] = new Object();
+            }
+        }
+    }
+}
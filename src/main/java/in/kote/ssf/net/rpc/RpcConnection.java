@@ -0,0 +1,157 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.rpc;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.log4j.Logger;
+
+import in.kote.ssf.exceptions.RpcException;
+import in.kote.ssf.net.EndPoint;
+import in.kote.ssf.net.SocketPool.SocketPoolEntry;
+
+/**
+ * The client side of one multiplexed connection. Any number of threads send
+ * requests on it, each tagged with a correlation id, and a reader thread
+ * completes the calls as their responses arrive. If the connection fails
+ * all outstanding calls fail with it.
+ *
+ * @author Thejo
+ */
+final class RpcConnection implements Runnable {
+
+    private final EndPoint endPoint;
+    private final SocketPoolEntry entry;
+    private final RpcFrame.Writer writer;
+    private final DataInputStream in;
+    private final int maxResponseSize;
+    private final ConcurrentMap<Long, RpcCall> pending =
+            new ConcurrentHashMap<Long, RpcCall>();
+    private volatile boolean closed;
+
+    /**
+     * @param endPoint
+     * @param entry - A connection which is used by this object only from now
+     * on, and closed with it
+     * @param maxResponseSize
+     * @throws java.io.IOException
+     */
+    RpcConnection(EndPoint endPoint, SocketPoolEntry entry, int maxResponseSize)
+            throws IOException {
+        this.endPoint = endPoint;
+        this.entry = entry;
+        this.maxResponseSize = maxResponseSize;
+        this.writer = new RpcFrame.Writer( entry.getSocket().getOutputStream() );
+        this.in = new DataInputStream( new BufferedInputStream(
+                entry.getSocket().getInputStream(), 8192) );
+    }
+
+    /**
+     * Send a request. Failures are reported through the call
+     *
+     * @param call
+     * @param request
+     */
+    void send(RpcCall call, byte[] request) {
+        call.setConnection(this);
+        pending.put(call.id, call);
+        if (call.isDone()) {
+            //Cancelled before it was registered
+            pending.remove(call.id);
+            return;
+        }
+        if (closed) {
+            //Raced with close(), which may have missed this call
+            fail(call, "Connection to " + endPoint + " closed");
+            return;
+        }
+
+        try {
+            writer.write(call.id, RpcFrame.REQUEST, request);
+        } catch (IOException ioe) {
+            close(ioe);
+        }
+    }
+
+    /**
+     * The reader loop
+     */
+    public void run() {
+        try {
+            while (!closed) {
+                RpcFrame frame = RpcFrame.read(in, maxResponseSize);
+                RpcCall call = pending.remove(frame.id);
+                if (null == call) {
+                    //Cancelled or timed out
+                    continue;
+                }
+
+                if (RpcFrame.RESPONSE == frame.type) {
+                    call.complete(frame.payload);
+                } else {
+                    call.completeExceptionally(
+                            new RpcException( RpcFrame.decodeError(frame.payload) ));
+                }
+            }
+        } catch (IOException ioe) {
+            close(ioe);
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    void cancelled(RpcCall call) {
+        pending.remove(call.id);
+    }
+
+    /**
+     * Close the connection and fail all outstanding calls
+     *
+     * @param cause - null on shutdown
+     */
+    void close(Throwable cause) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        if (null != cause && log.isDebugEnabled()) {
+            log.debug("Connection to " + endPoint + " failed: " + cause);
+        }
+
+        try {
+            entry.getSocket().close();
+        } catch (IOException ioe) {
+            //Nothing to do
+        }
+
+        String message = "Connection to " + endPoint + " closed";
+        Iterator<RpcCall> it = pending.values().iterator();
+        while (it.hasNext()) {
+            RpcCall call = it.next();
+            it.remove();
+            call.completeExceptionally( new RpcException(message) );
+        }
+    }
+
+    private void fail(RpcCall call, String message) {
+        if (null != pending.remove(call.id)) {
+            call.completeExceptionally( new RpcException(message) );
+        }
+    }
+
+    private static final Logger log = Logger.getLogger(RpcConnection.class);
+}
@@ -0,0 +1,116 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.rpc;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A frame of the RPC protocol. On the wire a frame is
+ * <pre>
+ * int  length of the rest of the frame
+ * long correlation id, chosen by the client and echoed in the response
+ * byte type
+ * ...  payload
+ * </pre>
+ * Responses on a connection may come back in any order, the correlation id
+ * matches them to their requests. An error response carries the UTF-8
+ * message of the failure as its payload.
+ *
+ * @author Thejo
+ */
+final class RpcFrame {
+
+    static final byte REQUEST = 1;
+    static final byte RESPONSE = 2;
+    static final byte ERROR = 3;
+
+    /* Correlation id and type */
+    static final int HEADER_SIZE = 9;
+
+    final long id;
+    final byte type;
+    final byte[] payload;
+
+    RpcFrame(long id, byte type, byte[] payload) {
+        this.id = id;
+        this.type = type;
+        this.payload = payload;
+    }
+
+    /**
+     * Read the next frame, blocking until it has arrived completely
+     *
+     * @param in
+     * @param maxPayloadSize - Frames with a larger payload are a protocol
+     * error
+     * @return RpcFrame
+     * @throws java.io.IOException
+     */
+    static RpcFrame read(DataInputStream in, int maxPayloadSize)
+            throws IOException {
+        int length = in.readInt();
+        if (length < HEADER_SIZE || length - HEADER_SIZE > maxPayloadSize) {
+            throw new IOException("Invalid RPC frame length " + length);
+        }
+
+        long id = in.readLong();
+        byte type = in.readByte();
+        byte[] payload = new byte[length - HEADER_SIZE];
+        in.readFully(payload);
+
+        return new RpcFrame(id, type, payload);
+    }
+
+    static byte[] encodeError(Throwable t) {
+        String message = (null == t.getMessage()) ? t.toString() : t.getMessage();
+        try {
+            return message.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            return new byte[0];
+        }
+    }
+
+    static String decodeError(byte[] payload) {
+        try {
+            return new String(payload, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            return "Remote call failed";
+        }
+    }
+
+    /**
+     * Writes frames to a connection shared by many threads. Frames are
+     * written whole, one at a time, and the stream is flushed only by the
+     * last of a group of concurrent writers, so that frames sent together
+     * go out in one write instead of one each.
+     */
+    static final class Writer {
+        private final DataOutputStream out;
+        private final AtomicInteger waiting = new AtomicInteger();
+
+        Writer(OutputStream out) {
+            this.out = new DataOutputStream( new BufferedOutputStream(out, 8192) );
+        }
+
+        void write(long id, byte type, byte[] payload) throws IOException {
+            waiting.incrementAndGet();
+            synchronized (out) {
+                try {
+                    out.writeInt(HEADER_SIZE + payload.length);
+                    out.writeLong(id);
+                    out.writeByte(type);
+                    out.write(payload);
+                } finally {
+                    //Writers queued behind this one will flush this frame
+                    if (waiting.decrementAndGet() == 0) {
+                        out.flush();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -59,6 +59,38 @@ public class BasicUtilities {
         return new BigInteger(1, m.digest());
     }
 
+    /**
+     * A fast, non-cryptographic 64 bit hash of a string (FNV-1a over the
+     * chars, followed by the MurmurHash3 finalizer so that all bits depend
+     * on all input). Doesn't allocate.
+     *
+     * @param s
+     * @return 64 bit hash value
+     */
+    public static long hash64(CharSequence s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, length = s.length(); i < length; i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return hash64(h);
+    }
+
+    /**
+     * Mixes the bits of a long (the MurmurHash3 finalizer)
+     *
+     * @param h
+     * @return 64 bit hash value
+     */
+    public static long hash64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
     /**
      * Given a range of integers, returns a random number in that range
      * (inclusive of the start of the range)
@@ -0,0 +1,139 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed size, log-linear histogram of latencies in nanoseconds. <br />
+ *
+ * Each power of two range is split into 32 linear sub-buckets, so any
+ * recorded value is reported within about 3% of its real value, while the
+ * whole range from 1ns to over an hour fits in a little over a thousand
+ * counters. Recording is a couple of shifts and one atomic increment, with no
+ * allocation and no locks. Values above the trackable range are clamped.
+ *
+ * @author Thejo
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Largest power of two tracked. 2^42 ns is a little over an hour
+     */
+    private static final int MAX_EXPONENT = 42;
+    public static final long MAX_TRACKABLE_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private static final int BUCKET_COUNT =
+            (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalValue = new LongAdder();
+
+    /**
+     * Record a single value
+     *
+     * @param nanos
+     */
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_TRACKABLE_VALUE);
+
+        counts.incrementAndGet( index(value) );
+        totalCount.increment();
+        totalValue.add(value);
+    }
+
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    /**
+     * @return Mean of the recorded values in nanoseconds
+     */
+    public double getMean() {
+        long count = totalCount.sum();
+        return (count == 0) ? 0 : ((double) totalValue.sum() / count);
+    }
+
+    /**
+     * Returns the value below which the given fraction of recorded values
+     * fall, e.g, <code>getPercentile(0.99)</code> for the p99
+     *
+     * @param fraction - In the range (0, 1]
+     * @return The upper bound of the bucket holding the percentile in nanoseconds
+     */
+    public long getPercentile(double fraction) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+
+        return MAX_TRACKABLE_VALUE;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.reset();
+        totalValue.reset();
+    }
+
+    /**
+     * Values below the sub-bucket count map linearly. Above that, the
+     * position of the highest bit picks the power of two range and the next
+     * <code>SUB_BUCKET_BITS</code> bits the sub-bucket within it.
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+
+        return ((shift + 1) * SUB_BUCKET_COUNT) + subBucket;
+    }
+
+    static long lowerBound(int index) {
+        int range = index / SUB_BUCKET_COUNT;
+        int subBucket = index % SUB_BUCKET_COUNT;
+
+        if (range == 0) {
+            return subBucket;
+        }
+
+        return ((long) (SUB_BUCKET_COUNT + subBucket)) << (range - 1);
+    }
+
+    static long upperBound(int index) {
+        if (index + 1 >= BUCKET_COUNT) {
+            return MAX_TRACKABLE_VALUE;
+        }
+
+        return lowerBound(index + 1) - 1;
+    }
+}
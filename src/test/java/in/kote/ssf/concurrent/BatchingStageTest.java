@@ -0,0 +1,90 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the workers of a <code>BatchingStage</code>
+ *
+ * @author Thejo
+ */
+public class BatchingStageTest {
+
+    /**
+     * Fails with an Error on a batch holding a negative item
+     */
+    private static final class FailingTask extends BatchStageTask<Integer> {
+        final List<Integer> processed =
+                Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done;
+
+        FailingTask(int items) {
+            done = new CountDownLatch(items);
+        }
+
+        public void run(List<Integer> batch) {
+            for (Integer item : batch) {
+                if (item < 0) {
+                    done.countDown();
+                    throw new AssertionError("Expected by the test");
+                }
+                processed.add(item);
+                done.countDown();
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void workerSurvivesErrors() throws Exception {
+        FailingTask task = new FailingTask(3);
+        BatchingStage<Integer> stage = new BatchingStage<Integer>("BATCH-ERROR",
+                1, 1, task);
+        try {
+            stage.enqueue(-1);
+            stage.enqueue(1);
+            stage.enqueue(2);
+            assertTrue(task.done.await(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(1, 2), task.processed);
+
+            Future<?> command = stage.execute(new Callable<Void>() {
+                public Void call() {
+                    throw new AssertionError("Expected by the test");
+                }
+            });
+            try {
+                command.get(5, TimeUnit.SECONDS);
+                fail("Command succeeded");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof AssertionError);
+            }
+
+            final CountDownLatch ran = new CountDownLatch(1);
+            stage.execute(new Runnable() {
+                public void run() {
+                    ran.countDown();
+                }
+            });
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+        } finally {
+            stage.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoThreads() {
+        new BatchingStage<Integer>("BATCH-NO-THREADS", 0, 10, new FailingTask(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyBatches() {
+        new BatchingStage<Integer>("BATCH-EMPTY", 1, 0, new FailingTask(0));
+    }
+}
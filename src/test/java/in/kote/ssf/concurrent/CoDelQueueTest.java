@@ -0,0 +1,163 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the overload detection, shedding and adaptive LIFO of
+ * <code>CoDelQueue</code>. The queue is driven by sleeping well past its
+ * target and interval, which are long enough for a slow machine.
+ *
+ * @author Thejo
+ */
+public class CoDelQueueTest {
+
+    private static final long TARGET_MILLIS = 50;
+    private static final long INTERVAL_MILLIS = 400;
+
+    private static CoDelQueue newQueue() {
+        return new CoDelQueue(Queue.UNBOUNDED, TARGET_MILLIS, INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private static FutureTask<Void> task() {
+        return new FutureTask<Void>(new Runnable() {
+            public void run() {
+            }
+        }, null);
+    }
+
+    /**
+     * Keeps a standing queue for an interval, so that the queue is overloaded
+     * from the next interval on. Leaves the queue empty and overloaded for
+     * most of an interval
+     *
+     * @return The task shed on the way
+     */
+    private static FutureTask<Void> overload(CoDelQueue queue)
+            throws InterruptedException {
+        FutureTask<Void> first = task();
+        FutureTask<Void> stale = task();
+        queue.offer(first);
+        queue.offer(stale);
+
+        //Past the first interval, which starts out not overloaded
+        Thread.sleep(INTERVAL_MILLIS + 100);
+        assertSame(first, queue.poll());
+        assertFalse(queue.isOverloaded());
+
+        //The stale task stands in the queue for the whole interval
+        Thread.sleep(INTERVAL_MILLIS + 50);
+        FutureTask<Void> fresh = task();
+        queue.offer(fresh);
+        assertSame(fresh, queue.poll());
+        assertTrue(queue.isOverloaded());
+        assertTrue(stale.isCancelled());
+        return stale;
+    }
+
+    @Test
+    public void firstInFirstOutWithoutBacklog() {
+        CoDelQueue queue = newQueue();
+        List<Runnable> tasks = Arrays.<Runnable>asList(task(), task(), task());
+        for (Runnable task : tasks) {
+            assertTrue(queue.offer(task));
+        }
+
+        for (Runnable task : tasks) {
+            assertSame(task, queue.poll());
+        }
+        assertNull(queue.poll());
+        assertFalse(queue.isOverloaded());
+        assertEquals(0, queue.getShedCount());
+    }
+
+    @Test(timeout = 20000)
+    public void entersAndLeavesOverload() throws Exception {
+        CoDelQueue queue = newQueue();
+        overload(queue);
+        assertEquals(1, queue.getShedCount());
+
+        //Newest first while overloaded
+        FutureTask<Void> first = task();
+        FutureTask<Void> second = task();
+        FutureTask<Void> third = task();
+        queue.offer(first);
+        queue.offer(second);
+        queue.offer(third);
+        assertSame(third, queue.poll());
+        assertSame(second, queue.poll());
+
+        //The head waited only briefly during this interval, so the next one
+        //starts out of overload even though the head is old by now
+        Thread.sleep(INTERVAL_MILLIS + 50);
+        assertSame(first, queue.poll());
+        assertFalse(queue.isOverloaded());
+        assertFalse(first.isCancelled());
+        assertEquals(1, queue.getShedCount());
+    }
+
+    @Test(timeout = 20000)
+    public void shedsOnlyTasksWaitingLongerThanTwiceTheTarget() throws Exception {
+        CoDelQueue queue = newQueue();
+        final List<Runnable> handled = new ArrayList<Runnable>();
+        queue.setOverloadHandler(null, new OverloadHandler() {
+            public void overloaded(IStage stage, Runnable task) {
+                handled.add(task);
+            }
+        });
+        FutureTask<Void> stale = overload(queue);
+        assertEquals(Arrays.<Runnable>asList(stale), handled);
+
+        FutureTask<Void> old1 = task();
+        FutureTask<Void> old2 = task();
+        queue.offer(old1);
+        queue.offer(old2);
+        Thread.sleep(2 * TARGET_MILLIS + 50);
+        FutureTask<Void> young = task();
+        queue.offer(young);
+
+        assertSame(young, queue.poll());
+        assertTrue(old1.isCancelled());
+        assertTrue(old2.isCancelled());
+        assertEquals(3, queue.getShedCount());
+        assertEquals(Arrays.<Runnable>asList(stale, old1, old2), handled);
+
+        //Nothing left to run once everything queued is shed
+        FutureTask<Void> old3 = task();
+        queue.offer(old3);
+        Thread.sleep(2 * TARGET_MILLIS + 50);
+        assertNull(queue.poll());
+        assertTrue(old3.isCancelled());
+        assertEquals(0, queue.size());
+    }
+
+    @Test(timeout = 20000)
+    public void drainToNeitherShedsNorReorders() throws Exception {
+        CoDelQueue queue = newQueue();
+        overload(queue);
+
+        List<FutureTask<Void>> tasks = Arrays.asList(task(), task(), task());
+        for (FutureTask<Void> task : tasks) {
+            queue.offer(task);
+        }
+        Thread.sleep(2 * TARGET_MILLIS + 50);
+
+        List<Runnable> drained = new ArrayList<Runnable>();
+        assertEquals(3, queue.drainTo(drained));
+        assertEquals(tasks, drained);
+        for (FutureTask<Void> task : tasks) {
+            assertFalse(task.isCancelled());
+        }
+        assertEquals(1, queue.getShedCount());
+        assertTrue(queue.isOverloaded());
+    }
+}
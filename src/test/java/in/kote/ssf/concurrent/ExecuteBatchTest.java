@@ -0,0 +1,138 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of <code>executeBatch()</code> on stages whose queues can and can't
+ * coalesce a batch
+ *
+ * @author Thejo
+ */
+public class ExecuteBatchTest {
+
+    /**
+     * A task ordered by its priority on a priority stage
+     */
+    private static final class PriorityTask implements Runnable,
+            Comparable<PriorityTask> {
+        private final int priority;
+        private final List<Integer> ran;
+        private final CountDownLatch done;
+
+        PriorityTask(int priority, List<Integer> ran, CountDownLatch done) {
+            this.priority = priority;
+            this.ran = ran;
+            this.done = done;
+        }
+
+        public void run() {
+            ran.add(priority);
+            done.countDown();
+        }
+
+        public int compareTo(PriorityTask other) {
+            return (priority < other.priority) ? -1
+                    : ((priority == other.priority) ? 0 : 1);
+        }
+    }
+
+    /**
+     * Occupies the only thread of a stage till released
+     */
+    private static CountDownLatch block(IStage stage) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        stage.execute(new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    //Stage shutting down
+                }
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private static FutureTask<Void> noop() {
+        return new FutureTask<Void>(new Runnable() {
+            public void run() {
+            }
+        }, null);
+    }
+
+    @Test
+    public void emptyBatchSplitsIntoNothing() {
+        assertTrue(CompositeTask.split(Collections.<Runnable>emptyList(), 4)
+                .isEmpty());
+        assertEquals(3, CompositeTask.split(Arrays.<Runnable>asList(noop(),
+                noop(), noop(), noop(), noop()), 3).size());
+    }
+
+    @Test
+    public void onlyFifoQueuesCoalesce() {
+        assertTrue(Queue.isFifo(Queue.getQueue(Queue.Type.LINKED_BLOCKING_QUEUE)));
+        assertTrue(Queue.isFifo(Queue.getQueue(Queue.Type.RING_BUFFER, 16)));
+        assertFalse(Queue.isFifo(Queue.getQueue(Queue.Type.PRIORITY_BLOCKING_QUEUE)));
+        assertFalse(Queue.isFifo(Queue.getQueue(Queue.Type.DEADLINE)));
+        assertFalse(Queue.isFifo(Queue.getQueue(Queue.Type.CODEL)));
+    }
+
+    @Test(timeout = 10000)
+    public void priorityStageOrdersEveryTaskOfABatch() throws Exception {
+        MultiThreadedStage stage = new MultiThreadedStage("BATCH-PRIORITY", 1, 1,
+                Queue.Type.PRIORITY_BLOCKING_QUEUE);
+        try {
+            CountDownLatch release = block(stage);
+
+            List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+            CountDownLatch done = new CountDownLatch(4);
+            stage.executeBatch(Arrays.asList(new PriorityTask(3, ran, done),
+                    new PriorityTask(1, ran, done), new PriorityTask(2, ran, done)));
+
+            release.countDown();
+            stage.executeBatch(Collections.<Runnable>emptyList());
+            stage.execute(new PriorityTask(4, ran, done));
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+
+            assertEquals(Arrays.asList(1, 2, 3, 4), ran);
+        } finally {
+            stage.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void droppingACoalescedBatchCancelsEveryTask() throws Exception {
+        MultiThreadedStage stage = new MultiThreadedStage("BATCH-DROP", 1, 1,
+                Queue.Type.ARRAY_BLOCKING_QUEUE, 1, OverloadPolicy.DROP_OLDEST);
+        try {
+            CountDownLatch release = block(stage);
+
+            List<FutureTask<Void>> batch = Arrays.asList(noop(), noop(), noop());
+            stage.executeBatch(batch);
+
+            //Takes the place of the batch in the queue
+            FutureTask<Void> newest = noop();
+            stage.execute(newest);
+            for (FutureTask<Void> task : batch) {
+                assertTrue(task.isCancelled());
+            }
+
+            release.countDown();
+            newest.get(5, TimeUnit.SECONDS);
+        } finally {
+            stage.shutdown();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of how a <code>ForkJoinStage</code> completes its futures
+ *
+ * @author Thejo
+ */
+public class ForkJoinStageTest {
+
+    @Test(timeout = 10000)
+    public void failsWithTheCheckedExceptionOfTheCallable() throws Exception {
+        ForkJoinStage stage = new ForkJoinStage("FORK-JOIN-CHECKED", 1);
+        try {
+            Future<String> future = stage.execute(new Callable<String>() {
+                public String call() throws Exception {
+                    throw new IOException("Expected by the test");
+                }
+            });
+
+            try {
+                future.get(5, TimeUnit.SECONDS);
+                fail("Callable succeeded");
+            } catch (ExecutionException expected) {
+                //A ForkJoinTask reports checked exceptions wrapped
+                Throwable cause = expected.getCause();
+                while (null != cause.getCause()) {
+                    cause = cause.getCause();
+                }
+                assertTrue(cause.toString(), cause instanceof IOException);
+                assertEquals("Expected by the test", cause.getMessage());
+            }
+            assertTrue(future.isDone());
+            assertFalse(future.isCancelled());
+
+            assertEquals("ok", stage.execute(new Callable<String>() {
+                public String call() {
+                    return "ok";
+                }
+            }).get(5, TimeUnit.SECONDS));
+        } finally {
+            stage.shutdown();
+        }
+    }
+}
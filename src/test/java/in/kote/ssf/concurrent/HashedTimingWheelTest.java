@@ -0,0 +1,193 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the rounds and cancellation of timers on a
+ * <code>HashedTimingWheel</code>. The wheel is small, 8 ticks of 10ms, so
+ * that delays of a few hundred milliseconds take several turns of it.
+ *
+ * @author Thejo
+ */
+public class HashedTimingWheelTest {
+
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 8;
+
+    private static HashedTimingWheel newWheel(String name) {
+        return new HashedTimingWheel(name, TICK_MILLIS, TimeUnit.MILLISECONDS,
+                WHEEL_SIZE);
+    }
+
+    /**
+     * Waits for the wheel thread to drop cancelled and expired timers
+     */
+    private static void awaitPendingCount(HashedTimingWheel wheel, long count)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (wheel.getPendingCount() != count && System.nanoTime() < deadline) {
+            Thread.sleep(TICK_MILLIS);
+        }
+        assertEquals(count, wheel.getPendingCount());
+    }
+
+    @Test(timeout = 10000)
+    public void timersOfOneBucketFireOnTheirOwnTurn() throws Exception {
+        HashedTimingWheel wheel = newWheel("WHEEL-ROUNDS");
+        try {
+            //One turn is 80ms, so these share a bucket 0, 1 and 2 turns apart
+            final long[] delays = {190, 30, 110};
+            final long start = System.nanoTime();
+            final List<Long> fired = Collections.synchronizedList(new ArrayList<Long>());
+            final Map<Long, Long> elapsed = new ConcurrentHashMap<Long, Long>();
+            final CountDownLatch done = new CountDownLatch(delays.length);
+            for (final long delay : delays) {
+                wheel.schedule(new Runnable() {
+                    public void run() {
+                        elapsed.put(delay, TimeUnit.NANOSECONDS.toMillis(
+                                System.nanoTime() - start));
+                        fired.add(delay);
+                        done.countDown();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            assertEquals(3, wheel.getPendingCount());
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(30L, 110L, 190L), fired);
+            for (long delay : delays) {
+                assertTrue("Fired after " + elapsed.get(delay) + "ms instead of "
+                        + delay + "ms", elapsed.get(delay) >= delay);
+            }
+            awaitPendingCount(wheel, 0);
+        } finally {
+            wheel.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void timerFurtherOutThanATurnWaitsItsRounds() throws Exception {
+        HashedTimingWheel wheel = newWheel("WHEEL-LONG");
+        try {
+            final CountDownLatch fired = new CountDownLatch(1);
+            long start = System.nanoTime();
+            ScheduledFuture<?> timer = wheel.schedule(new Runnable() {
+                public void run() {
+                    fired.countDown();
+                }
+            }, 250, TimeUnit.MILLISECONDS);
+
+            //Past the bucket of the timer on the first turn
+            assertFalse(fired.await(100, TimeUnit.MILLISECONDS));
+            assertFalse(timer.isDone());
+            assertEquals(1, wheel.getPendingCount());
+
+            assertTrue(fired.await(5, TimeUnit.SECONDS));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 250);
+            assertTrue(timer.isDone());
+            assertFalse(timer.isCancelled());
+        } finally {
+            wheel.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void cancelledTimerNeverFires() throws Exception {
+        HashedTimingWheel wheel = newWheel("WHEEL-CANCEL");
+        try {
+            final AtomicInteger cancelledRuns = new AtomicInteger();
+            final CountDownLatch fired = new CountDownLatch(1);
+            Runnable cancelledTask = new Runnable() {
+                public void run() {
+                    cancelledRuns.incrementAndGet();
+                }
+            };
+
+            //Cancelled before and after the wheel thread took it in
+            ScheduledFuture<?> early = wheel.schedule(cancelledTask, 150,
+                    TimeUnit.MILLISECONDS);
+            assertTrue(early.cancel(false));
+            ScheduledFuture<?> late = wheel.schedule(cancelledTask, 150,
+                    TimeUnit.MILLISECONDS);
+            ScheduledFuture<?> kept = wheel.schedule(new Runnable() {
+                public void run() {
+                    fired.countDown();
+                }
+            }, 150, TimeUnit.MILLISECONDS);
+            Thread.sleep(5 * TICK_MILLIS);
+            assertTrue(late.cancel(false));
+            assertFalse(late.cancel(false));
+
+            awaitPendingCount(wheel, 1);
+            assertTrue(fired.await(5, TimeUnit.SECONDS));
+            assertFalse(kept.isCancelled());
+            assertTrue(early.isCancelled());
+            assertTrue(late.isCancelled());
+            assertFalse(kept.cancel(false));
+
+            //Well past the turn the cancelled timers were due on
+            Thread.sleep(WHEEL_SIZE * TICK_MILLIS);
+            assertEquals(0, cancelledRuns.get());
+            awaitPendingCount(wheel, 0);
+        } finally {
+            wheel.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void periodicTimerStopsOnceCancelled() throws Exception {
+        HashedTimingWheel wheel = newWheel("WHEEL-PERIODIC");
+        MultiThreadedStage stage = new MultiThreadedStage("WHEEL-PERIODIC-STAGE", 1);
+        try {
+            final AtomicInteger runs = new AtomicInteger();
+            final CountDownLatch repeated = new CountDownLatch(3);
+            ScheduledFuture<?> timer = wheel.scheduleAtFixedRate(stage, new Runnable() {
+                public void run() {
+                    runs.incrementAndGet();
+                    repeated.countDown();
+                }
+            }, 20, 30, TimeUnit.MILLISECONDS);
+
+            assertTrue(repeated.await(5, TimeUnit.SECONDS));
+            assertFalse(timer.isDone());
+
+            assertTrue(timer.cancel(false));
+            awaitPendingCount(wheel, 0);
+
+            //A run already handed to the stage may still complete
+            Thread.sleep(3 * TICK_MILLIS);
+            int cancelledAt = runs.get();
+            Thread.sleep(WHEEL_SIZE * TICK_MILLIS);
+            assertEquals(cancelledAt, runs.get());
+            assertTrue(timer.isCancelled());
+        } finally {
+            wheel.shutdown();
+            stage.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shutdownCancelsPendingTimers() throws Exception {
+        HashedTimingWheel wheel = newWheel("WHEEL-SHUTDOWN");
+        ScheduledFuture<?> timer = wheel.schedule(new Runnable() {
+            public void run() {
+            }
+        }, 1, TimeUnit.SECONDS);
+        Thread.sleep(3 * TICK_MILLIS);
+
+        wheel.shutdown();
+        assertTrue(wheel.isShutdown());
+        awaitPendingCount(wheel, 0);
+        assertTrue(timer.isCancelled());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.concurrent.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the overload policies of a saturated <code>MultiThreadedStage</code>
+ *
+ * @author Thejo
+ */
+public class OverloadPolicyTest {
+
+    /**
+     * Occupies the only thread of a stage till released. A synchronous queue
+     * turns the task away till the thread waits for work, so keep trying.
+     * Remembers the rejection count of the stage at that point, see rejected()
+     */
+    private static CountDownLatch block(MultiThreadedStage stage)
+            throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ie) {
+                    //Stage shutting down
+                }
+            }
+        };
+
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                stage.execute(blocker);
+            } catch (RejectedExecutionException ree) {
+                //Thread not waiting yet
+            }
+            if (started.await(50, TimeUnit.MILLISECONDS)) {
+                rejectedBefore = stage.getRejectedCount();
+                return release;
+            }
+        }
+        throw new AssertionError("Stage " + stage.getName() + " never ran a task");
+    }
+
+    private static long rejectedBefore;
+
+    private static long rejected(MultiThreadedStage stage) {
+        return stage.getRejectedCount() - rejectedBefore;
+    }
+
+    private static FutureTask<Void> noop() {
+        return new FutureTask<Void>(new Runnable() {
+            public void run() {
+            }
+        }, null);
+    }
+
+    @Test(timeout = 10000)
+    public void dropOldestWithNothingQueuedDropsTheNewTask() throws Exception {
+        MultiThreadedStage stage = new MultiThreadedStage("DROP-OLDEST-SYNC", 1, 1,
+                Queue.Type.SYNCHRONOUS_QUEUE, 0, OverloadPolicy.DROP_OLDEST);
+        try {
+            CountDownLatch release = block(stage);
+
+            FutureTask<Void> task = noop();
+            stage.execute(task);
+            assertTrue(task.isCancelled());
+            assertEquals(1, rejected(stage));
+
+            release.countDown();
+        } finally {
+            stage.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void dropOldestMakesRoomForTheNewTask() throws Exception {
+        MultiThreadedStage stage = new MultiThreadedStage("DROP-OLDEST", 1, 1,
+                Queue.Type.ARRAY_BLOCKING_QUEUE, 1, OverloadPolicy.DROP_OLDEST);
+        try {
+            CountDownLatch release = block(stage);
+
+            FutureTask<Void> oldest = noop();
+            FutureTask<Void> newest = noop();
+            stage.execute(oldest);
+            stage.execute(newest);
+            assertTrue(oldest.isCancelled());
+            assertEquals(1, rejected(stage));
+
+            release.countDown();
+            newest.get(5, TimeUnit.SECONDS);
+        } finally {
+            stage.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void dropNewestCancelsTheNewTask() throws Exception {
+        MultiThreadedStage stage = new MultiThreadedStage("DROP-NEWEST", 1, 1,
+                Queue.Type.ARRAY_BLOCKING_QUEUE, 1, OverloadPolicy.DROP_NEWEST);
+        try {
+            CountDownLatch release = block(stage);
+
+            FutureTask<Void> queued = noop();
+            FutureTask<Void> newest = noop();
+            stage.execute(queued);
+            stage.execute(newest);
+            assertTrue(newest.isCancelled());
+            assertEquals(1, rejected(stage));
+
+            release.countDown();
+            queued.get(5, TimeUnit.SECONDS);
+        } finally {
+            stage.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void rejectThrowsBackAtTheCaller() throws Exception {
+        MultiThreadedStage stage = new MultiThreadedStage("REJECT-SYNC", 1, 1,
+                Queue.Type.SYNCHRONOUS_QUEUE, 0, OverloadPolicy.REJECT);
+        try {
+            CountDownLatch release = block(stage);
+            try {
+                stage.execute(noop());
+                fail("Saturated stage accepted a task");
+            } catch (RejectedExecutionException expected) {
+                assertEquals(1, rejected(stage));
+            }
+            release.countDown();
+        } finally {
+            stage.shutdown();
+        }
+    }
+}
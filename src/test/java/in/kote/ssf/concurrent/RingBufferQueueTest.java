@@ -0,0 +1,196 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests of <code>RingBufferQueue</code> with every wait strategy
+ *
+ * @author Thejo
+ */
+public class RingBufferQueueTest {
+
+    private static final int PRODUCERS = 4;
+    private static final int CONSUMERS = 4;
+    private static final int ITEMS_PER_PRODUCER = 50000;
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(8, new RingBufferQueue<Integer>(5).getCapacity());
+        assertEquals(8, new RingBufferQueue<Integer>(8).getCapacity());
+    }
+
+    @Test
+    public void keepsFifoOrderAcrossWraparound() {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(4);
+        int next = 0;
+        int expected = 0;
+
+        //Many more elements than slots, with the queue never drained fully
+        for (int round = 0; round < 1000; round++) {
+            while (queue.offer(next)) {
+                next++;
+            }
+            assertEquals(4, queue.size());
+            assertEquals(0, queue.remainingCapacity());
+
+            for (int i = 0; i < 3; i++) {
+                assertEquals(Integer.valueOf(expected++), queue.poll());
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            assertEquals(Integer.valueOf(expected++), queue.poll());
+        }
+        assertEquals(next, expected);
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void iteratesInFifoOrderAfterWraparound() {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(4);
+        for (int i = 0; i < 6; i++) {
+            queue.offer(i);
+            if (i >= 2) {
+                queue.poll();
+            }
+        }
+
+        List<Integer> elements = new ArrayList<Integer>();
+        for (Integer e : queue) {
+            elements.add(e);
+        }
+        assertEquals(Arrays.asList(4, 5), elements);
+
+        List<Integer> drained = new ArrayList<Integer>();
+        assertEquals(2, queue.drainTo(drained));
+        assertEquals(Arrays.asList(4, 5), drained);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void rejectsNull() {
+        new RingBufferQueue<Integer>(4).offer(null);
+    }
+
+    @Test
+    public void offerWithTimeoutGivesUpWhenFull() throws Exception {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(2,
+                new BlockingWaitStrategy());
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertFalse(queue.offer(3, 10, TimeUnit.MILLISECONDS));
+        assertNull(new RingBufferQueue<Integer>(2).poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(timeout = 60000)
+    public void multipleProducersAndConsumersWithBlockingWait() throws Exception {
+        multipleProducersAndConsumers(new BlockingWaitStrategy(), PRODUCERS,
+                CONSUMERS);
+    }
+
+    @Test(timeout = 60000)
+    public void multipleProducersAndConsumersWithYieldingWait() throws Exception {
+        multipleProducersAndConsumers(new YieldingWaitStrategy(), PRODUCERS,
+                CONSUMERS);
+    }
+
+    /**
+     * Spinning threads only make progress with a core each
+     */
+    @Test(timeout = 60000)
+    public void producerAndConsumerWithBusySpinWait() throws Exception {
+        assumeTrue(Runtime.getRuntime().availableProcessors() >= 2);
+        multipleProducersAndConsumers(new BusySpinWaitStrategy(), 1, 1);
+    }
+
+    /**
+     * Every element is taken exactly once, and the elements of each producer
+     * are taken in the order they were put, through a queue much smaller than
+     * the number of elements
+     */
+    private void multipleProducersAndConsumers(WaitStrategy waitStrategy,
+            final int producerCount, int consumerCount) throws Exception {
+        final RingBufferQueue<Long> queue = new RingBufferQueue<Long>(8,
+                waitStrategy);
+        final long total = (long) producerCount * ITEMS_PER_PRODUCER;
+        final AtomicLong taken = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                producerCount + consumerCount);
+
+        try {
+            List<Future<?>> producers = new ArrayList<Future<?>>();
+            for (int p = 0; p < producerCount; p++) {
+                final long producer = p;
+                producers.add( executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        start.await();
+                        for (long i = 0; i < ITEMS_PER_PRODUCER; i++) {
+                            queue.put( (producer << 32) | i );
+                        }
+                        return null;
+                    }
+                }) );
+            }
+
+            List<Future<long[]>> consumers = new ArrayList<Future<long[]>>();
+            for (int c = 0; c < consumerCount; c++) {
+                consumers.add( executor.submit(new Callable<long[]>() {
+                    public long[] call() throws Exception {
+                        start.await();
+                        long[] counts = new long[producerCount];
+                        long[] last = new long[producerCount];
+                        Arrays.fill(last, -1);
+
+                        while (taken.get() < total) {
+                            Long e = queue.poll(10, TimeUnit.MILLISECONDS);
+                            if (null == e) {
+                                continue;
+                            }
+                            taken.incrementAndGet();
+
+                            int producer = (int) (e >>> 32);
+                            long sequence = e & 0xFFFFFFFFL;
+                            assertTrue("Out of order", sequence > last[producer]);
+                            last[producer] = sequence;
+                            counts[producer]++;
+                        }
+                        return counts;
+                    }
+                }) );
+            }
+
+            start.countDown();
+            for (Future<?> producer : producers) {
+                producer.get();
+            }
+
+            long[] counts = new long[producerCount];
+            for (Future<long[]> consumer : consumers) {
+                long[] c = consumer.get();
+                for (int p = 0; p < producerCount; p++) {
+                    counts[p] += c[p];
+                }
+            }
+
+            for (int p = 0; p < producerCount; p++) {
+                assertEquals(ITEMS_PER_PRODUCER, counts[p]);
+            }
+            assertEquals(total, taken.get());
+            assertTrue(queue.isEmpty());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
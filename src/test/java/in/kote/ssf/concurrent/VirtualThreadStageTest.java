@@ -0,0 +1,59 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.concurrent;
+
+import java.util.concurrent.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the permits of a <code>VirtualThreadStage</code>
+ *
+ * @author Thejo
+ */
+public class VirtualThreadStageTest {
+
+    @Test(timeout = 10000)
+    public void errorHandsThePermitOver() throws Exception {
+        VirtualThreadStage stage = new VirtualThreadStage("VIRTUAL-ERROR", 1);
+        try {
+            final CountDownLatch release = new CountDownLatch(1);
+            stage.execute(new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ie) {
+                        //Stage shutting down
+                    }
+                    throw new AssertionError("Expected by the test");
+                }
+            });
+
+            final CountDownLatch ran = new CountDownLatch(2);
+            for (int i = 0; i < 2; i++) {
+                stage.execute(new Runnable() {
+                    public void run() {
+                        ran.countDown();
+                    }
+                });
+            }
+
+            release.countDown();
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+
+            //All permits are back
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (stage.getActiveCount() != 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, stage.getActiveCount());
+            assertEquals(0, stage.getTaskCount());
+        } finally {
+            stage.shutdown();
+        }
+    }
+}
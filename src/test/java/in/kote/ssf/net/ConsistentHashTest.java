@@ -0,0 +1,159 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net;
+
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the distribution of keys by <code>ConsistentHash</code> and of how
+ * few keys move when the set of endpoints changes
+ *
+ * @author Thejo
+ */
+public class ConsistentHashTest {
+
+    private static final int KEY_COUNT = 100000;
+
+    private static List<EndPoint> endPoints(int count) {
+        List<EndPoint> endPoints = new ArrayList<EndPoint>();
+        for (int i = 0; i < count; i++) {
+            EndPoint endPoint = new EndPoint("127.0.0." + (i + 2), 9000);
+            endPoint.setWeight(1);
+            endPoints.add(endPoint);
+        }
+        return endPoints;
+    }
+
+    private static Map<EndPoint, Integer> countKeys(ConsistentHash circle) {
+        Map<EndPoint, Integer> counts = new HashMap<EndPoint, Integer>();
+        for (int i = 0; i < KEY_COUNT; i++) {
+            EndPoint endPoint = circle.getEndPoint("user-" + i);
+            Integer count = counts.get(endPoint);
+            counts.put(endPoint, (null == count) ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    @Test
+    public void emptyCircleMapsToNothing() {
+        ConsistentHash circle = new ConsistentHash(
+                Collections.<EndPoint>emptyList());
+        assertEquals(0, circle.size());
+        assertNull(circle.getEndPoint("key"));
+        assertNull(circle.getEndPoint(42L));
+    }
+
+    @Test
+    public void virtualNodesDependOnTheNodeWeightOnly() {
+        List<EndPoint> endPoints = endPoints(3);
+        endPoints.get(0).setWeight(3);
+        endPoints.get(1).setWeight(0);
+
+        //A node without a weight counts as weight 1
+        ConsistentHash circle = new ConsistentHash(endPoints);
+        assertEquals(5 * ConsistentHash.virtualNodesPerWeight, circle.size(), 5);
+    }
+
+    @Test
+    public void spreadsKeysEvenly() {
+        List<EndPoint> endPoints = endPoints(5);
+        Map<EndPoint, Integer> counts = countKeys(new ConsistentHash(endPoints));
+
+        assertEquals(endPoints.size(), counts.size());
+        double mean = (double) KEY_COUNT / endPoints.size();
+        for (EndPoint endPoint : endPoints) {
+            double share = counts.get(endPoint) / mean;
+            assertTrue(endPoint + " got " + share + " of its share",
+                    share > 0.7 && share < 1.3);
+        }
+    }
+
+    @Test
+    public void spreadsKeysByWeight() {
+        List<EndPoint> endPoints = endPoints(4);
+        endPoints.get(0).setWeight(3);
+        Map<EndPoint, Integer> counts = countKeys(new ConsistentHash(endPoints));
+
+        double mean = KEY_COUNT / 6.0;
+        double heavy = counts.get(endPoints.get(0)) / mean;
+        assertTrue("Weight 3 node got " + heavy + " shares",
+                heavy > 2.3 && heavy < 3.7);
+    }
+
+    @Test
+    public void removingANodeMovesOnlyItsKeys() {
+        List<EndPoint> endPoints = endPoints(5);
+        ConsistentHash before = new ConsistentHash(endPoints);
+        EndPoint removed = endPoints.get(2);
+        ConsistentHash after = before.remove(removed);
+
+        assertTrue(before.contains(removed));
+        assertFalse(after.contains(removed));
+
+        int moved = 0;
+        for (int i = 0; i < KEY_COUNT; i++) {
+            String key = "user-" + i;
+            EndPoint was = before.getEndPoint(key);
+            EndPoint is = after.getEndPoint(key);
+            assertFalse(removed.equals(is));
+
+            if (!was.equals(is)) {
+                assertEquals("Key moved between remaining nodes", removed, was);
+                moved++;
+            }
+        }
+        assertEquals(countKeys(before).get(removed).intValue(), moved);
+    }
+
+    @Test
+    public void addingANodeMovesKeysOnlyToIt() {
+        List<EndPoint> endPoints = endPoints(6);
+        EndPoint added = endPoints.remove(5);
+        ConsistentHash before = new ConsistentHash(endPoints);
+        ConsistentHash after = before.add(added);
+
+        int moved = 0;
+        for (int i = 0; i < KEY_COUNT; i++) {
+            String key = "user-" + i;
+            EndPoint was = before.getEndPoint(key);
+            EndPoint is = after.getEndPoint(key);
+
+            if (!was.equals(is)) {
+                assertEquals("Key moved between existing nodes", added, is);
+                moved++;
+            }
+        }
+
+        //About a sixth of the keys
+        double share = (double) moved / KEY_COUNT;
+        assertTrue("Moved " + share + " of the keys", share > 0.1 && share < 0.25);
+    }
+
+    @Test
+    public void changingACircleLeavesItIntact() {
+        List<EndPoint> endPoints = endPoints(3);
+        ConsistentHash circle = new ConsistentHash(endPoints);
+        int size = circle.size();
+
+        circle.add( endPoints(4).get(3) );
+        circle.remove( endPoints.get(0) );
+        assertEquals(size, circle.size());
+        assertEquals(endPoints, circle.getEndPoints());
+    }
+
+    @Test
+    public void mapsKeysTheSameWayEveryTime() {
+        ConsistentHash first = new ConsistentHash(endPoints(4));
+        ConsistentHash second = new ConsistentHash(endPoints(4));
+        for (long i = 0; i < 1000; i++) {
+            assertEquals(first.getEndPoint(i), second.getEndPoint(i));
+            assertEquals(first.getEndPoint("key" + i), second.getEndPoint("key" + i));
+        }
+    }
+}
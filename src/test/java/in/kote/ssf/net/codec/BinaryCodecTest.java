@@ -0,0 +1,243 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.codec;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of <code>BinaryCodec</code> and <code>MessageStream</code> with well
+ * formed, truncated and corrupt input
+ *
+ * @author Thejo
+ */
+public class BinaryCodecTest {
+
+    /**
+     * An application message with a schema of its own
+     */
+    static final class Lookup {
+        final long userId;
+        final String key;
+
+        Lookup(long userId, String key) {
+            this.userId = userId;
+            this.key = key;
+        }
+    }
+
+    private static final MessageSchema<Lookup> LOOKUP_SCHEMA =
+            new MessageSchema<Lookup>(BinaryCodec.FIRST_USER_TYPE_ID, Lookup.class) {
+        public void write(Lookup message, BinaryOutput out, BinaryCodec codec) {
+            out.writeLong(message.userId);
+            out.writeString(message.key);
+        }
+
+        public Lookup read(BinaryInput in, BinaryCodec codec) throws IOException {
+            return new Lookup(in.readLong(), in.readString());
+        }
+    };
+
+    private BinaryCodec newCodec() {
+        BinaryCodec codec = new BinaryCodec();
+        codec.register(LOOKUP_SCHEMA);
+        return codec;
+    }
+
+    private static byte[] encode(BinaryCodec codec, Object message)
+            throws IOException {
+        BinaryOutput out = new BinaryOutput(64);
+        try {
+            codec.encode(message, out);
+            return Arrays.copyOf(out.array(), out.size());
+        } finally {
+            out.release();
+        }
+    }
+
+    private static Object decode(BinaryCodec codec, byte[] data, int length)
+            throws IOException {
+        return codec.decode( new BinaryInput(data, 0, length) );
+    }
+
+    @Test
+    public void roundTripsBuiltInTypes() throws IOException {
+        BinaryCodec codec = newCodec();
+
+        Map<Object, Object> map = new HashMap<Object, Object>();
+        map.put("count", 42);
+        map.put(7L, Arrays.asList(true, 1.5d, null));
+        map.put("bytes", new byte[] {1, 2, 3});
+
+        Object[] messages = {
+            null, "", "plain ascii", "h\u00e9llo \u4e16\u754c \ud83d\ude00",
+            Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE, -1L,
+            Boolean.TRUE, Boolean.FALSE, Double.NaN, -0.25d,
+            Collections.emptyList(), Arrays.asList("a", 1, 2L), map
+        };
+
+        for (Object message : messages) {
+            byte[] data = encode(codec, message);
+            Object decoded = decode(codec, data, data.length);
+            if (message instanceof Map) {
+                Map<?, ?> decodedMap = (Map<?, ?>) decoded;
+                assertEquals(map.size(), decodedMap.size());
+                assertEquals(42, decodedMap.get("count"));
+                assertEquals(map.get(7L), decodedMap.get(7L));
+                assertArrayEquals((byte[]) map.get("bytes"),
+                        (byte[]) decodedMap.get("bytes"));
+            } else {
+                assertEquals(message, decoded);
+            }
+        }
+    }
+
+    @Test
+    public void roundTripsRegisteredSchemas() throws IOException {
+        BinaryCodec codec = newCodec();
+        byte[] data = encode(codec, Arrays.asList(new Lookup(12345L, "profile"),
+                new Lookup(-1L, "")));
+
+        List<?> decoded = (List<?>) decode(codec, data, data.length);
+        assertEquals(2, decoded.size());
+        Lookup first = (Lookup) decoded.get(0);
+        assertEquals(12345L, first.userId);
+        assertEquals("profile", first.key);
+        assertEquals("", ((Lookup) decoded.get(1)).key);
+    }
+
+    @Test
+    public void replacesUnpairedSurrogates() throws IOException {
+        BinaryCodec codec = newCodec();
+        byte[] data = encode(codec, "a\ud800b\udc00");
+        assertEquals("a?b?", decode(codec, data, data.length));
+    }
+
+    @Test(expected = NotSerializableException.class)
+    public void rejectsClassesWithoutSchema() throws IOException {
+        encode(newCodec(), new Object());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsReservedTypeIds() {
+        new BinaryCodec().register(new MessageSchema<Lookup>(1, Lookup.class) {
+            public void write(Lookup message, BinaryOutput out, BinaryCodec codec) {
+            }
+
+            public Lookup read(BinaryInput in, BinaryCodec codec) {
+                return null;
+            }
+        });
+    }
+
+    @Test
+    public void rejectsEveryTruncation() throws IOException {
+        BinaryCodec codec = newCodec();
+        byte[] data = encode(codec, Arrays.asList("some text", 99L,
+                new Lookup(5L, "key"), Collections.singletonMap("k", 1.0d)));
+
+        for (int length = 0; length < data.length; length++) {
+            try {
+                decode(codec, data, length);
+                fail("Decoded " + length + " of " + data.length + " bytes");
+            } catch (EOFException expected) {
+                //Ran out of bytes
+            } catch (StreamCorruptedException expected) {
+                //A length which doesn't fit in what is left
+            }
+        }
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsUnknownTypeIds() throws IOException {
+        byte[] data = {100};
+        decode(newCodec(), data, data.length);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsCollectionSizesLargerThanTheMessage() throws IOException {
+        //A list claiming 2^28 elements in a 6 byte message
+        byte[] data = {7, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01};
+        decode(newCodec(), data, data.length);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void rejectsNegativeLengths() throws IOException {
+        //A string with a length of -1
+        byte[] data = {1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F};
+        decode(newCodec(), data, data.length);
+    }
+
+    @Test
+    public void rejectsMessagesNestedTooDeeply() throws IOException {
+        //Lists of one list each, far deeper than allowed
+        byte[] data = new byte[2 * 10000];
+        for (int i = 0; i < data.length; i += 2) {
+            data[i] = 7;
+            data[i + 1] = 1;
+        }
+
+        try {
+            decode(newCodec(), data, data.length);
+            fail("Decoded a message nested 10000 levels deep");
+        } catch (StreamCorruptedException expected) {
+            //Stopped before the stack overflowed
+        }
+
+        Object nested = "leaf";
+        for (int i = 0; i < BinaryCodec.MAX_DEPTH - 1; i++) {
+            nested = Collections.singletonList(nested);
+        }
+        byte[] allowed = encode(newCodec(), nested);
+        assertEquals(nested, decode(newCodec(), allowed, allowed.length));
+    }
+
+    @Test
+    public void streamsLengthPrefixedMessages() throws IOException {
+        BinaryCodec codec = newCodec();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageStream writer = new MessageStream(new ByteArrayInputStream(
+                new byte[0]), bytes, codec);
+        writer.writeMessage("first");
+        writer.writeMessage(Arrays.asList(1, 2, 3));
+
+        MessageStream reader = new MessageStream(new ByteArrayInputStream(
+                bytes.toByteArray()), new ByteArrayOutputStream(), codec);
+        assertEquals("first", reader.readMessage());
+        assertEquals(Arrays.asList(1, 2, 3), reader.readMessage());
+    }
+
+    @Test
+    public void streamRejectsTruncatedAndOversizedMessages() throws IOException {
+        BinaryCodec codec = newCodec();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new MessageStream(new ByteArrayInputStream(new byte[0]), bytes, codec)
+                .writeMessage("a message which will be cut short");
+        byte[] data = bytes.toByteArray();
+
+        MessageStream truncated = new MessageStream(new ByteArrayInputStream(
+                data, 0, data.length - 3), new ByteArrayOutputStream(), codec);
+        try {
+            truncated.readMessage();
+            fail("Read a truncated message");
+        } catch (EOFException expected) {
+            //The stream ended within the message
+        }
+
+        byte[] oversized = {0x7F, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1};
+        MessageStream corrupt = new MessageStream(new ByteArrayInputStream(
+                oversized), new ByteArrayOutputStream(), codec);
+        try {
+            corrupt.readMessage();
+            fail("Accepted a 2GB message length");
+        } catch (StreamCorruptedException expected) {
+            //Length above the maximum message size
+        }
+    }
+}
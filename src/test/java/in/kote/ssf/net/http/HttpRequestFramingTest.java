@@ -0,0 +1,112 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.http;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import in.kote.ssf.net.CommSocket;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of how <code>AbstractHttpNioServer</code> decides where a request
+ * ends, which has to agree with <code>HttpRequestParser</code>
+ *
+ * @author Thejo
+ */
+public class HttpRequestFramingTest {
+
+    private static final AbstractHttpNioServer SERVER =
+            new AbstractHttpNioServer(0) {
+        protected Runnable newRequestTask(CommSocket socket) {
+            return null;
+        }
+    };
+
+    private static byte[] bytes(String s) throws UnsupportedEncodingException {
+        return s.getBytes("ISO-8859-1");
+    }
+
+    private static long contentLength(String headers) throws IOException {
+        byte[] data = bytes(headers + "\r\n\r\n");
+        return AbstractHttpNioServer.getContentLength(data, data.length - 4);
+    }
+
+    private static void assertRejected(String headers) {
+        try {
+            long contentLength = contentLength(headers);
+            fail("Framed " + headers + " with " + contentLength + " bytes of body");
+        } catch (IOException expected) {
+            //Connection gets closed
+        }
+    }
+
+    private static boolean complete(String request)
+            throws UnsupportedEncodingException {
+        byte[] data = bytes(request);
+        return SERVER.isRequestComplete(data, data.length);
+    }
+
+    @Test
+    public void readsContentLength() throws IOException {
+        assertEquals(0, contentLength("GET / HTTP/1.1\r\nHost: a"));
+        assertEquals(12, contentLength("POST / HTTP/1.1\r\nContent-Length: 12"));
+        assertEquals(12, contentLength("POST / HTTP/1.1\r\ncontent-length:12"));
+        assertEquals(12, contentLength("POST / HTTP/1.1\r\nCONTENT-LENGTH \t: 12 \t"));
+        assertEquals(7, contentLength(
+                "POST / HTTP/1.1\r\nContent-Length: 7\r\nContent-Length: 7"));
+    }
+
+    @Test
+    public void ignoresOtherHeadersStartingWithTheName() throws IOException {
+        assertEquals(0, contentLength("POST / HTTP/1.1\r\nContent-Length-Foo: 10"));
+        assertEquals(0, contentLength("POST / HTTP/1.1\r\ncontent-lengthx: 10"));
+        assertEquals(0, contentLength("POST / HTTP/1.1\r\nX-Content-Length: 10"));
+        //Not a header without the colon
+        assertEquals(0, contentLength("POST / HTTP/1.1\r\nContent-Length 12"));
+        assertEquals(3, contentLength(
+                "POST / HTTP/1.1\r\nContent-Length-Foo: 10\r\nContent-Length: 3"));
+    }
+
+    @Test
+    public void rejectsBadValues() {
+        assertRejected("POST / HTTP/1.1\r\nContent-Length:");
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: abc");
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: 12abc");
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: -1");
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: 1 2");
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: 99999999999999999999");
+    }
+
+    @Test
+    public void rejectsConflictingDuplicates() {
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: 7\r\nContent-Length: 8");
+    }
+
+    @Test
+    public void rejectsTransferEncoding() {
+        assertRejected("POST / HTTP/1.1\r\nTransfer-Encoding: chunked");
+        assertRejected("POST / HTTP/1.1\r\nContent-Length: 5\r\n"
+                + "transfer-encoding : gzip, chunked");
+    }
+
+    @Test
+    public void requestEndsAfterTheBody() throws UnsupportedEncodingException {
+        assertFalse(complete("GET / HTTP/1.1\r\nHost: a\r\n"));
+        assertTrue(complete("GET / HTTP/1.1\r\nHost: a\r\n\r\n"));
+
+        String post = "POST / HTTP/1.1\r\nContent-Length: 5\r\n\r\n";
+        assertFalse(complete(post + "abcd"));
+        assertTrue(complete(post + "abcde"));
+
+        //Not framed by the look-alike header
+        assertTrue(complete("POST / HTTP/1.1\r\nContent-Length-Foo: 5\r\n\r\n"));
+        assertFalse(complete("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5\r\nabcde\r\n0\r\n\r\n"));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.http;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import in.kote.ssf.concurrent.MultiThreadedStage;
+import in.kote.ssf.net.CommSocket;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a connection of an <code>AbstractHttpNioServer</code> reads the
+ * next pipelined request only once the response has been completed, and not
+ * at all once it has been closed
+ *
+ * @author Thejo
+ */
+public class NioPipeliningTest {
+
+    private final AtomicInteger handled = new AtomicInteger();
+    private AbstractHttpNioServer server;
+    private MultiThreadedStage stage;
+
+    /**
+     * Answers with the path of the request, written in two parts with a pause
+     * in between, so that the reactor drains the first part on its own
+     */
+    private void start(final boolean keepAlive) throws IOException {
+        //Requests dispatched too early would be answered concurrently
+        stage = new MultiThreadedStage("NIO-PIPELINING", 2);
+        server = new AbstractHttpNioServer(0, 50, 1,
+                new DefaultHttpServerConfiguration()) {
+            protected Runnable newRequestTask(final CommSocket socket) {
+                return new Runnable() {
+                    public void run() {
+                        handled.incrementAndGet();
+                        try {
+                            String path = new BufferedReader(new InputStreamReader(
+                                    socket.getInputStream(), "ISO-8859-1"))
+                                    .readLine().split(" ")[1];
+
+                            write(socket, "HTTP/1.1 200 OK\r\nContent-Length: "
+                                    + path.length() + "\r\n\r\n");
+                            Thread.sleep(50);
+                            write(socket, path);
+                            Thread.sleep(50);
+
+                            if (keepAlive) {
+                                socket.complete();
+                            } else {
+                                socket.close();
+                            }
+                        } catch (Exception ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    }
+                };
+            }
+        };
+        server.setNextStage(stage);
+        server.startServer();
+    }
+
+    private static void write(CommSocket socket, String s) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(s.getBytes("ISO-8859-1"));
+        out.close();
+    }
+
+    @After
+    public void stop() {
+        server.shutdown();
+        stage.shutdown();
+    }
+
+    private Socket connect() throws IOException {
+        Socket client = new Socket("127.0.0.1",
+                server.server.socket().getLocalPort());
+        client.setSoTimeout(5000);
+        return client;
+    }
+
+    private static void send(Socket client, String... paths) throws IOException {
+        StringBuilder requests = new StringBuilder();
+        for (String path : paths) {
+            requests.append("GET ").append(path).append(" HTTP/1.1\r\n")
+                    .append("Host: localhost\r\n\r\n");
+        }
+        OutputStream out = client.getOutputStream();
+        out.write(requests.toString().getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    /**
+     * Reads everything till the server closes the connection or the given
+     * number of bytes has been read
+     */
+    private static String read(Socket client, int length) throws IOException {
+        InputStream in = client.getInputStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int b;
+        while (bytes.size() < length && (b = in.read()) != -1) {
+            bytes.write(b);
+        }
+        return bytes.toString("ISO-8859-1");
+    }
+
+    private static String response(String path) {
+        return "HTTP/1.1 200 OK\r\nContent-Length: " + path.length() + "\r\n\r\n"
+                + path;
+    }
+
+    @Test(timeout = 20000)
+    public void answersPipelinedRequestsInOrder() throws Exception {
+        start(true);
+        Socket client = connect();
+        try {
+            List<String> paths = Arrays.asList("/first", "/second", "/third");
+            send(client, paths.toArray(new String[0]));
+
+            StringBuilder expected = new StringBuilder();
+            for (String path : paths) {
+                expected.append(response(path));
+            }
+            assertEquals(expected.toString(), read(client, expected.length()));
+
+            //The connection is still usable
+            send(client, "/again");
+            assertEquals(response("/again"), read(client,
+                    response("/again").length()));
+            assertEquals(4, handled.get());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void closeWinsOverPipelinedRequests() throws Exception {
+        start(false);
+        Socket client = connect();
+        try {
+            send(client, "/first", "/second");
+            assertEquals(response("/first"), read(client, Integer.MAX_VALUE));
+
+            //Give a wrongly dispatched request the time to show up
+            Thread.sleep(200);
+            assertEquals(1, handled.get());
+        } finally {
+            client.close();
+        }
+    }
+}
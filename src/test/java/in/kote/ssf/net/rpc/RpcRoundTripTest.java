@@ -0,0 +1,154 @@
+/*
+ * Please refer to http://code.thejo.in/license/
+ * for details about source code license.
+ */
+
+package in.kote.ssf.net.rpc;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.*;
+
+import in.kote.ssf.concurrent.MultiThreadedStage;
+import in.kote.ssf.concurrent.OverloadPolicy;
+import in.kote.ssf.concurrent.Queue;
+import in.kote.ssf.concurrent.StageFuture;
+import in.kote.ssf.exceptions.RpcException;
+import in.kote.ssf.net.CommSocket;
+import in.kote.ssf.net.EndPoint;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests of calls from an <code>RpcClient</code> to an
+ * <code>AbstractRpcServer</code>, multiplexed on one connection
+ *
+ * @author Thejo
+ */
+public class RpcRoundTripTest {
+
+    private final CountDownLatch slowStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseSlow = new CountDownLatch(1);
+    private MultiThreadedStage stage;
+    private AbstractRpcServer server;
+    private RpcClient client;
+    private EndPoint endPoint;
+
+    /**
+     * Echoes requests, except for "slow" which waits to be released and
+     * "error" which fails with an Error
+     */
+    private void start(MultiThreadedStage stage) throws Exception {
+        this.stage = stage;
+
+        ServerSocket free = new ServerSocket(0);
+        int port = free.getLocalPort();
+        free.close();
+
+        server = new AbstractRpcServer(port) {
+            protected byte[] handleRequest(CommSocket socket, byte[] request)
+                    throws Exception {
+                String s = new String(request, "UTF-8");
+                if ("slow".equals(s)) {
+                    slowStarted.countDown();
+                    releaseSlow.await();
+                } else if ("error".equals(s)) {
+                    throw new AssertionError("broken handler");
+                }
+                return request;
+            }
+        };
+        server.setNextStage(stage);
+        server.startServer();
+
+        endPoint = new EndPoint("127.0.0.1", port);
+        client = new RpcClient(1);
+
+        //Wait till the server is listening
+        for (int attempt = 0; ; attempt++) {
+            try {
+                client.invoke(endPoint, bytes("ping"), 5, TimeUnit.SECONDS);
+                break;
+            } catch (RpcException re) {
+                if (attempt == 100) {
+                    throw re;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @After
+    public void stop() {
+        releaseSlow.countDown();
+        client.shutdown();
+        server.shutdown();
+        stage.shutdown();
+    }
+
+    private static byte[] bytes(String s) throws IOException {
+        return s.getBytes("UTF-8");
+    }
+
+    private static String get(StageFuture<byte[]> call) throws Exception {
+        return new String(call.get(5, TimeUnit.SECONDS), "UTF-8");
+    }
+
+    private static void assertFails(StageFuture<byte[]> call, String message)
+            throws Exception {
+        try {
+            call.get(5, TimeUnit.SECONDS);
+            fail("Call succeeded");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof RpcException);
+            assertEquals(message, ee.getCause().getMessage());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void answersOutOfOrder() throws Exception {
+        start(new MultiThreadedStage("RPC-ROUND-TRIP", 2));
+
+        StageFuture<byte[]> slow = client.call(endPoint, bytes("slow"));
+        assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+        StageFuture<byte[]> fast = client.call(endPoint, bytes("fast"));
+
+        assertEquals("fast", get(fast));
+        assertFalse(slow.isDone());
+        assertEquals(1, client.getPendingCount(endPoint));
+
+        releaseSlow.countDown();
+        assertEquals("slow", get(slow));
+        assertEquals(0, client.getPendingCount(endPoint));
+    }
+
+    @Test(timeout = 30000)
+    public void answersDroppedRequests() throws Exception {
+        start(new MultiThreadedStage("RPC-DROP-OLDEST", 1, 1,
+                Queue.Type.ARRAY_BLOCKING_QUEUE, 1, OverloadPolicy.DROP_OLDEST));
+
+        StageFuture<byte[]> slow = client.call(endPoint, bytes("slow"));
+        assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+        StageFuture<byte[]> dropped = client.call(endPoint, bytes("dropped"));
+        StageFuture<byte[]> queued = client.call(endPoint, bytes("queued"));
+
+        //Made room for the last request
+        assertFails(dropped, "Overloaded");
+
+        releaseSlow.countDown();
+        assertEquals("slow", get(slow));
+        assertEquals("queued", get(queued));
+        assertEquals(0, client.getPendingCount(endPoint));
+    }
+
+    @Test(timeout = 30000)
+    public void answersRequestsFailingWithAnError() throws Exception {
+        start(new MultiThreadedStage("RPC-ERROR", 1));
+
+        assertFails(client.call(endPoint, bytes("error")), "broken handler");
+        assertEquals("after", get(client.call(endPoint, bytes("after"))));
+        assertEquals(0, client.getPendingCount(endPoint));
+    }
+}